@@ -0,0 +1,64 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.yolov8ncnn;
+
+import java.nio.ByteBuffer;
+
+// 一帧的检测结果，由 Yolov8Ncnn.pollResults 填充并复用
+// 数组按 RESULT_MAX_OBJECTS 一次分配，之后解码不再分配，只有前 count 个有效
+public class DetectionBatch
+{
+    public long sequence;    // 结果序号，相邻两次之差减一为未取走而被覆盖的帧数
+    public long timestampUs; // 帧时间戳，单调时钟（微秒）
+    public int frameWidth;   // 坐标所在画面的宽高
+    public int frameHeight;
+    public int count;
+    public int dropped;      // 超出 RESULT_MAX_OBJECTS 未写出的对象数
+
+    public final float[] x = new float[Yolov8Ncnn.RESULT_MAX_OBJECTS];
+    public final float[] y = new float[Yolov8Ncnn.RESULT_MAX_OBJECTS];
+    public final float[] width = new float[Yolov8Ncnn.RESULT_MAX_OBJECTS];
+    public final float[] height = new float[Yolov8Ncnn.RESULT_MAX_OBJECTS];
+    public final float[] prob = new float[Yolov8Ncnn.RESULT_MAX_OBJECTS];
+    public final int[] label = new int[Yolov8Ncnn.RESULT_MAX_OBJECTS];
+    public final int[] trackId = new int[Yolov8Ncnn.RESULT_MAX_OBJECTS]; // 未跟踪时为 -1
+
+    // 从槽位起始的字节偏移解码，只使用绝对位置读取，不改变 buffer 的状态
+    void decode(ByteBuffer buffer, int offset)
+    {
+        sequence = buffer.getInt(offset + Yolov8Ncnn.RESULT_HEADER_SEQUENCE * 4) & 0xffffffffL;
+        count = buffer.getInt(offset + Yolov8Ncnn.RESULT_HEADER_COUNT * 4);
+        dropped = buffer.getInt(offset + Yolov8Ncnn.RESULT_HEADER_DROPPED * 4);
+        frameWidth = buffer.getInt(offset + Yolov8Ncnn.RESULT_HEADER_FRAME_WIDTH * 4);
+        frameHeight = buffer.getInt(offset + Yolov8Ncnn.RESULT_HEADER_FRAME_HEIGHT * 4);
+
+        long lo = buffer.getInt(offset + Yolov8Ncnn.RESULT_HEADER_TIMESTAMP_LO * 4) & 0xffffffffL;
+        long hi = buffer.getInt(offset + Yolov8Ncnn.RESULT_HEADER_TIMESTAMP_HI * 4);
+        timestampUs = (hi << 32) | lo;
+
+        int p = offset + Yolov8Ncnn.RESULT_HEADER_WORDS * 4;
+        for (int i = 0; i < count; i++)
+        {
+            x[i] = buffer.getFloat(p);
+            y[i] = buffer.getFloat(p + 4);
+            width[i] = buffer.getFloat(p + 8);
+            height[i] = buffer.getFloat(p + 12);
+            prob[i] = buffer.getFloat(p + 16);
+            label[i] = buffer.getInt(p + 20);
+            trackId[i] = buffer.getInt(p + 24);
+            p += Yolov8Ncnn.RESULT_OBJECT_WORDS * 4;
+        }
+    }
+}
@@ -16,10 +16,14 @@ package com.tencent.yolov8ncnn;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.PixelFormat;
+import android.os.BatteryManager;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
@@ -301,7 +305,12 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
     private void reload()
     {
         Log.d(TAG, "reload: current_model=" + current_model + ", current_cpugpu=" + current_cpugpu);
-        boolean ret_init = yolov8ncnn.loadModel(getAssets(), current_model, current_cpugpu);
+        boolean ret_init = yolov8ncnn.loadModelAsync(getAssets(), current_model, current_cpugpu, new Yolov8Ncnn.ModelLoadCallback() {
+            @Override
+            public void onModelLoaded(boolean success, long loadMillis, long warmupMillis) {
+                Log.d(TAG, "onModelLoaded: success=" + success + ", load=" + loadMillis + "ms, warmup=" + warmupMillis + "ms");
+            }
+        });
         if (!ret_init)
         {
             Log.e(TAG, "yolov8ncnn loadModel failed");
@@ -329,11 +338,27 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
     {
     }
 
+    // 电池状态转发给 native 层的温控和电量调度
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+            if (level < 0 || scale <= 0)
+                return;
+
+            yolov8ncnn.setBatteryState(level * 100 / scale, plugged != 0);
+        }
+    };
+
     @Override
     public void onResume()
     {
         super.onResume();
 
+        registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
         if (ContextCompat.checkSelfPermission(getApplicationContext(), Manifest.permission.CAMERA) == PackageManager.PERMISSION_DENIED)
         {
             ActivityCompat.requestPermissions(this, new String[] {Manifest.permission.CAMERA}, REQUEST_CAMERA);
@@ -392,6 +417,8 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
     {
         super.onPause();
 
+        unregisterReceiver(batteryReceiver);
+
         yolov8ncnn.closeCamera();
     }
 }
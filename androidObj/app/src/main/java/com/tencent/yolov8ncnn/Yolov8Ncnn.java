@@ -15,24 +15,244 @@
 package com.tencent.yolov8ncnn;
 
 import android.content.res.AssetManager;
+import android.graphics.Bitmap;
 import android.view.Surface;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public class Yolov8Ncnn
 {
+    // 模型加载完成回调，在后台加载线程中调用，耗时单位为毫秒
+    public interface ModelLoadCallback
+    {
+        void onModelLoaded(boolean success, long loadMillis, long warmupMillis);
+    }
+
+    // 批量检测每张图片完成时回调，在调用 detectBatch 的线程上按完成顺序调用
+    // status 为 0 表示成功，-1 表示没有模型，-2 表示解码失败；objects 每个对象 DETECT_STRIDE 个值
+    public interface BatchCallback
+    {
+        void onImageDetected(int index, int status, float[] objects);
+    }
+
+    // 视频检测进度，在调用 detectVideo 的线程上约每 500 毫秒回调一次，结束时再回调一次
+    // frames 为已写出的帧数，positionUs 和 durationUs 为视频时间（微秒），fps 为每秒检测的帧数
+    // 回调抛出异常时停止检测，异常在 detectVideo 返回后抛出
+    public interface VideoCallback
+    {
+        void onProgress(int frames, long positionUs, long durationUs, float fps);
+    }
+
+    // 同步加载模型，参数无效或构建失败（如设备没有 gpu 时 cpugpu=1）返回 false，此时保留原来的模型
     public native boolean loadModel(AssetManager mgr, int modelid, int cpugpu);
+
+    // 后台加载并预热新模型，完成后替换当前模型，期间旧模型继续推理
+    // 尚未开始加载的请求会被新请求覆盖，被覆盖的请求不回调
+    public native boolean loadModelAsync(AssetManager mgr, int modelid, int cpugpu, ModelLoadCallback callback);
+
+    // 权重映射 - 直接引用 apk 中未压缩的 .bin，关闭后退回逐块读取，下次加载生效
+    public native void setMmapWeights(boolean enable);
     public native boolean openCamera(int facing);
     public native boolean closeCamera();
     public native boolean setOutputWindow(Surface surface);
     public native void setConfidenceThreshold(float threshold);
+    public native void setNmsThreshold(float threshold);
     
     // 节流控制
     public native void setThrottleInterval(int milliseconds);
     public native int getThrottleInterval();
     
-    // 检测模式控制 - 0: 仅人类, 1: 人类和车辆
+    // 检测模式控制 - 0: 仅人类, 1: 人类和车辆, 2: 自定义类别
     public native void setDetectMode(int mode);
     public native int getDetectMode();
 
+    // 自定义类别 - 掩码按 COCO 类别序号置位，mask[0] 为第 0~63 类，mask[1] 为第 64~79 类
+    public native void setClassMask(long[] mask);
+    public native void setClasses(int[] classes);
+
+    // NMS 模式 - 默认按类别分别抑制，重叠的人和车都会保留；不区分类别时任意类别之间都会互相抑制（原来的行为）
+    public static final int NMS_CLASS_AGNOSTIC = 0;
+    public static final int NMS_PER_CLASS = 1;
+    public native void setNmsMode(int mode);
+    public native int getNmsMode();
+
+    // 感兴趣区域 - 每个区域 4 个值（x，y，w，h），按预览画面宽高归一化，最多 4 个，null 或空数组表示整个画面
+    // 每个区域单独缩放到模型尺寸推理，结果换算回画面坐标并跨区域 NMS，远处的小目标可用同样的计算量检出
+    public native void setRegionsOfInterest(float[] rects);
+
+    // 分块推理 - 每个区域切成 cols x rows 个相互重叠的分块分别推理，原区域仍整体推理一次，1x1 表示不分块
+    // 网格最多 4x4，重叠为分块边长的百分比（0~50）；配合 setCaptureSize 提高分辨率检测远处的小目标
+    // 后台线程数为 0 时依次推理，否则分块分发到线程池并行，大核在各线程之间平分
+    public native void setTiling(int cols, int rows, int overlapPercent);
+    public native void setTileThreads(int threads);
+
+    // 相机采集分辨率 - 默认 640x480，须为相机支持的尺寸，下次 openCamera 生效
+    public native void setCaptureSize(int width, int height);
+
+    // 调度模式 - 0: 固定节流间隔, 1: 按推理耗时、帧间隔和场景变化自适应
+    // 自适应模式下节流间隔为静止场景的最长间隔，为 0 时取 1 秒；占空比预算为推理耗时占比上限（百分比）
+    public static final int SCHEDULE_FIXED = 0;
+    public static final int SCHEDULE_ADAPTIVE = 1;
+    public native void setScheduleMode(int mode);
+    public native int getScheduleMode();
+    public native void setDutyBudget(int percent);
+
+    // 温控和电量调度 - 发热或低电量时逐级降低线程数、改用小核、缩小输入、限制推理间隔、换用 yolov8n，余量恢复后逐级回升
+    public static final int GOVERNOR_LEVEL_NOMINAL = 0;
+    public static final int GOVERNOR_LEVEL_FEWER_THREADS = 1;
+    public static final int GOVERNOR_LEVEL_LITTLE_CORES = 2;
+    public static final int GOVERNOR_LEVEL_SMALL_INPUT = 3;
+    public static final int GOVERNOR_LEVEL_FRAME_SKIP = 4;
+    public static final int GOVERNOR_LEVEL_SMALL_MODEL = 5;
+    public native void setGovernorEnabled(boolean enable);
+    public native void setBatteryState(int level, boolean charging);
+    public native int getGovernorLevel();
+    public native int getThermalStatus(); // PowerManager.THERMAL_STATUS_*，-1 表示不可用（API 30 以下）
+
+    // 流水线模式 - 推理在独立线程进行，预览帧率不受模型耗时限制
+    public native void setPipelineMode(boolean enable);
+    public native boolean getPipelineMode();
+
+    // 跟踪 - 推理帧之间按匀速模型外推目标框，每个目标有稳定的跟踪编号，默认开启
+    public native void setTracking(boolean enable);
+    public native boolean getTracking();
+
+    // 最近一帧绘制的对象，info 每个对象 TRACK_INFO_STRIDE 个值（跟踪编号，类别），boxes 每个对象 TRACK_BOX_STRIDE 个值（x，y，w，h，置信度）
+    // 坐标为预览画面坐标，未跟踪时编号为 -1，返回写出的对象数
+    public static final int TRACK_INFO_STRIDE = 2;
+    public static final int TRACK_BOX_STRIDE = 5;
+    public native int getTrackedObjects(int[] info, float[] boxes);
+
+    // 检测结果环 - 每次推理的结果写入 native 层预分配的三槽位环，以 DirectByteBuffer 共享，布局与 resultring.h 一致
+    // 槽位头部 RESULT_HEADER_WORDS 个 32 位字，之后每个对象 RESULT_OBJECT_WORDS 个字（x，y，w，h，置信度，类别，跟踪编号，保留）
+    public static final int RESULT_NUM_SLOTS = 3;
+    public static final int RESULT_MAX_OBJECTS = 128;
+    public static final int RESULT_HEADER_SEQUENCE = 0;
+    public static final int RESULT_HEADER_COUNT = 1;
+    public static final int RESULT_HEADER_DROPPED = 2;
+    public static final int RESULT_HEADER_FRAME_WIDTH = 3;
+    public static final int RESULT_HEADER_FRAME_HEIGHT = 4;
+    public static final int RESULT_HEADER_TIMESTAMP_LO = 5;
+    public static final int RESULT_HEADER_TIMESTAMP_HI = 6;
+    public static final int RESULT_HEADER_WORDS = 8;
+    public static final int RESULT_OBJECT_WORDS = 8;
+    public static final int RESULT_SLOT_BYTES = (RESULT_HEADER_WORDS + RESULT_MAX_OBJECTS * RESULT_OBJECT_WORDS) * 4;
+
+    private native ByteBuffer getResultBuffer();
+    private native int acquireResultSlot();
+
+    private ByteBuffer resultBuffer;
+
+    // 取走最近一次推理的结果解码到 batch，没有新结果时返回 false 且不改动 batch
+    // 槽位由 native 层原子交换给读者，解码期间不会被改写，只有一次 JNI 调用，不分配对象
+    // 只支持一个消费者，多个线程调用时按此对象串行
+    public synchronized boolean pollResults(DetectionBatch batch)
+    {
+        if (resultBuffer == null)
+        {
+            resultBuffer = getResultBuffer().order(ByteOrder.nativeOrder());
+        }
+
+        int slot = acquireResultSlot();
+        if (slot < 0)
+            return false;
+
+        batch.decode(resultBuffer, slot * RESULT_SLOT_BYTES);
+        return true;
+    }
+
+    // 静态图片检测 - 与相机推理共用当前模型，但使用独立的提取器，不经过推理调度和跟踪，不计入各阶段统计
+    // 置信度、NMS 阈值和类别取自当前设置，感兴趣区域和分块不生效，始终检测整张图片
+    // 结果每个对象 DETECT_STRIDE 个值（x，y，w，h，置信度，类别），坐标为图片像素坐标
+    public static final int DETECT_STRIDE = 6;
+
+    // 检测 ARGB_8888 的 Bitmap，native 层直接锁定像素，不做 Java 层拷贝，返回写出的对象数，失败返回 -1
+    public native int detectBitmap(Bitmap bitmap, float[] out);
+
+    // 批量检测图片文件，threads 个解码线程和推理线程流水进行，阻塞直到全部完成，返回每秒处理的图片数
+    // 大核在推理线程之间平分，可在后台线程长时间运行；整批使用开始时的模型，期间切换模型不等待也不影响本批结果，旧模型在本批结束后释放
+    // 回调抛出异常时不再解码和推理剩余的图片，异常在 detectBatch 返回后抛出
+    public native float detectBatch(String[] paths, int threads, BatchCallback callback);
+
+    // 离线检测视频文件，MediaCodec 硬解后按相机路径的 nv21 预处理，threads 个推理线程各处理一帧
+    // stride 为 0 只检测关键帧，为 n 时每 n 帧检测一帧；结果写入 outPath 的 CSV，每行 frame,timestamp_us,label,prob,x,y,w,h
+    // 没有对象的帧写一行 label 为 -1 的记录；返回每秒检测的帧数，-1 表示没有模型或视频无法解码，-2 表示无法写入输出文件
+    // 整段视频使用开始时的模型，期间切换模型不影响输出
+    public static final int VIDEO_STRIDE_KEYFRAMES = 0;
+
+    public native float detectVideo(String path, String outPath, int threads, int stride, VideoCallback callback);
+
+    // 运动门控 - 固定机位下按 Y 平面帧差跳过静止帧的推理，threshold 为变化格子占比（如 0.01），默认关闭
+    // 门控比例和每帧耗时见 getStats 的 STAT_GAUGE_GATE_* 和 STAT_MOTION_GATE
+    public native void setMotionGate(boolean enable, float threshold);
+    public native boolean getMotionGate();
+
+    // 帧计数 - 已渲染、已推理、被丢弃
+    public native long getRenderedFrames();
+    public native long getInferredFrames();
+    public native long getDroppedFrames();
+
+    // 模型锁争用次数 - 参数设置不再加锁，只有模型加载与推理之间会争用
+    public native long getLockContentions();
+
+    // 各阶段耗时统计，与 native 层 stats.h 的顺序一致
+    public static final int STAT_CAMERA_ACQUIRE = 0;
+    public static final int STAT_NV21_REPACK = 1;
+    public static final int STAT_CROP_ROTATE = 2;
+    public static final int STAT_YUV2RGB = 3;
+    public static final int STAT_PREPROCESS = 4;
+    public static final int STAT_EXTRACT = 5;
+    public static final int STAT_DECODE = 6;
+    public static final int STAT_NMS = 7;
+    public static final int STAT_DRAW = 8;
+    public static final int STAT_BLIT = 9;
+    public static final int STAT_MOTION_GATE = 10;
+    public static final int STAT_COUNT = 11;
+
+    // 每个阶段的字段：次数、平均、p50、p90、p99、最大，时间单位为微秒
+    public static final int STAT_FIELD_COUNT = 0;
+    public static final int STAT_FIELD_MEAN = 1;
+    public static final int STAT_FIELD_P50 = 2;
+    public static final int STAT_FIELD_P90 = 3;
+    public static final int STAT_FIELD_P99 = 4;
+    public static final int STAT_FIELD_MAX = 5;
+    public static final int STAT_NUM_FIELDS = 6;
+
+    // 调度器计量，位于各阶段统计之后，out[STAT_GAUGE_BASE + g]
+    public static final int STAT_GAUGE_BASE = STAT_COUNT * STAT_NUM_FIELDS;
+    public static final int STAT_GAUGE_SCHED_INTERVAL = 0; // 当前推理间隔（微秒），0 为逐帧
+    public static final int STAT_GAUGE_SCHED_REASON = 1; // 当前间隔的原因 REASON_*
+    public static final int STAT_GAUGE_SCENE_ACTIVITY = 2; // 场景变化程度，千分比
+    public static final int STAT_GAUGE_EXTRACT_AVG = 3; // 推理耗时均值（微秒）
+    public static final int STAT_GAUGE_FRAME_INTERVAL = 4; // 帧间隔均值（微秒）
+    public static final int STAT_GAUGE_SCHED_RUN = 5; // 执行推理的帧数
+    public static final int STAT_GAUGE_SCHED_SKIP = 6; // 跳过推理的帧数
+    public static final int STAT_GAUGE_REASON_FIXED = 7; // 以下为按原因统计的推理次数，顺序同 REASON_*
+    public static final int STAT_GAUGE_GOVERNOR_LEVEL = 13; // GOVERNOR_LEVEL_*
+    public static final int STAT_GAUGE_THERMAL_STATUS = 14; // 温控状态，-1 表示不可用
+    public static final int STAT_GAUGE_GATE_PASS = 15; // 运动门控放行的帧数
+    public static final int STAT_GAUGE_GATE_SKIP = 16; // 运动门控判定静止的帧数，与放行帧数之比即门控比例
+    public static final int STAT_GAUGE_GATE_CHANGED = 17; // 最近一帧变化格子的占比，千分比
+    public static final int STAT_NUM_GAUGES = 18;
+    public static final int STATS_LENGTH = STAT_GAUGE_BASE + STAT_NUM_GAUGES;
+
+    // 调度原因
+    public static final int REASON_FIXED = 0;
+    public static final int REASON_WARMUP = 1;
+    public static final int REASON_SCENE_CHANGE = 2;
+    public static final int REASON_SCENE_STATIC = 3;
+    public static final int REASON_BUDGET = 4;
+    public static final int REASON_GOVERNOR = 5;
+
+    // 第 i 阶段的字段 f 位于 out[i * STAT_NUM_FIELDS + f]，out 由调用方分配并复用，长度不足 STATS_LENGTH 时只写出前面部分，返回 out 本身
+    public native long[] getStats(long[] out);
+    // 清空各阶段耗时和运行、跳过、门控等累计计数，调度档位、推理间隔、温控状态等当前状态保留
+    public native void resetStats();
+
+    // 上一帧为构造 NV21 拷贝的字节数，0 表示相机缓冲被直接引用
+    public native int getCameraCopyBytes();
+
     static {
         System.loadLibrary("yolov8ncnn");
     }
@@ -0,0 +1,159 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "alloc_check.h"
+
+#include <algorithm>
+
+#if YOLO_ALLOC_CHECK
+#include <stdlib.h>
+
+#include <atomic>
+#include <new>
+
+// 进程范围的计数，工作线程上的分配也能看到
+static std::atomic<int> alloc_check_depth(0);
+static std::atomic<int> alloc_check_count(0);
+
+// 每个包装分配器最多记录的指针数，超出后新指针一律计为分配，只会多报
+static const size_t alloc_check_max_pointers = 4096;
+
+// 替换全局 operator new，只计数不改变分配行为
+void* operator new(size_t size)
+{
+    if (alloc_check_depth.load(std::memory_order_relaxed) > 0)
+        alloc_check_count.fetch_add(1, std::memory_order_relaxed);
+
+    void* ptr = malloc(size ? size : 1);
+    if (!ptr)
+        abort();
+
+    return ptr;
+}
+
+void* operator new[](size_t size)
+{
+    return operator new(size);
+}
+
+void operator delete(void* ptr) noexcept
+{
+    free(ptr);
+}
+
+void operator delete[](void* ptr) noexcept
+{
+    free(ptr);
+}
+
+void operator delete(void* ptr, size_t) noexcept
+{
+    free(ptr);
+}
+
+void operator delete[](void* ptr, size_t) noexcept
+{
+    free(ptr);
+}
+
+void alloc_check_begin()
+{
+    if (alloc_check_depth.fetch_add(1) == 0)
+        alloc_check_count = 0;
+}
+
+int alloc_check_end()
+{
+    alloc_check_depth--;
+
+    return alloc_check_count;
+}
+
+void alloc_check_buffer(const void* before, const void* after)
+{
+    if (alloc_check_depth.load(std::memory_order_relaxed) > 0 && after && after != before)
+        alloc_check_count.fetch_add(1, std::memory_order_relaxed);
+}
+
+AllocCheckAllocator::AllocCheckAllocator()
+{
+    allocator = 0;
+    seen.reserve(alloc_check_max_pointers);
+}
+
+void AllocCheckAllocator::reset()
+{
+    ncnn::MutexLockGuard g(lock);
+    seen.clear();
+}
+
+// 预热期间也记录指针，计数窗口内内存池命中返回的都是见过的指针
+void* AllocCheckAllocator::fastMalloc(size_t size)
+{
+    void* ptr = allocator ? allocator->fastMalloc(size) : ncnn::fastMalloc(size);
+
+    ncnn::MutexLockGuard g(lock);
+
+    if (std::find(seen.begin(), seen.end(), ptr) != seen.end())
+        return ptr;
+
+    if (seen.size() < alloc_check_max_pointers)
+        seen.push_back(ptr);
+
+    if (alloc_check_depth.load(std::memory_order_relaxed) > 0)
+        alloc_check_count.fetch_add(1, std::memory_order_relaxed);
+
+    return ptr;
+}
+#else // YOLO_ALLOC_CHECK
+void alloc_check_begin()
+{
+}
+
+int alloc_check_end()
+{
+    return -1;
+}
+
+void alloc_check_buffer(const void* before, const void* after)
+{
+}
+
+AllocCheckAllocator::AllocCheckAllocator()
+{
+    allocator = 0;
+}
+
+void AllocCheckAllocator::reset()
+{
+}
+
+void* AllocCheckAllocator::fastMalloc(size_t size)
+{
+    return allocator ? allocator->fastMalloc(size) : ncnn::fastMalloc(size);
+}
+#endif // YOLO_ALLOC_CHECK
+
+void AllocCheckAllocator::set_allocator(ncnn::Allocator* _allocator)
+{
+    allocator = _allocator;
+}
+
+void AllocCheckAllocator::fastFree(void* ptr)
+{
+    if (allocator)
+        allocator->fastFree(ptr);
+    else
+        ncnn::fastFree(ptr);
+}
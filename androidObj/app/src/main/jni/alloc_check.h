@@ -0,0 +1,60 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef ALLOC_CHECK_H
+#define ALLOC_CHECK_H
+
+#include <stddef.h>
+
+#include <vector>
+
+#include <allocator.h>
+
+// 统计 begin/end 之间的堆分配次数，仅在定义了 YOLO_ALLOC_CHECK 的构建（Debug）中生效，否则 end 恒返回 -1
+// 计数是进程范围的，分块并行的工作线程也计入，同一时段其他线程（相机、UI）的分配同样计入，只会多报
+// 覆盖三类分配：
+//   operator new / new[]
+//   经 AllocCheckAllocator 包装的 ncnn 分配器上的内存池未命中（blob 和工作区，包括 in、out 和各层的中间结果）
+//   alloc_check_buffer 报告的张量重新分配（cv::Mat 和不带分配器的 ncnn::Mat，如 resized 和 nv21 路径的 in_pad）
+// 不覆盖：其他直接调用 malloc、ncnn::fastMalloc、cv::fastMalloc 的分配，gpu 上的分配，
+// 以及内存池释放后 malloc 恰好返回同一地址的情况
+void alloc_check_begin();
+int alloc_check_end();
+
+// 张量 create 前后的数据指针不同时计为一次分配
+void alloc_check_buffer(const void* before, const void* after);
+
+// 包装一个 ncnn 分配器，内层返回从未见过的指针时计为一次分配，即内存池未命中
+// 只在 YOLO_ALLOC_CHECK 构建中记录指针，否则直接转发
+class AllocCheckAllocator : public ncnn::Allocator
+{
+public:
+    AllocCheckAllocator();
+
+    void set_allocator(ncnn::Allocator* allocator);
+
+    // 内层内存池 clear 后调用，释放过的地址可能被重新分配
+    void reset();
+
+    virtual void* fastMalloc(size_t size);
+    virtual void fastFree(void* ptr);
+
+private:
+    ncnn::Allocator* allocator;
+
+    ncnn::Mutex lock;
+    std::vector<void*> seen;
+};
+
+#endif // ALLOC_CHECK_H
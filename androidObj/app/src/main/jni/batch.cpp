@@ -0,0 +1,208 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "batch.h"
+
+#include <algorithm>
+
+#include <opencv2/imgcodecs/imgcodecs.hpp>
+
+#include "stats.h"
+
+BatchPipeline::BatchPipeline(DetectFunc _detect, ResultFunc _result, void* _context)
+{
+    detect = _detect;
+    result = _result;
+    context = _context;
+
+    paths = 0;
+    queue_capacity = 0;
+    next_decode = 0;
+    decoders_running = 0;
+    cancelled = false;
+}
+
+float BatchPipeline::run(const std::vector<std::string>& _paths, int num_threads)
+{
+    const int num_images = (int)_paths.size();
+    if (num_images == 0)
+        return 0.f;
+
+    num_threads = std::max(num_threads, 1);
+
+    paths = &_paths;
+    queue.clear();
+    results.clear();
+    next_decode = 0;
+    decoders_running = num_threads;
+    cancelled = false;
+
+    // 每个推理线程最多积压两张，大图解码后的内存有上限
+    queue_capacity = num_threads * 2;
+
+    const int64_t t0 = stats_now_us();
+
+    std::vector<ncnn::Thread*> threads;
+    for (int i = 0; i < num_threads; i++)
+    {
+        threads.push_back(new ncnn::Thread(decode_entry, this));
+        threads.push_back(new ncnn::Thread(infer_entry, this));
+    }
+
+    // 在调用线程上回调，Java 层不必关心工作线程
+    int done = 0;
+    while (done < num_images)
+    {
+        Result r;
+        {
+            ncnn::MutexLockGuard g(result_lock);
+
+            while (results.empty())
+            {
+                result_ready.wait(result_lock);
+            }
+
+            r.index = results.front().index;
+            r.status = results.front().status;
+            r.objects.swap(results.front().objects);
+            results.pop_front();
+        }
+
+        done++;
+
+        if (!result(context, r.index, r.status, r.objects))
+        {
+            cancel();
+            break;
+        }
+    }
+
+    const int64_t elapsed_us = stats_now_us() - t0;
+
+    for (size_t i = 0; i < threads.size(); i++)
+    {
+        threads[i]->join();
+        delete threads[i];
+    }
+
+    paths = 0;
+
+    return elapsed_us > 0 ? done * 1000000.f / elapsed_us : 0.f;
+}
+
+// 丢弃已解码未推理的图片，解码线程不再领取新图片，正在推理的图片完成后推理线程退出
+void BatchPipeline::cancel()
+{
+    ncnn::MutexLockGuard g(queue_lock);
+
+    cancelled = true;
+    queue.clear();
+    queue_not_full.broadcast();
+    queue_not_empty.broadcast();
+}
+
+void* BatchPipeline::decode_entry(void* args)
+{
+    ((BatchPipeline*)args)->decode_loop();
+    return 0;
+}
+
+void* BatchPipeline::infer_entry(void* args)
+{
+    ((BatchPipeline*)args)->infer_loop();
+    return 0;
+}
+
+void BatchPipeline::decode_loop()
+{
+    const int num_images = (int)paths->size();
+
+    while (1)
+    {
+        int index;
+        {
+            ncnn::MutexLockGuard g(queue_lock);
+            if (cancelled)
+                break;
+
+            index = next_decode++;
+        }
+
+        if (index >= num_images)
+            break;
+
+        // 解码失败时放入空图片，由推理线程报告
+        Item item;
+        item.index = index;
+        item.image = cv::imread((*paths)[index], cv::IMREAD_COLOR);
+
+        ncnn::MutexLockGuard g(queue_lock);
+
+        while ((int)queue.size() >= queue_capacity && !cancelled)
+        {
+            queue_not_full.wait(queue_lock);
+        }
+
+        if (cancelled)
+            break;
+
+        queue.push_back(item);
+        queue_not_empty.signal();
+    }
+
+    // 最后一个解码线程退出时唤醒所有等待的推理线程
+    ncnn::MutexLockGuard g(queue_lock);
+    decoders_running--;
+    if (decoders_running == 0)
+        queue_not_empty.broadcast();
+}
+
+void BatchPipeline::infer_loop()
+{
+    std::vector<Object> objects;
+
+    while (1)
+    {
+        Item item;
+        {
+            ncnn::MutexLockGuard g(queue_lock);
+
+            while (queue.empty() && decoders_running > 0 && !cancelled)
+            {
+                queue_not_empty.wait(queue_lock);
+            }
+
+            if (queue.empty() || cancelled)
+                break;
+
+            item = queue.front();
+            queue.pop_front();
+            queue_not_full.signal();
+        }
+
+        int status = STATUS_DECODE_FAILED;
+        objects.clear();
+        if (!item.image.empty())
+            status = detect(context, item.image, objects);
+
+        ncnn::MutexLockGuard g(result_lock);
+
+        Result r;
+        r.index = item.index;
+        r.status = status;
+        results.push_back(r);
+        results.back().objects.swap(objects);
+        result_ready.signal();
+    }
+}
@@ -0,0 +1,92 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef BATCH_H
+#define BATCH_H
+
+#include <deque>
+#include <string>
+#include <vector>
+
+#include <opencv2/core/core.hpp>
+
+#include <platform.h>
+
+#include "yolo.h"
+
+// 批量检测图片文件的流水线
+// 解码线程读入图片放进有界队列，推理线程取出检测，结果交回调用线程依次回调
+// 解码和推理在不同线程上重叠进行，队列满时解码线程等待，内存占用不随图片数增长
+class BatchPipeline
+{
+public:
+    // 检测一张 BGR 图片，返回 0 成功，其他值原样作为结果状态
+    typedef int (*DetectFunc)(void* context, const cv::Mat& bgr, std::vector<Object>& objects);
+
+    // 一张图片完成，status 为 STATUS_* 或 DetectFunc 的返回值，在调用 run 的线程上执行
+    // 返回 false 时取消剩余的图片，不再解码和推理
+    typedef bool (*ResultFunc)(void* context, int index, int status, const std::vector<Object>& objects);
+
+    static const int STATUS_OK = 0;
+    static const int STATUS_DECODE_FAILED = -2;
+
+    BatchPipeline(DetectFunc detect, ResultFunc result, void* context);
+
+    // 阻塞直到全部完成或被取消，num_threads 为推理线程数，解码线程数相同，返回每秒处理的图片数
+    float run(const std::vector<std::string>& paths, int num_threads);
+
+protected:
+    static void* decode_entry(void* args);
+    static void* infer_entry(void* args);
+    void decode_loop();
+    void infer_loop();
+    void cancel();
+
+private:
+    DetectFunc detect;
+    ResultFunc result;
+    void* context;
+
+    const std::vector<std::string>* paths;
+
+    struct Item
+    {
+        int index;
+        cv::Mat image;
+    };
+
+    struct Result
+    {
+        int index;
+        int status;
+        std::vector<Object> objects;
+    };
+
+    // 解码后待推理的图片
+    ncnn::Mutex queue_lock;
+    ncnn::ConditionVariable queue_not_empty;
+    ncnn::ConditionVariable queue_not_full;
+    std::deque<Item> queue;
+    int queue_capacity;
+    int next_decode;
+    int decoders_running;
+    bool cancelled;
+
+    // 待回调的结果
+    ncnn::Mutex result_lock;
+    ncnn::ConditionVariable result_ready;
+    std::deque<Result> results;
+};
+
+#endif // BATCH_H
@@ -0,0 +1,124 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+// DFL 解码微基准：旧的逐 proposal 创建 Softmax 层 vs 融合解码
+// 用法: adb push dfl_bench /data/local/tmp && adb shell /data/local/tmp/dfl_bench [num_proposals] [loops]
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <math.h>
+
+#include <algorithm>
+#include <vector>
+
+#include <benchmark.h>
+#include <layer.h>
+#include <net.h>
+
+#include "../postprocess.h"
+
+static const int reg_max_1 = 16;
+
+// 与改动前 generate_proposals 中的实现保持一致
+static void dfl_decode_legacy(const float* row, float* pred_ltrb)
+{
+    std::vector<float> tmp(row, row + 4 * reg_max_1);
+    ncnn::Mat bbox_pred(reg_max_1, 4, (void*)tmp.data());
+    {
+        ncnn::Layer* softmax = ncnn::create_layer("Softmax");
+
+        ncnn::ParamDict pd;
+        pd.set(0, 1); // axis
+        pd.set(1, 1);
+        softmax->load_param(pd);
+
+        ncnn::Option opt;
+        opt.num_threads = 1;
+        opt.use_packing_layout = false;
+
+        softmax->create_pipeline(opt);
+
+        softmax->forward_inplace(bbox_pred, opt);
+
+        softmax->destroy_pipeline(opt);
+
+        delete softmax;
+    }
+
+    for (int k = 0; k < 4; k++)
+    {
+        float dis = 0.f;
+        const float* dis_after_sm = bbox_pred.row(k);
+        for (int l = 0; l < reg_max_1; l++)
+        {
+            dis += l * dis_after_sm[l];
+        }
+
+        pred_ltrb[k] = dis;
+    }
+}
+
+int main(int argc, char** argv)
+{
+    int num_proposals = argc > 1 ? atoi(argv[1]) : 2000;
+    int loops = argc > 2 ? atoi(argv[2]) : 20;
+
+    // 模拟检测头输出的 logits
+    std::vector<float> preds(num_proposals * 4 * reg_max_1);
+    srand(7767517);
+    for (size_t i = 0; i < preds.size(); i++)
+    {
+        preds[i] = (rand() / (float)RAND_MAX) * 16.f - 8.f;
+    }
+
+    std::vector<float> ltrb_legacy(num_proposals * 4);
+    std::vector<float> ltrb_scalar(num_proposals * 4);
+    std::vector<float> ltrb_fused(num_proposals * 4);
+
+    double t0 = ncnn::get_current_time();
+    for (int n = 0; n < loops; n++)
+    {
+        for (int i = 0; i < num_proposals; i++)
+            dfl_decode_legacy(&preds[i * 4 * reg_max_1], &ltrb_legacy[i * 4]);
+    }
+    double t1 = ncnn::get_current_time();
+    for (int n = 0; n < loops; n++)
+    {
+        for (int i = 0; i < num_proposals; i++)
+            dfl_decode_ltrb_scalar(&preds[i * 4 * reg_max_1], reg_max_1, &ltrb_scalar[i * 4]);
+    }
+    double t2 = ncnn::get_current_time();
+    for (int n = 0; n < loops; n++)
+    {
+        for (int i = 0; i < num_proposals; i++)
+            dfl_decode_ltrb(&preds[i * 4 * reg_max_1], reg_max_1, &ltrb_fused[i * 4]);
+    }
+    double t3 = ncnn::get_current_time();
+
+    float max_diff_scalar = 0.f;
+    float max_diff_fused = 0.f;
+    for (int i = 0; i < num_proposals * 4; i++)
+    {
+        max_diff_scalar = std::max(max_diff_scalar, fabsf(ltrb_scalar[i] - ltrb_legacy[i]));
+        max_diff_fused = std::max(max_diff_fused, fabsf(ltrb_fused[i] - ltrb_legacy[i]));
+    }
+
+    const double total = (double)num_proposals * loops;
+    fprintf(stderr, "proposals=%d loops=%d\n", num_proposals, loops);
+    fprintf(stderr, "legacy softmax layer  %12.0f proposals/s\n", total / (t1 - t0) * 1000);
+    fprintf(stderr, "fused scalar          %12.0f proposals/s  max_diff=%g\n", total / (t2 - t1) * 1000, max_diff_scalar);
+    fprintf(stderr, "fused                 %12.0f proposals/s  max_diff=%g\n", total / (t3 - t2) * 1000, max_diff_fused);
+
+    return 0;
+}
@@ -0,0 +1,342 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+// 后处理回归测试：记录固定图片集的网络原始输出，之后只重放后处理（候选框解码、letterbox 换算、NMS），与基准结果按 IoU 和置信度容差比较
+// 基准结果由完整的 detect 路径生成，重放走独立的 postprocess，两者的差异也会被检出
+// 重放不需要模型，可在没有手机的 Linux 主机上运行，同时给出后处理单独的耗时
+// 用法: ./golden dump <image_dir> <data_dir> [modeltype] [target_size] [prob_threshold]   记录输出和基准结果，需要模型
+//       ./golden check <data_dir> [min_iou] [prob_tol] [loops]                          重放并比较，不一致时返回 1
+//       ./golden update <data_dir>                                                      有意改变结果后重新生成基准结果
+// bench/golden_data 中提交了 golden_fixture 生成的合成数据，ctest 的 golden_check 对其运行 check
+
+#include <dirent.h>
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <algorithm>
+#include <string>
+#include <vector>
+
+#include <opencv2/imgcodecs/imgcodecs.hpp>
+#include <opencv2/imgproc/imgproc.hpp>
+
+#include "../stats.h"
+#include "../yolo.h"
+#include "tensor_io.h"
+
+// 目录下以 suffix 结尾的文件名（不含目录），按名称排序
+static std::vector<std::string> list_dir(const char* dir, const char* suffix)
+{
+    std::vector<std::string> names;
+
+    DIR* d = opendir(dir);
+    if (!d)
+        return names;
+
+    const size_t suffix_len = strlen(suffix);
+
+    struct dirent* e;
+    while ((e = readdir(d)) != 0)
+    {
+        const size_t len = strlen(e->d_name);
+        if (e->d_name[0] == '.' || len < suffix_len || strcmp(e->d_name + len - suffix_len, suffix) != 0)
+            continue;
+
+        names.push_back(e->d_name);
+    }
+    closedir(d);
+
+    std::sort(names.begin(), names.end());
+    return names;
+}
+
+// 去掉扩展名
+static std::string stem(const std::string& name)
+{
+    const size_t dot = name.rfind('.');
+    return dot == std::string::npos ? name : name.substr(0, dot);
+}
+
+// 基准结果为文本，每行一个对象：label prob x y w h
+static int save_golden(const std::string& path, const std::vector<Object>& objects)
+{
+    FILE* fp = fopen(path.c_str(), "wb");
+    if (!fp)
+        return -1;
+
+    for (size_t i = 0; i < objects.size(); i++)
+    {
+        const Object& obj = objects[i];
+        fprintf(fp, "%d %.6f %.3f %.3f %.3f %.3f\n", obj.label, obj.prob, obj.rect.x, obj.rect.y, obj.rect.width, obj.rect.height);
+    }
+
+    fclose(fp);
+    return 0;
+}
+
+static int load_golden(const std::string& path, std::vector<Object>& objects)
+{
+    FILE* fp = fopen(path.c_str(), "rb");
+    if (!fp)
+        return -1;
+
+    objects.clear();
+
+    Object obj;
+    while (fscanf(fp, "%d %f %f %f %f %f", &obj.label, &obj.prob, &obj.rect.x, &obj.rect.y, &obj.rect.width, &obj.rect.height) == 6)
+    {
+        objects.push_back(obj);
+    }
+
+    fclose(fp);
+    return 0;
+}
+
+static float iou(const cv::Rect_<float>& a, const cv::Rect_<float>& b)
+{
+    const float inter = (a & b).area();
+    const float uni = a.area() + b.area() - inter;
+    return uni > 0.f ? inter / uni : (a == b ? 1.f : 0.f);
+}
+
+// 按后处理的设置构造实例，回归比较覆盖全部 80 类
+static void setup(Yolo& yolo, const TensorHeader& header)
+{
+    int class_ids[Yolo::NUM_CLASS];
+    for (int i = 0; i < Yolo::NUM_CLASS; i++)
+    {
+        class_ids[i] = i;
+    }
+
+    yolo.setClasses(class_ids, Yolo::NUM_CLASS);
+    yolo.setProbThreshold(header.prob_threshold);
+    yolo.setNmsThreshold(header.nms_threshold);
+}
+
+// 每个基准对象贪心匹配同类别中 IoU 最大且未被匹配的对象，返回不一致的个数
+static int compare(const std::string& name, const std::vector<Object>& golden, const std::vector<Object>& objects, float min_iou, float prob_tol)
+{
+    int mismatches = 0;
+
+    std::vector<char> matched(objects.size(), 0);
+    for (size_t i = 0; i < golden.size(); i++)
+    {
+        const Object& g = golden[i];
+
+        int best = -1;
+        float best_iou = 0.f;
+        for (size_t j = 0; j < objects.size(); j++)
+        {
+            if (matched[j] || objects[j].label != g.label)
+                continue;
+
+            const float v = iou(g.rect, objects[j].rect);
+            if (v > best_iou)
+            {
+                best = (int)j;
+                best_iou = v;
+            }
+        }
+
+        if (best < 0 || best_iou < min_iou || fabsf(objects[best].prob - g.prob) > prob_tol)
+        {
+            fprintf(stderr, "%s: golden #%d label=%d prob=%.4f [%.1f %.1f %.1f %.1f] ", name.c_str(), (int)i, g.label, g.prob, g.rect.x, g.rect.y, g.rect.width, g.rect.height);
+            if (best < 0)
+                fprintf(stderr, "missing\n");
+            else
+                fprintf(stderr, "got prob=%.4f iou=%.4f\n", objects[best].prob, best_iou);
+
+            mismatches++;
+        }
+
+        if (best >= 0)
+            matched[best] = 1;
+    }
+
+    for (size_t j = 0; j < objects.size(); j++)
+    {
+        if (matched[j])
+            continue;
+
+        const Object& obj = objects[j];
+        fprintf(stderr, "%s: extra label=%d prob=%.4f [%.1f %.1f %.1f %.1f]\n", name.c_str(), obj.label, obj.prob, obj.rect.x, obj.rect.y, obj.rect.width, obj.rect.height);
+        mismatches++;
+    }
+
+    return mismatches;
+}
+
+static int dump(const char* image_dir, const char* data_dir, const char* modeltype, int target_size, float prob_threshold)
+{
+    const float mean_vals[3] = {103.53f, 116.28f, 123.675f};
+    const float norm_vals[3] = {1 / 255.f, 1 / 255.f, 1 / 255.f};
+
+    TensorHeader header;
+    memset(&header, 0, sizeof(header));
+    header.prob_threshold = prob_threshold;
+    header.nms_threshold = Yolo().getConfig().nms_threshold;
+
+    Yolo yolo;
+    if (yolo.load(modeltype, target_size, mean_vals, norm_vals, false) != 0)
+    {
+        fprintf(stderr, "load yolov8%s failed\n", modeltype);
+        return -1;
+    }
+
+    setup(yolo, header);
+
+    const std::vector<std::string> names = list_dir(image_dir, "");
+
+    int count = 0;
+    for (size_t i = 0; i < names.size(); i++)
+    {
+        cv::Mat bgr = cv::imread(std::string(image_dir) + "/" + names[i], cv::IMREAD_COLOR);
+        if (bgr.empty())
+            continue;
+
+        cv::Mat rgb;
+        cv::cvtColor(bgr, rgb, cv::COLOR_BGR2RGB);
+
+        ncnn::Mat out;
+        if (yolo.extract_raw(rgb, out, header.target_size) != 0)
+            return -1;
+
+        header.width = rgb.cols;
+        header.height = rgb.rows;
+
+        // 默认不节流，detect 每次都推理
+        std::vector<Object> objects;
+        if (yolo.detect(rgb, objects) != 0)
+        {
+            fprintf(stderr, "detect %s skipped\n", names[i].c_str());
+            return -1;
+        }
+
+        const std::string base = std::string(data_dir) + "/" + stem(names[i]);
+        if (save_tensor((base + ".out").c_str(), header, out) != 0 || save_golden(base + ".golden", objects) != 0)
+        {
+            fprintf(stderr, "write %s failed\n", base.c_str());
+            return -1;
+        }
+
+        fprintf(stderr, "%s %dx%d out=%dx%dx%d objects=%d\n", names[i].c_str(), header.width, header.height, out.w, out.h, out.c, (int)objects.size());
+        count++;
+    }
+
+    fprintf(stderr, "dumped %d images to %s\n", count, data_dir);
+    return count > 0 ? 0 : -1;
+}
+
+static int replay(const char* data_dir, bool update, float min_iou, float prob_tol, int loops)
+{
+    const std::vector<std::string> names = list_dir(data_dir, ".out");
+    if (names.empty())
+    {
+        fprintf(stderr, "no .out in %s\n", data_dir);
+        return -1;
+    }
+
+    int failed = 0;
+    int64_t total_us = 0;
+    int total_frames = 0;
+
+    for (size_t i = 0; i < names.size(); i++)
+    {
+        const std::string base = std::string(data_dir) + "/" + stem(names[i]);
+
+        TensorHeader header;
+        ncnn::Mat out;
+        if (load_tensor((base + ".out").c_str(), header, out) != 0)
+        {
+            fprintf(stderr, "%s: bad tensor file\n", names[i].c_str());
+            failed++;
+            continue;
+        }
+
+        Yolo yolo;
+        setup(yolo, header);
+
+        std::vector<Object> objects;
+        yolo.postprocess(out, header.width, header.height, header.target_size, objects);
+
+        if (update)
+        {
+            save_golden(base + ".golden", objects);
+            continue;
+        }
+
+        std::vector<Object> golden;
+        if (load_golden(base + ".golden", golden) != 0)
+        {
+            fprintf(stderr, "%s: missing golden\n", names[i].c_str());
+            failed++;
+            continue;
+        }
+
+        if (compare(names[i], golden, objects, min_iou, prob_tol) != 0)
+            failed++;
+
+        // 首次重放已建立网格缓存，之后的计时只含稳态开销
+        const int64_t t0 = stats_now_us();
+        for (int n = 0; n < loops; n++)
+        {
+            yolo.postprocess(out, header.width, header.height, header.target_size, objects);
+        }
+        total_us += stats_now_us() - t0;
+        total_frames += loops;
+    }
+
+    if (update)
+    {
+        fprintf(stderr, "updated %d golden files in %s\n", (int)names.size(), data_dir);
+        return 0;
+    }
+
+    fprintf(stderr, "%d/%d files match (min_iou=%.3f prob_tol=%.4f)\n", (int)names.size() - failed, (int)names.size(), min_iou, prob_tol);
+    if (total_frames > 0)
+        fprintf(stderr, "postprocess %.3f us/frame over %d frames\n", (double)total_us / total_frames, total_frames);
+
+    return failed == 0 ? 0 : 1;
+}
+
+int main(int argc, char** argv)
+{
+    if (argc >= 4 && strcmp(argv[1], "dump") == 0)
+    {
+        const char* modeltype = argc > 4 ? argv[4] : "n";
+        const int target_size = argc > 5 ? atoi(argv[5]) : 320;
+        const float prob_threshold = argc > 6 ? (float)atof(argv[6]) : Yolo().getConfig().prob_threshold;
+        return dump(argv[2], argv[3], modeltype, target_size, prob_threshold) == 0 ? 0 : 1;
+    }
+
+    if (argc >= 3 && strcmp(argv[1], "check") == 0)
+    {
+        const float min_iou = argc > 3 ? (float)atof(argv[3]) : 0.99f;
+        const float prob_tol = argc > 4 ? (float)atof(argv[4]) : 1e-3f;
+        const int loops = argc > 5 ? std::max(atoi(argv[5]), 0) : 100;
+        return replay(argv[2], false, min_iou, prob_tol, loops);
+    }
+
+    if (argc >= 3 && strcmp(argv[1], "update") == 0)
+    {
+        return replay(argv[2], true, 0.f, 0.f, 0) == 0 ? 0 : 1;
+    }
+
+    fprintf(stderr, "Usage: %s dump <image_dir> <data_dir> [modeltype] [target_size] [prob_threshold]\n", argv[0]);
+    fprintf(stderr, "       %s check <data_dir> [min_iou] [prob_tol] [loops]\n", argv[0]);
+    fprintf(stderr, "       %s update <data_dir>\n", argv[0]);
+    return 1;
+}
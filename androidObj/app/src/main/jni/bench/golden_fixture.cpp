@@ -0,0 +1,241 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+// 生成 bench/golden_data 中提交的合成回归数据，不需要模型
+// 在网络输出中按 anchor 直接写入类别得分和 DFL 分布，基准结果用精确的 softmax、sigmoid 和 letterbox 换算独立算出，不经过 Yolo 的后处理
+// 覆盖：横竖两种 letterbox 填充、三种 stride、同类重叠被抑制、不同类别重叠都保留、低于阈值丢弃、超出画面截断
+// 用法: ./golden_fixture <data_dir>
+
+#include <math.h>
+#include <stdio.h>
+#include <string.h>
+
+#include <algorithm>
+#include <string>
+#include <vector>
+
+#include "tensor_io.h"
+
+static const int num_class = 80;
+static const int reg_max = 16;
+static const int num_outputs = 4 * reg_max + num_class;
+
+// 写入的对象：所在的 stride 和网格，四边距离（单位为 stride，取整数对应 DFL 的一个分箱），类别得分
+struct Anchor
+{
+    int stride;
+    int grid0;
+    int grid1;
+    int ltrb[4];
+    int label;
+    float logit;
+    bool kept; // 经过阈值和 NMS 后是否应保留
+};
+
+struct Fixture
+{
+    const char* name;
+    int width;
+    int height;
+    std::vector<Anchor> anchors;
+};
+
+static Anchor anchor(int stride, int grid0, int grid1, int l, int t, int r, int b, int label, float logit, bool kept)
+{
+    Anchor a;
+    a.stride = stride;
+    a.grid0 = grid0;
+    a.grid1 = grid1;
+    a.ltrb[0] = l;
+    a.ltrb[1] = t;
+    a.ltrb[2] = r;
+    a.ltrb[3] = b;
+    a.label = label;
+    a.logit = logit;
+    a.kept = kept;
+    return a;
+}
+
+// 峰值分箱的 logit，其余分箱为 0
+static const float peak_logit = 12.f;
+
+// 与网络输出相同的 softmax 期望，分布只有一个峰值
+static double dfl_expectation(int bin)
+{
+    double sum = 0.0;
+    double dis = 0.0;
+    for (int l = 0; l < reg_max; l++)
+    {
+        const double e = exp(l == bin ? peak_logit : 0.0);
+        sum += e;
+        dis += l * e;
+    }
+
+    return dis / sum;
+}
+
+static int write_fixture(const std::string& dir, const Fixture& f, int target_size, float prob_threshold, float nms_threshold)
+{
+    // letterbox 与 Yolo 相同：长边缩放到模型尺寸，短边填充到 32 的倍数，两侧各一半
+    int w = f.width;
+    int h = f.height;
+    float scale = 1.f;
+    if (w > h)
+    {
+        scale = (float)target_size / w;
+        w = target_size;
+        h = h * scale;
+    }
+    else
+    {
+        scale = (float)target_size / h;
+        h = target_size;
+        w = w * scale;
+    }
+
+    const int wpad = (w + 31) / 32 * 32 - w;
+    const int hpad = (h + 31) / 32 * 32 - h;
+    const int in_w = w + wpad;
+    const int in_h = h + hpad;
+
+    const int strides[3] = {8, 16, 32};
+
+    int num_anchors = 0;
+    for (int s = 0; s < 3; s++)
+    {
+        num_anchors += (in_w / strides[s]) * (in_h / strides[s]);
+    }
+
+    // 背景：所有类别得分远低于阈值，DFL 分布均匀
+    ncnn::Mat out(num_outputs, num_anchors);
+    for (int i = 0; i < num_anchors; i++)
+    {
+        float* row = out.row(i);
+        for (int k = 0; k < 4 * reg_max; k++)
+        {
+            row[k] = 0.f;
+        }
+        for (int k = 0; k < num_class; k++)
+        {
+            row[4 * reg_max + k] = -8.f;
+        }
+    }
+
+    FILE* fp = fopen((dir + "/" + f.name + ".golden").c_str(), "wb");
+    if (!fp)
+        return -1;
+
+    for (size_t j = 0; j < f.anchors.size(); j++)
+    {
+        const Anchor& a = f.anchors[j];
+
+        // anchor 按 stride 分层、层内按行优先排列
+        int index = 0;
+        for (int s = 0; s < 3 && strides[s] != a.stride; s++)
+        {
+            index += (in_w / strides[s]) * (in_h / strides[s]);
+        }
+        index += a.grid1 * (in_w / a.stride) + a.grid0;
+
+        float* row = out.row(index);
+        for (int k = 0; k < 4; k++)
+        {
+            row[k * reg_max + a.ltrb[k]] = peak_logit;
+        }
+        row[4 * reg_max + a.label] = a.logit;
+
+        if (!a.kept)
+            continue;
+
+        const double cx = (a.grid0 + 0.5) * a.stride;
+        const double cy = (a.grid1 + 0.5) * a.stride;
+        double x0 = cx - dfl_expectation(a.ltrb[0]) * a.stride;
+        double y0 = cy - dfl_expectation(a.ltrb[1]) * a.stride;
+        double x1 = cx + dfl_expectation(a.ltrb[2]) * a.stride;
+        double y1 = cy + dfl_expectation(a.ltrb[3]) * a.stride;
+
+        // 去掉填充换算回原图，截断到画面内
+        x0 = std::min(std::max((x0 - wpad / 2) / scale, 0.0), (double)(f.width - 1));
+        y0 = std::min(std::max((y0 - hpad / 2) / scale, 0.0), (double)(f.height - 1));
+        x1 = std::min(std::max((x1 - wpad / 2) / scale, 0.0), (double)(f.width - 1));
+        y1 = std::min(std::max((y1 - hpad / 2) / scale, 0.0), (double)(f.height - 1));
+
+        const double prob = 1.0 / (1.0 + exp(-a.logit));
+
+        fprintf(fp, "%d %.6f %.3f %.3f %.3f %.3f\n", a.label, prob, x0, y0, x1 - x0, y1 - y0);
+    }
+
+    fclose(fp);
+
+    TensorHeader header;
+    memset(&header, 0, sizeof(header));
+    header.width = f.width;
+    header.height = f.height;
+    header.target_size = target_size;
+    header.prob_threshold = prob_threshold;
+    header.nms_threshold = nms_threshold;
+
+    return save_tensor((dir + "/" + f.name + ".out").c_str(), header, out);
+}
+
+int main(int argc, char** argv)
+{
+    if (argc < 2)
+    {
+        fprintf(stderr, "Usage: %s <data_dir>\n", argv[0]);
+        return -1;
+    }
+
+    std::vector<Fixture> fixtures;
+
+    // 横向 640x480，上下各填充 8 行
+    {
+        Fixture f;
+        f.name = "landscape";
+        f.width = 640;
+        f.height = 480;
+        f.anchors.push_back(anchor(16, 5, 6, 2, 3, 2, 3, 0, 4.f, true));    // person
+        f.anchors.push_back(anchor(16, 6, 6, 3, 3, 1, 3, 0, 2.5f, false));  // 同一个框的 person，被抑制
+        f.anchors.push_back(anchor(16, 5, 7, 2, 4, 2, 2, 2, 3.f, true));    // 同一个框的 car，按类别 NMS 保留
+        f.anchors.push_back(anchor(32, 8, 5, 3, 2, 2, 3, 16, 5.f, true));   // dog，超出右边和下边
+        f.anchors.push_back(anchor(8, 10, 10, 2, 2, 2, 2, 1, -2.f, false)); // bicycle，低于阈值
+        f.anchors.push_back(anchor(8, 30, 20, 1, 1, 1, 1, 15, 1.5f, true)); // cat，小目标
+        fixtures.push_back(f);
+    }
+
+    // 竖向 480x640，左右各填充 8 列
+    {
+        Fixture f;
+        f.name = "portrait";
+        f.width = 480;
+        f.height = 640;
+        f.anchors.push_back(anchor(32, 2, 3, 2, 3, 2, 2, 5, 3.5f, true));   // bus
+        f.anchors.push_back(anchor(8, 20, 30, 3, 6, 3, 6, 0, 2.f, true));   // person
+        f.anchors.push_back(anchor(8, 21, 30, 4, 6, 2, 6, 0, 1.8f, false)); // 同一个框的 person，被抑制
+        f.anchors.push_back(anchor(8, 25, 30, 4, 6, 3, 6, 0, 1.2f, true));  // 部分重叠的 person，IoU 约 0.18，保留
+        fixtures.push_back(f);
+    }
+
+    for (size_t i = 0; i < fixtures.size(); i++)
+    {
+        if (write_fixture(argv[1], fixtures[i], 320, 0.25f, 0.5f) != 0)
+        {
+            fprintf(stderr, "write %s failed\n", fixtures[i].name);
+            return -1;
+        }
+    }
+
+    fprintf(stderr, "wrote %d fixtures to %s\n", (int)fixtures.size(), argv[1]);
+    return 0;
+}
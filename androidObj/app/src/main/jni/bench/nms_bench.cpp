@@ -0,0 +1,125 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+// NMS 微基准：改动前的逐个比较 vs 空间网格 NmsEngine
+// 用法: adb push nms_bench /data/local/tmp && adb shell /data/local/tmp/nms_bench [num_proposals] [loops]
+
+#include <stdio.h>
+#include <stdlib.h>
+
+#include <algorithm>
+#include <vector>
+
+#include <benchmark.h>
+
+#include "../postprocess.h"
+
+struct Box
+{
+    float x;
+    float y;
+    float w;
+    float h;
+    int label;
+};
+
+// 与改动前 nms_sorted_bboxes 的实现保持一致（不区分类别）
+static void nms_legacy(const std::vector<Box>& boxes, std::vector<int>& picked, float nms_threshold)
+{
+    picked.clear();
+
+    const int n = boxes.size();
+
+    std::vector<float> areas(n);
+    for (int i = 0; i < n; i++)
+    {
+        areas[i] = boxes[i].w * boxes[i].h;
+    }
+
+    for (int i = 0; i < n; i++)
+    {
+        const Box& a = boxes[i];
+
+        int keep = 1;
+        for (int j = 0; j < (int)picked.size(); j++)
+        {
+            const Box& b = boxes[picked[j]];
+
+            float iw = std::min(a.x + a.w, b.x + b.w) - std::max(a.x, b.x);
+            float ih = std::min(a.y + a.h, b.y + b.h) - std::max(a.y, b.y);
+            float inter_area = iw > 0.f && ih > 0.f ? iw * ih : 0.f;
+            float union_area = areas[i] + areas[picked[j]] - inter_area;
+            if (inter_area / union_area > nms_threshold)
+                keep = 0;
+        }
+
+        if (keep)
+            picked.push_back(i);
+    }
+}
+
+int main(int argc, char** argv)
+{
+    int num_proposals = argc > 1 ? atoi(argv[1]) : 3000;
+    int loops = argc > 2 ? atoi(argv[2]) : 20;
+
+    // 模拟低阈值下拥挤场景的候选框，320x320 输入，已按置信度排序
+    std::vector<Box> boxes(num_proposals);
+    srand(7767517);
+    for (int i = 0; i < num_proposals; i++)
+    {
+        boxes[i].w = 8.f + rand() % 64;
+        boxes[i].h = 16.f + rand() % 96;
+        boxes[i].x = (float)(rand() % 320) - boxes[i].w / 2;
+        boxes[i].y = (float)(rand() % 320) - boxes[i].h / 2;
+        boxes[i].label = rand() % 8 == 0 ? 2 : 0;
+    }
+
+    std::vector<int> picked_legacy;
+    std::vector<int> picked_agnostic;
+    std::vector<int> picked_per_class;
+
+    NmsEngine nms;
+    nms.reserve(num_proposals);
+
+    double t0 = ncnn::get_current_time();
+    for (int n = 0; n < loops; n++)
+    {
+        nms_legacy(boxes, picked_legacy, 0.45f);
+    }
+    double t1 = ncnn::get_current_time();
+    for (int n = 0; n < loops; n++)
+    {
+        nms.reset(320, 320);
+        for (int i = 0; i < num_proposals; i++)
+            nms.add(boxes[i].x, boxes[i].y, boxes[i].w, boxes[i].h, boxes[i].label);
+        nms.run(NmsEngine::NMS_CLASS_AGNOSTIC, 0.45f, picked_agnostic);
+    }
+    double t2 = ncnn::get_current_time();
+    for (int n = 0; n < loops; n++)
+    {
+        nms.reset(320, 320);
+        for (int i = 0; i < num_proposals; i++)
+            nms.add(boxes[i].x, boxes[i].y, boxes[i].w, boxes[i].h, boxes[i].label);
+        nms.run(NmsEngine::NMS_PER_CLASS, 0.45f, picked_per_class);
+    }
+    double t3 = ncnn::get_current_time();
+
+    fprintf(stderr, "proposals=%d loops=%d\n", num_proposals, loops);
+    fprintf(stderr, "legacy          %8.3f ms  picked=%d\n", (t1 - t0) / loops, (int)picked_legacy.size());
+    fprintf(stderr, "grid agnostic   %8.3f ms  picked=%d  match=%d\n", (t2 - t1) / loops, (int)picked_agnostic.size(), (int)(picked_agnostic == picked_legacy));
+    fprintf(stderr, "grid per-class  %8.3f ms  picked=%d\n", (t3 - t2) / loops, (int)picked_per_class.size());
+
+    return 0;
+}
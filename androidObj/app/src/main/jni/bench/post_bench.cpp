@@ -0,0 +1,198 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+// 后处理分阶段基准：在记录的网络输出上重放后处理，按置信度阈值分别统计网格生成、候选框解码、坐标换算、排序、NMS 和输出按面积排序的耗时
+// 输入为 golden dump 记录的 .out 文件，按模型尺寸（如 320 和 640）分组，不需要模型
+// 构建时定义 YOLO_ALLOC_CHECK，同时给出每帧的堆分配次数
+// 用法: ./post_bench <data_dir> [loops]
+
+#include <dirent.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <algorithm>
+#include <map>
+#include <string>
+#include <vector>
+
+#include "../stats.h"
+#include "../yolo.h"
+#include "tensor_io.h"
+
+struct Tensor
+{
+    TensorHeader header;
+    ncnn::Mat out;
+};
+
+static int load_tensors(const char* dir, std::map<int, std::vector<Tensor> >& groups)
+{
+    DIR* d = opendir(dir);
+    if (!d)
+        return -1;
+
+    std::vector<std::string> names;
+    struct dirent* e;
+    while ((e = readdir(d)) != 0)
+    {
+        const size_t len = strlen(e->d_name);
+        if (len > 4 && strcmp(e->d_name + len - 4, ".out") == 0)
+            names.push_back(e->d_name);
+    }
+    closedir(d);
+
+    std::sort(names.begin(), names.end());
+
+    for (size_t i = 0; i < names.size(); i++)
+    {
+        Tensor t;
+        if (load_tensor((std::string(dir) + "/" + names[i]).c_str(), t.header, t.out) != 0)
+        {
+            fprintf(stderr, "skip bad tensor file %s\n", names[i].c_str());
+            continue;
+        }
+
+        groups[t.header.target_size].push_back(t);
+    }
+
+    return 0;
+}
+
+// 全部 80 类参与解码，低阈值下的候选框数最多
+static void setup(Yolo& yolo, float prob_threshold, float nms_threshold)
+{
+    int class_ids[Yolo::NUM_CLASS];
+    for (int i = 0; i < Yolo::NUM_CLASS; i++)
+    {
+        class_ids[i] = i;
+    }
+
+    yolo.setClasses(class_ids, Yolo::NUM_CLASS);
+    yolo.setProbThreshold(prob_threshold);
+    yolo.setNmsThreshold(nms_threshold);
+}
+
+static void accumulate(YoloPostprocessProfile& sum, const YoloPostprocessProfile& p)
+{
+    sum.grid_ns += p.grid_ns;
+    sum.proposal_ns += p.proposal_ns;
+    sum.remap_ns += p.remap_ns;
+    sum.sort_ns += p.sort_ns;
+    sum.nms_ns += p.nms_ns;
+    sum.area_sort_ns += p.area_sort_ns;
+    sum.num_anchors += p.num_anchors;
+    sum.num_proposals += p.num_proposals;
+    sum.num_objects += p.num_objects;
+    sum.allocations = p.allocations < 0 ? -1 : sum.allocations + p.allocations;
+}
+
+// 新实例的首次后处理包含网格表的生成，之后命中缓存
+static double grid_build_ns(const std::vector<Tensor>& tensors, int loops)
+{
+    const Tensor& t = tensors[0];
+
+    std::vector<Object> objects;
+    int64_t total = 0;
+    for (int n = 0; n < loops; n++)
+    {
+        Yolo yolo;
+        setup(yolo, 0.9f, t.header.nms_threshold);
+
+        YoloPostprocessProfile p;
+        yolo.postprocess(t.out, t.header.width, t.header.height, t.header.target_size, objects, &p);
+        total += p.grid_ns;
+    }
+
+    return (double)total / loops;
+}
+
+int main(int argc, char** argv)
+{
+    if (argc < 2)
+    {
+        fprintf(stderr, "Usage: %s <data_dir> [loops]\n", argv[0]);
+        return -1;
+    }
+
+    const int loops = argc > 2 ? std::max(atoi(argv[2]), 1) : 100;
+
+    std::map<int, std::vector<Tensor> > groups;
+    if (load_tensors(argv[1], groups) != 0 || groups.empty())
+    {
+        fprintf(stderr, "no tensor in %s, record with: golden dump <image_dir> %s n 320\n", argv[1], argv[1]);
+        return -1;
+    }
+
+    const float thresholds[] = {0.05f, 0.1f, 0.25f, 0.5f, 0.75f, 0.9f};
+    const int num_thresholds = sizeof(thresholds) / sizeof(thresholds[0]);
+
+    for (std::map<int, std::vector<Tensor> >::const_iterator it = groups.begin(); it != groups.end(); ++it)
+    {
+        const std::vector<Tensor>& tensors = it->second;
+
+        fprintf(stderr, "target_size=%d tensors=%d anchors=%d loops=%d grid_build=%.0f ns\n", it->first, (int)tensors.size(), tensors[0].out.h, loops, grid_build_ns(tensors, loops));
+        fprintf(stderr, "thresh  proposals  objects     grid   decode    remap     sort      nms     area    total (ns/frame)  decode/anchor  total/anchor  allocs/frame\n");
+
+        for (int k = 0; k < num_thresholds; k++)
+        {
+            Yolo yolo;
+            setup(yolo, thresholds[k], tensors[0].header.nms_threshold);
+
+            std::vector<Object> objects;
+
+            // 预热一轮，网格缓存和各缓冲达到最大容量后再计时
+            for (size_t i = 0; i < tensors.size(); i++)
+            {
+                const Tensor& t = tensors[i];
+                yolo.postprocess(t.out, t.header.width, t.header.height, t.header.target_size, objects);
+            }
+
+            YoloPostprocessProfile sum = YoloPostprocessProfile();
+            int frames = 0;
+            for (int n = 0; n < loops; n++)
+            {
+                for (size_t i = 0; i < tensors.size(); i++)
+                {
+                    const Tensor& t = tensors[i];
+
+                    YoloPostprocessProfile p;
+                    yolo.postprocess(t.out, t.header.width, t.header.height, t.header.target_size, objects, &p);
+                    accumulate(sum, p);
+                    frames++;
+                }
+            }
+
+            const double grid = (double)sum.grid_ns / frames;
+            const double decode = (double)sum.proposal_ns / frames;
+            const double remap = (double)sum.remap_ns / frames;
+            const double sort = (double)sum.sort_ns / frames;
+            const double nms = (double)sum.nms_ns / frames;
+            const double area = (double)sum.area_sort_ns / frames;
+            const double total = grid + decode + remap + sort + nms + area;
+            const double anchors = (double)sum.num_anchors / frames;
+
+            fprintf(stderr, "%6.2f  %9.1f  %7.1f  %7.0f  %7.0f  %7.0f  %7.0f  %7.0f  %7.0f  %7.0f           %13.2f  %12.2f  ", thresholds[k],
+                    (double)sum.num_proposals / frames, (double)sum.num_objects / frames, grid, decode, remap, sort, nms, area, total,
+                    anchors > 0 ? decode / anchors : 0.0, anchors > 0 ? total / anchors : 0.0);
+
+            if (sum.allocations < 0)
+                fprintf(stderr, "%12s\n", "n/a");
+            else
+                fprintf(stderr, "%12.2f\n", (double)sum.allocations / frames);
+        }
+    }
+
+    return 0;
+}
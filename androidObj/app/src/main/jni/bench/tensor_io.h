@@ -0,0 +1,97 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef BENCH_TENSOR_IO_H
+#define BENCH_TENSOR_IO_H
+
+// 网络原始输出的记录文件，供后处理回归测试和基准使用
+// 布局（小端）：magic、version、原图宽高、模型尺寸、置信度阈值、NMS 阈值、输出 w h c，之后逐通道 w * h 个 float
+
+#include <stdint.h>
+#include <stdio.h>
+
+#include <mat.h>
+
+static const uint32_t tensor_file_magic = 0x54554f59; // "YOUT"
+static const uint32_t tensor_file_version = 1;
+
+struct TensorHeader
+{
+    uint32_t magic;
+    uint32_t version;
+    int32_t width;
+    int32_t height;
+    int32_t target_size;
+    float prob_threshold;
+    float nms_threshold;
+    int32_t w;
+    int32_t h;
+    int32_t c;
+};
+
+static inline int save_tensor(const char* path, const TensorHeader& header, const ncnn::Mat& out)
+{
+    FILE* fp = fopen(path, "wb");
+    if (!fp)
+        return -1;
+
+    TensorHeader hd = header;
+    hd.magic = tensor_file_magic;
+    hd.version = tensor_file_version;
+    hd.w = out.w;
+    hd.h = out.h;
+    hd.c = out.c;
+
+    int ret = fwrite(&hd, sizeof(hd), 1, fp) == 1 ? 0 : -1;
+
+    // 通道之间按 cstep 对齐，逐通道写出有效部分
+    for (int q = 0; q < out.c && ret == 0; q++)
+    {
+        const size_t size = (size_t)out.w * out.h;
+        if (fwrite(out.channel(q), sizeof(float), size, fp) != size)
+            ret = -1;
+    }
+
+    fclose(fp);
+    return ret;
+}
+
+static inline int load_tensor(const char* path, TensorHeader& header, ncnn::Mat& out)
+{
+    FILE* fp = fopen(path, "rb");
+    if (!fp)
+        return -1;
+
+    int ret = -1;
+    if (fread(&header, sizeof(header), 1, fp) == 1 && header.magic == tensor_file_magic && header.version == tensor_file_version)
+    {
+        if (header.c == 1)
+            out.create(header.w, header.h);
+        else
+            out.create(header.w, header.h, header.c);
+
+        ret = 0;
+        for (int q = 0; q < out.c && ret == 0; q++)
+        {
+            const size_t size = (size_t)out.w * out.h;
+            if (fread(out.channel(q), sizeof(float), size, fp) != size)
+                ret = -1;
+        }
+    }
+
+    fclose(fp);
+    return ret;
+}
+
+#endif // BENCH_TENSOR_IO_H
@@ -0,0 +1,105 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+// 分块推理基准：不同分块网格下每帧的延迟，依次推理 vs 线程池并行
+// 用法: adb push tile_bench yolov8n.param yolov8n.bin /data/local/tmp
+//       adb shell "cd /data/local/tmp && ./tile_bench [width] [height] [tile_threads] [loops]"
+
+#include <stdio.h>
+#include <stdlib.h>
+
+#include <vector>
+
+#include <benchmark.h>
+
+#include "../yolo.h"
+
+static double run_grid(Yolo& yolo, const cv::Mat& rgb, int cols, int rows, int tile_threads, int loops, int& num_objects)
+{
+    std::vector<Object> objects;
+
+    yolo.setTiling(cols, rows, 20);
+    yolo.setTileThreads(tile_threads);
+
+    // 首帧建立网格缓存和工作者，不计时
+    yolo.detect(rgb, objects);
+
+    double t0 = ncnn::get_current_time();
+    for (int n = 0; n < loops; n++)
+    {
+        yolo.detect(rgb, objects);
+    }
+    double t1 = ncnn::get_current_time();
+
+    num_objects = (int)objects.size();
+    return (t1 - t0) / loops;
+}
+
+int main(int argc, char** argv)
+{
+    int width = argc > 1 ? atoi(argv[1]) : 1920;
+    int height = argc > 2 ? atoi(argv[2]) : 1080;
+    int tile_threads = argc > 3 ? atoi(argv[3]) : 2;
+    int loops = argc > 4 ? atoi(argv[4]) : 10;
+
+    const float mean_vals[3] = {103.53f, 116.28f, 123.675f};
+    const float norm_vals[3] = {1 / 255.f, 1 / 255.f, 1 / 255.f};
+
+    Yolo yolo;
+    if (yolo.load("n", 320, mean_vals, norm_vals, false) != 0)
+    {
+        fprintf(stderr, "load yolov8n failed\n");
+        return -1;
+    }
+
+    yolo.warmup();
+
+    // 阈值放低，随机画面也能产生候选框，NMS 和截断框去除计入耗时
+    yolo.setProbThreshold(0.05f);
+    yolo.setDetectMode(Yolo::DETECT_MODE_HUMAN_AND_VEHICLE);
+
+    cv::Mat rgb(height, width, CV_8UC3);
+    cv::randu(rgb, cv::Scalar::all(0), cv::Scalar::all(255));
+
+    const int grids[][2] =
+    {
+        {1, 1},
+        {2, 1},
+        {2, 2},
+        {3, 2},
+        {3, 3},
+        {4, 3},
+    };
+
+    fprintf(stderr, "frame=%dx%d tile_threads=%d loops=%d\n", width, height, tile_threads, loops);
+    fprintf(stderr, "grid  regions  sequential        parallel\n");
+
+    for (size_t i = 0; i < sizeof(grids) / sizeof(grids[0]); i++)
+    {
+        const int cols = grids[i][0];
+        const int rows = grids[i][1];
+
+        // 分块之外还有一次整体推理
+        const int num_regions = cols * rows > 1 ? cols * rows + 1 : 1;
+
+        int objects_seq = 0;
+        int objects_par = 0;
+        double seq = run_grid(yolo, rgb, cols, rows, 0, loops, objects_seq);
+        double par = run_grid(yolo, rgb, cols, rows, tile_threads, loops, objects_par);
+
+        fprintf(stderr, "%dx%d   %7d  %8.3f ms (%3d)  %8.3f ms (%3d)\n", cols, rows, num_regions, seq, objects_seq, par, objects_par);
+    }
+
+    return 0;
+}
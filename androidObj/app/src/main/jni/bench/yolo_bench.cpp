@@ -0,0 +1,190 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+// 整体检测基准：对一个目录下的图片反复检测，输出各阶段耗时、吞吐量，以及推理线程数从 1 增加到 max_threads 的扩展情况
+// 主机和设备上都可运行，模型 yolov8<modeltype>.param/.bin 从当前目录加载
+// 用法: ./yolo_bench <image_dir> [modeltype] [target_size] [loops] [max_threads]
+
+#include <dirent.h>
+#include <stdio.h>
+#include <stdlib.h>
+
+#include <algorithm>
+#include <string>
+#include <vector>
+
+#include <cpu.h>
+
+#include <opencv2/imgcodecs/imgcodecs.hpp>
+#include <opencv2/imgproc/imgproc.hpp>
+
+#include "../config.h"
+#include "../stats.h"
+#include "../yolo.h"
+
+// 读入目录下所有能解码的图片，按文件名排序保证每次运行顺序一致，转为 detect 使用的 rgb
+static int load_images(const char* dir, std::vector<cv::Mat>& images)
+{
+    DIR* d = opendir(dir);
+    if (!d)
+        return -1;
+
+    std::vector<std::string> names;
+    struct dirent* e;
+    while ((e = readdir(d)) != 0)
+    {
+        if (e->d_name[0] != '.')
+            names.push_back(e->d_name);
+    }
+    closedir(d);
+
+    std::sort(names.begin(), names.end());
+
+    for (size_t i = 0; i < names.size(); i++)
+    {
+        cv::Mat bgr = cv::imread(std::string(dir) + "/" + names[i], cv::IMREAD_COLOR);
+        if (bgr.empty())
+            continue;
+
+        cv::Mat rgb;
+        cv::cvtColor(bgr, rgb, cv::COLOR_BGR2RGB);
+        images.push_back(rgb);
+    }
+
+    return 0;
+}
+
+static const struct
+{
+    int stage;
+    const char* name;
+} stages[] =
+{
+    {STAT_PREPROCESS, "preprocess"},
+    {STAT_EXTRACT, "extract"},
+    {STAT_DECODE, "decode"},
+    {STAT_NMS, "nms"},
+};
+
+static const int num_stages = sizeof(stages) / sizeof(stages[0]);
+
+// 运行 loops 轮，返回每秒检测的图片数，各阶段统计留在 stats 中
+static double run_threads(Yolo& yolo, YoloConfigStore& config, const std::vector<cv::Mat>& images, int num_threads, int loops)
+{
+    std::vector<Object> objects;
+
+    config.setResourceLimits(num_threads, 0, 0, 0);
+
+    // 首轮让线程数生效并建立网格缓存，不计时
+    for (size_t i = 0; i < images.size(); i++)
+    {
+        yolo.detect(images[i], objects);
+    }
+
+    stats_reset();
+
+    const int64_t t0 = stats_now_us();
+    for (int n = 0; n < loops; n++)
+    {
+        for (size_t i = 0; i < images.size(); i++)
+        {
+            yolo.detect(images[i], objects);
+        }
+    }
+    const int64_t t1 = stats_now_us();
+
+    return t1 > t0 ? images.size() * loops * 1000000.0 / (t1 - t0) : 0.0;
+}
+
+static void print_stages()
+{
+    int64_t snapshot[STAT_COUNT * STAT_NUM_FIELDS + STAT_NUM_GAUGES];
+    stats_snapshot(snapshot, sizeof(snapshot) / sizeof(snapshot[0]));
+
+    fprintf(stderr, "  stage        count     mean      p50      p90      p99      max  (ms)\n");
+
+    for (int i = 0; i < num_stages; i++)
+    {
+        const int64_t* s = snapshot + stages[i].stage * STAT_NUM_FIELDS;
+
+        fprintf(stderr, "  %-10s %7lld %8.3f %8.3f %8.3f %8.3f %8.3f\n", stages[i].name,
+                (long long)s[STAT_FIELD_COUNT], s[STAT_FIELD_MEAN] / 1000.0, s[STAT_FIELD_P50] / 1000.0,
+                s[STAT_FIELD_P90] / 1000.0, s[STAT_FIELD_P99] / 1000.0, s[STAT_FIELD_MAX] / 1000.0);
+    }
+}
+
+int main(int argc, char** argv)
+{
+    if (argc < 2)
+    {
+        fprintf(stderr, "Usage: %s <image_dir> [modeltype] [target_size] [loops] [max_threads]\n", argv[0]);
+        return -1;
+    }
+
+    const char* image_dir = argv[1];
+    const char* modeltype = argc > 2 ? argv[2] : "n";
+    const int target_size = argc > 3 ? atoi(argv[3]) : 320;
+    const int loops = argc > 4 ? std::max(atoi(argv[4]), 1) : 10;
+    const int max_threads = argc > 5 ? std::max(atoi(argv[5]), 1) : ncnn::get_cpu_count();
+
+    std::vector<cv::Mat> images;
+    if (load_images(image_dir, images) != 0 || images.empty())
+    {
+        fprintf(stderr, "no image in %s\n", image_dir);
+        return -1;
+    }
+
+    const float mean_vals[3] = {103.53f, 116.28f, 123.675f};
+    const float norm_vals[3] = {1 / 255.f, 1 / 255.f, 1 / 255.f};
+
+    YoloConfigStore config;
+
+    Yolo yolo(&config);
+    if (yolo.load(modeltype, target_size, mean_vals, norm_vals, false) != 0)
+    {
+        fprintf(stderr, "load yolov8%s failed\n", modeltype);
+        return -1;
+    }
+
+    yolo.warmup();
+
+    // 1 2 4 ... 直到 max_threads，最后总是包含 max_threads
+    std::vector<int> thread_counts;
+    for (int n = 1; n < max_threads; n *= 2)
+    {
+        thread_counts.push_back(n);
+    }
+    thread_counts.push_back(max_threads);
+
+    fprintf(stderr, "model=yolov8%s target_size=%d images=%d loops=%d\n", modeltype, target_size, (int)images.size(), loops);
+
+    std::vector<double> throughput;
+    for (size_t i = 0; i < thread_counts.size(); i++)
+    {
+        throughput.push_back(run_threads(yolo, config, images, thread_counts[i], loops));
+
+        fprintf(stderr, "threads=%d\n", thread_counts[i]);
+        print_stages();
+    }
+
+    fprintf(stderr, "threads  images/s  ms/image  speedup\n");
+
+    for (size_t i = 0; i < thread_counts.size(); i++)
+    {
+        const double ips = throughput[i];
+        fprintf(stderr, "%7d  %8.2f  %8.3f  %6.2fx\n", thread_counts[i], ips, ips > 0 ? 1000.0 / ips : 0.0, throughput[0] > 0 ? ips / throughput[0] : 0.0);
+    }
+
+    return 0;
+}
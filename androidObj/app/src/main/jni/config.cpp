@@ -0,0 +1,337 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "config.h"
+
+#include "scheduler.h"
+#include "yolo.h"
+
+#include <string.h>
+
+#include <algorithm>
+
+// 各检测模式关心的 COCO 类别
+static const int human_class_ids[] = {0};
+static const int human_and_vehicle_class_ids[] = {0, 2, 3, 5, 7}; // 人类 汽车 摩托车 公交车 卡车
+
+YoloConfigStore::YoloConfigStore()
+{
+    YoloConfig config;
+    memset(&config, 0, sizeof(config));
+    config.prob_threshold = 0.4f;
+    config.nms_threshold = 0.5f;
+    config.throttle_interval = 0; // 默认不节流
+    config.nms_mode = NmsEngine::NMS_PER_CLASS; // 默认按类别分别做 NMS，避免人和重叠的车辆互相抑制
+    config.schedule_mode = InferenceScheduler::SCHEDULE_FIXED;
+    config.duty_budget = 100;
+    config.num_threads = 0;
+    config.powersave = 2;
+    config.target_size = 0;
+    config.min_interval = 0;
+    config.tile_cols = 1;
+    config.tile_rows = 1;
+    config.tile_overlap = 20;
+    config.tile_threads = 0;
+
+    seq = 0;
+    store_words(config);
+
+    setDetectMode(Yolo::DETECT_MODE_HUMAN_ONLY); // 默认只检测人类
+}
+
+void YoloConfigStore::store_words(const YoloConfig& config)
+{
+    uint32_t tmp[NUM_WORDS];
+    memcpy(tmp, &config, sizeof(config));
+
+    for (int i = 0; i < NUM_WORDS; i++)
+    {
+        words[i].store(tmp[i], std::memory_order_relaxed);
+    }
+}
+
+YoloConfig YoloConfigStore::load() const
+{
+    uint32_t tmp[NUM_WORDS];
+
+    while (1)
+    {
+        unsigned int s0 = seq.load(std::memory_order_acquire);
+        if (s0 & 1)
+            continue;
+
+        for (int i = 0; i < NUM_WORDS; i++)
+        {
+            tmp[i] = words[i].load(std::memory_order_relaxed);
+        }
+
+        std::atomic_thread_fence(std::memory_order_acquire);
+
+        if (seq.load(std::memory_order_relaxed) == s0)
+            break;
+    }
+
+    YoloConfig config;
+    memcpy(&config, tmp, sizeof(config));
+    return config;
+}
+
+YoloConfig YoloConfigStore::begin_write()
+{
+    // 序号由偶数改为奇数即取得写权限
+    unsigned int s0 = seq.load(std::memory_order_relaxed);
+    while ((s0 & 1) || !seq.compare_exchange_weak(s0, s0 + 1, std::memory_order_acquire, std::memory_order_relaxed))
+    {
+        s0 = seq.load(std::memory_order_relaxed);
+    }
+
+    std::atomic_thread_fence(std::memory_order_release);
+
+    uint32_t tmp[NUM_WORDS];
+    for (int i = 0; i < NUM_WORDS; i++)
+    {
+        tmp[i] = words[i].load(std::memory_order_relaxed);
+    }
+
+    YoloConfig config;
+    memcpy(&config, tmp, sizeof(config));
+    return config;
+}
+
+void YoloConfigStore::end_write(const YoloConfig& config)
+{
+    YoloConfig published = config;
+    published.version++;
+
+    store_words(published);
+
+    seq.fetch_add(1, std::memory_order_release);
+}
+
+// 设置置信度阈值
+void YoloConfigStore::setProbThreshold(float threshold)
+{
+    YoloConfig c = begin_write();
+    c.prob_threshold = threshold;
+    end_write(c);
+}
+
+// 设置 NMS 阈值
+void YoloConfigStore::setNmsThreshold(float threshold)
+{
+    YoloConfig c = begin_write();
+    c.nms_threshold = threshold;
+    end_write(c);
+}
+
+// 设置推理节流间隔
+void YoloConfigStore::setThrottleInterval(int interval)
+{
+    YoloConfig c = begin_write();
+    c.throttle_interval = interval;
+    end_write(c);
+}
+
+// 获取当前节流间隔
+int YoloConfigStore::getThrottleInterval() const
+{
+    return load().throttle_interval;
+}
+
+// 将类别序号列表转为掩码
+static void class_ids_to_mask(const int* ids, int num_ids, uint64_t* mask)
+{
+    for (int i = 0; i < Yolo::CLASS_MASK_WORDS; i++)
+    {
+        mask[i] = 0;
+    }
+
+    for (int i = 0; i < num_ids; i++)
+    {
+        if (ids[i] < 0 || ids[i] >= Yolo::NUM_CLASS)
+            continue;
+
+        mask[ids[i] >> 6] |= (uint64_t)1 << (ids[i] & 63);
+    }
+}
+
+// 设置检测模式，模式和掩码在同一次发布中更新
+void YoloConfigStore::setDetectMode(int mode)
+{
+    uint64_t mask[Yolo::CLASS_MASK_WORDS];
+    if (mode == Yolo::DETECT_MODE_HUMAN_ONLY)
+    {
+        class_ids_to_mask(human_class_ids, sizeof(human_class_ids) / sizeof(int), mask);
+    }
+    else if (mode == Yolo::DETECT_MODE_HUMAN_AND_VEHICLE)
+    {
+        class_ids_to_mask(human_and_vehicle_class_ids, sizeof(human_and_vehicle_class_ids) / sizeof(int), mask);
+    }
+    else
+    {
+        return;
+    }
+
+    YoloConfig c = begin_write();
+    c.detect_mode = mode;
+    for (int i = 0; i < Yolo::CLASS_MASK_WORDS; i++)
+    {
+        c.class_mask[i] = mask[i];
+    }
+    end_write(c);
+}
+
+// 获取当前检测模式
+int YoloConfigStore::getDetectMode() const
+{
+    return load().detect_mode;
+}
+
+// 设置类别掩码
+void YoloConfigStore::setClassMask(const uint64_t* mask, int num_words)
+{
+    YoloConfig c = begin_write();
+    for (int i = 0; i < Yolo::CLASS_MASK_WORDS; i++)
+    {
+        c.class_mask[i] = i < num_words ? mask[i] : 0;
+    }
+
+    // 清除超出 80 类的高位
+    c.class_mask[Yolo::CLASS_MASK_WORDS - 1] &= ((uint64_t)1 << (Yolo::NUM_CLASS - 64)) - 1;
+
+    c.detect_mode = Yolo::DETECT_MODE_CUSTOM;
+    end_write(c);
+}
+
+// 按类别序号设置类别掩码
+void YoloConfigStore::setClasses(const int* ids, int num_ids)
+{
+    uint64_t mask[Yolo::CLASS_MASK_WORDS];
+    class_ids_to_mask(ids, num_ids, mask);
+
+    setClassMask(mask, Yolo::CLASS_MASK_WORDS);
+}
+
+// 获取当前类别掩码
+void YoloConfigStore::getClassMask(uint64_t* mask) const
+{
+    YoloConfig c = load();
+    for (int i = 0; i < Yolo::CLASS_MASK_WORDS; i++)
+    {
+        mask[i] = c.class_mask[i];
+    }
+}
+
+// 设置 NMS 模式
+void YoloConfigStore::setNmsMode(int mode)
+{
+    if (mode == NmsEngine::NMS_CLASS_AGNOSTIC || mode == NmsEngine::NMS_PER_CLASS)
+    {
+        YoloConfig c = begin_write();
+        c.nms_mode = mode;
+        end_write(c);
+    }
+}
+
+// 获取当前 NMS 模式
+int YoloConfigStore::getNmsMode() const
+{
+    return load().nms_mode;
+}
+
+// 设置调度模式
+void YoloConfigStore::setScheduleMode(int mode)
+{
+    if (mode == InferenceScheduler::SCHEDULE_FIXED || mode == InferenceScheduler::SCHEDULE_ADAPTIVE)
+    {
+        YoloConfig c = begin_write();
+        c.schedule_mode = mode;
+        end_write(c);
+    }
+}
+
+// 获取当前调度模式
+int YoloConfigStore::getScheduleMode() const
+{
+    return load().schedule_mode;
+}
+
+// 设置占空比预算
+void YoloConfigStore::setDutyBudget(int percent)
+{
+    YoloConfig c = begin_write();
+    c.duty_budget = std::min(std::max(percent, 1), 100);
+    end_write(c);
+}
+
+// 设置资源限制
+void YoloConfigStore::setResourceLimits(int num_threads, int powersave, int target_size, int min_interval)
+{
+    YoloConfig c = begin_write();
+    c.num_threads = std::max(num_threads, 0);
+    c.powersave = powersave;
+    c.target_size = std::max(target_size, 0);
+    c.min_interval = std::max(min_interval, 0);
+    end_write(c);
+}
+
+// 设置分块网格和重叠
+void YoloConfigStore::setTiling(int cols, int rows, int overlap_percent)
+{
+    YoloConfig c = begin_write();
+    c.tile_cols = std::min(std::max(cols, 1), (int)YoloConfig::MAX_TILE_GRID);
+    c.tile_rows = std::min(std::max(rows, 1), (int)YoloConfig::MAX_TILE_GRID);
+    c.tile_overlap = std::min(std::max(overlap_percent, 0), 50);
+    end_write(c);
+}
+
+// 设置分块并行的线程数
+void YoloConfigStore::setTileThreads(int num_threads)
+{
+    YoloConfig c = begin_write();
+    c.tile_threads = std::min(std::max(num_threads, 0), (int)YoloConfig::MAX_TILE_THREADS);
+    end_write(c);
+}
+
+// 设置感兴趣区域
+void YoloConfigStore::setRegions(const float* rects, int num_regions)
+{
+    YoloConfig c = begin_write();
+    c.num_regions = 0;
+    for (int i = 0; i < num_regions && c.num_regions < YoloConfig::MAX_REGIONS; i++)
+    {
+        float x0 = std::min(std::max(rects[i * 4], 0.f), 1.f);
+        float y0 = std::min(std::max(rects[i * 4 + 1], 0.f), 1.f);
+        float x1 = std::min(std::max(rects[i * 4] + rects[i * 4 + 2], 0.f), 1.f);
+        float y1 = std::min(std::max(rects[i * 4 + 1] + rects[i * 4 + 3], 0.f), 1.f);
+        if (x1 <= x0 || y1 <= y0)
+            continue;
+
+        float* r = c.regions + c.num_regions * 4;
+        r[0] = x0;
+        r[1] = y0;
+        r[2] = x1 - x0;
+        r[3] = y1 - y0;
+        c.num_regions++;
+    }
+    end_write(c);
+}
+
+// 获取感兴趣区域，rects 至少 MAX_REGIONS * 4 个
+int YoloConfigStore::getRegions(float* rects) const
+{
+    YoloConfig c = load();
+    memcpy(rects, c.regions, c.num_regions * 4 * sizeof(float));
+    return c.num_regions;
+}
@@ -0,0 +1,115 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef YOLO_CONFIG_H
+#define YOLO_CONFIG_H
+
+#include <stdint.h>
+
+#include <atomic>
+
+// 检测参数快照，detect 每帧读取一次
+struct YoloConfig
+{
+    float prob_threshold;
+    float nms_threshold;
+    int throttle_interval; // 以毫秒为单位
+    int detect_mode;
+    int nms_mode;
+    int schedule_mode; // InferenceScheduler::SCHEDULE_*
+    int duty_budget;   // 自适应调度时推理耗时占比上限，百分比
+    int num_threads;   // 推理线程数，0 表示大核数
+    int powersave;     // ncnn::set_cpu_powersave 的参数
+    int target_size;   // 输入尺寸上限，0 表示模型默认
+    int min_interval;  // 最短推理间隔（毫秒），与调度模式无关
+    int tile_cols;     // 分块推理的网格，1x1 表示不分块
+    int tile_rows;
+    int tile_overlap;  // 相邻分块的重叠，占分块边长的百分比
+    int tile_threads;  // 分块并行的后台线程数，0 表示在推理线程上依次执行
+    unsigned int version; // 每次发布递增
+    uint64_t class_mask[2];
+
+    // 感兴趣区域，按画面宽高归一化的 x，y，w，h
+    static const int MAX_REGIONS = 4;
+    int num_regions;
+    float regions[MAX_REGIONS * 4];
+
+    static const int MAX_TILE_GRID = 4;
+    static const int MAX_TILE_THREADS = 8;
+};
+
+// 以 seqlock 发布的参数存储
+// 读者不加锁，遇到写入中或读到一半被改写时重试；写者之间用序号的 CAS 互斥，临界区只有几次原子写
+// 多个 Yolo 实例可共享同一个存储，模型热切换时参数不丢失
+class YoloConfigStore
+{
+public:
+    // 以默认参数初始化：置信度 0.4，NMS 0.5，固定间隔不节流，仅检测人类，按类别 NMS
+    YoloConfigStore();
+
+    // 读取一致的快照
+    YoloConfig load() const;
+
+    // 写者先 begin_write 取得当前内容，修改后 end_write 发布，version 自动递增
+    YoloConfig begin_write();
+    void end_write(const YoloConfig& config);
+
+    // 以下参数设置均可在任意线程调用，下一帧 detect 生效
+    void setProbThreshold(float threshold);
+    void setNmsThreshold(float threshold);
+    void setThrottleInterval(int interval);
+    int getThrottleInterval() const;
+
+    // 设置检测模式，模式和对应的类别掩码在同一次发布中更新
+    void setDetectMode(int mode);
+    int getDetectMode() const;
+
+    // 设置类别掩码，第 k 类对应 mask[k / 64] 的第 k % 64 位，检测模式变为 DETECT_MODE_CUSTOM
+    void setClassMask(const uint64_t* mask, int num_words);
+
+    // 按类别序号设置类别掩码，越界的序号被忽略
+    void setClasses(const int* class_ids, int num_class_ids);
+    void getClassMask(uint64_t* mask) const;
+
+    void setNmsMode(int mode);
+    int getNmsMode() const;
+
+    // 调度模式，固定间隔或自适应
+    void setScheduleMode(int mode);
+    int getScheduleMode() const;
+
+    // 自适应调度的占空比预算，1~100
+    void setDutyBudget(int percent);
+
+    // 感兴趣区域，超出 MAX_REGIONS 的部分被忽略，坐标截断到 [0, 1]
+    void setRegions(const float* rects, int num_regions);
+    int getRegions(float* rects) const;
+
+    // 分块推理，网格截断到 1~MAX_TILE_GRID，重叠截断到 0~50
+    void setTiling(int cols, int rows, int overlap_percent);
+    void setTileThreads(int num_threads);
+
+    // 资源限制，由 InferenceGovernor 按温控和电量设置，在同一次发布中更新
+    void setResourceLimits(int num_threads, int powersave, int target_size, int min_interval);
+
+private:
+    void store_words(const YoloConfig& config);
+
+    enum { NUM_WORDS = sizeof(YoloConfig) / sizeof(uint32_t) };
+
+    std::atomic<unsigned int> seq; // 奇数表示写入中
+    std::atomic<uint32_t> words[NUM_WORDS];
+};
+
+#endif // YOLO_CONFIG_H
@@ -0,0 +1,255 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "governor.h"
+
+#include <android/log.h>
+
+#include <dlfcn.h>
+#include <stdio.h>
+#include <time.h>
+
+#include <algorithm>
+
+#include <cpu.h>
+
+#include "config.h"
+#include "stats.h"
+
+// 温控状态查询是一次 binder 调用，按秒级间隔评估
+static const int64_t poll_interval_us = 2000000;
+
+// 降级立即生效，回升要求目标级别持续低于当前级别一段时间，避免在阈值附近来回切换
+static const int64_t climb_hold_us = 30000000;
+
+// 低电量阈值，充电时不受限制
+static const int battery_low = 30;
+static const int battery_critical = 15;
+
+// 各级别的限制
+static const int small_input_size = 256;
+static const int frame_skip_interval = 200; // 毫秒
+
+static const char* level_names[InferenceGovernor::LEVEL_COUNT] =
+{
+    "nominal",
+    "fewer_threads",
+    "little_cores",
+    "small_input",
+    "frame_skip",
+    "small_model",
+};
+
+InferenceGovernor::InferenceGovernor()
+{
+    enabled = true;
+    battery_level = 100;
+    battery_charging = true;
+    current_level = LEVEL_NOMINAL;
+    current_thermal = THERMAL_UNAVAILABLE;
+    last_poll_us = 0;
+    last_transition_us = 0;
+
+    libandroid = 0;
+    thermal_manager = 0;
+    thermal_get_status = 0;
+    thermal_release = 0;
+
+    // minSdk 低于 30，不能直接链接 AThermal_*
+    libandroid = dlopen("libandroid.so", RTLD_NOW);
+    if (libandroid)
+    {
+        void* (*thermal_acquire)() = (void* (*)())dlsym(libandroid, "AThermal_acquireManager");
+        thermal_get_status = (int (*)(void*))dlsym(libandroid, "AThermal_getCurrentThermalStatus");
+        thermal_release = (void (*)(void*))dlsym(libandroid, "AThermal_releaseManager");
+
+        if (thermal_acquire && thermal_get_status && thermal_release)
+            thermal_manager = thermal_acquire();
+    }
+
+    if (!thermal_manager)
+    {
+        __android_log_print(ANDROID_LOG_WARN, "ncnn", "governor thermal status unavailable, battery only");
+    }
+}
+
+InferenceGovernor::~InferenceGovernor()
+{
+    if (thermal_manager)
+        thermal_release(thermal_manager);
+
+    if (libandroid)
+        dlclose(libandroid);
+}
+
+void InferenceGovernor::set_enabled(bool enable)
+{
+    enabled = enable;
+}
+
+bool InferenceGovernor::is_enabled() const
+{
+    return enabled;
+}
+
+void InferenceGovernor::set_battery(int level, bool charging)
+{
+    battery_level = level;
+    battery_charging = charging;
+}
+
+int InferenceGovernor::read_thermal_status()
+{
+    if (!thermal_manager)
+        return THERMAL_UNAVAILABLE;
+
+    return thermal_get_status(thermal_manager);
+}
+
+// 温控状态和电量各自给出最低级别，取较高者
+int InferenceGovernor::target_level(int thermal, int battery, bool charging) const
+{
+    int level = LEVEL_NOMINAL;
+
+    if (thermal >= THERMAL_CRITICAL)
+        level = LEVEL_SMALL_MODEL;
+    else if (thermal == THERMAL_SEVERE)
+        level = LEVEL_FRAME_SKIP;
+    else if (thermal == THERMAL_MODERATE)
+        level = LEVEL_SMALL_INPUT;
+    else if (thermal == THERMAL_LIGHT)
+        level = LEVEL_FEWER_THREADS;
+
+    if (!charging)
+    {
+        if (battery <= battery_critical)
+            level = std::max(level, (int)LEVEL_FRAME_SKIP);
+        else if (battery <= battery_low)
+            level = std::max(level, (int)LEVEL_LITTLE_CORES);
+    }
+
+    return level;
+}
+
+void InferenceGovernor::transition(int64_t now_us, int new_level, int thermal)
+{
+    const int old_level = current_level;
+
+    current_level = new_level;
+    last_transition_us = now_us;
+
+    // 同时记录墙上时间和单调时钟，便于和班次日志对照
+    char wall[32];
+    time_t t = time(0);
+    struct tm tm;
+    localtime_r(&t, &tm);
+    strftime(wall, sizeof(wall), "%Y-%m-%d %H:%M:%S", &tm);
+
+    __android_log_print(ANDROID_LOG_INFO, "ncnn", "governor %s +%.3fs %s -> %s thermal=%d battery=%d%s",
+                        wall, now_us / 1000000.0, level_names[old_level], level_names[new_level],
+                        thermal, (int)battery_level, battery_charging ? " charging" : "");
+}
+
+bool InferenceGovernor::poll(int64_t now_us)
+{
+    ncnn::MutexLockGuard g(poll_lock);
+
+    if (last_poll_us != 0 && now_us - last_poll_us < poll_interval_us)
+        return false;
+
+    last_poll_us = now_us;
+
+    const int thermal = read_thermal_status();
+    current_thermal = thermal;
+
+    stats_set_gauge(STAT_GAUGE_THERMAL_STATUS, thermal);
+
+    const int level = current_level;
+
+    int target = enabled ? target_level(thermal, battery_level, battery_charging) : (int)LEVEL_NOMINAL;
+
+    // 每次评估最多移动一级，回升还需保持足够时间
+    int new_level = level;
+    if (target > level)
+        new_level = level + 1;
+    else if (target < level && (!enabled || now_us - last_transition_us >= climb_hold_us))
+        new_level = level - 1;
+
+    if (!enabled && target < level)
+        new_level = target;
+
+    if (new_level == level)
+        return false;
+
+    transition(now_us, new_level, thermal);
+
+    stats_set_gauge(STAT_GAUGE_GOVERNOR_LEVEL, new_level);
+
+    return true;
+}
+
+int InferenceGovernor::level() const
+{
+    return current_level;
+}
+
+int InferenceGovernor::thermal_status() const
+{
+    return current_thermal;
+}
+
+bool InferenceGovernor::small_model() const
+{
+    return current_level >= LEVEL_SMALL_MODEL;
+}
+
+void InferenceGovernor::apply(YoloConfigStore* config) const
+{
+    const int level = current_level;
+
+    const int big_count = ncnn::get_big_cpu_count();
+    const int little_count = ncnn::get_little_cpu_count();
+
+    int num_threads = big_count;
+    int powersave = 2;
+    int target_size = 0;
+    int min_interval = 0;
+
+    if (level >= LEVEL_FEWER_THREADS)
+    {
+        num_threads = std::max(big_count / 2, 1);
+    }
+
+    if (level >= LEVEL_LITTLE_CORES)
+    {
+        // 没有小核的设备只减少线程，小核数多于上一级线程数时不增加线程，保证每一级都更省电
+        if (little_count > 0)
+        {
+            num_threads = std::min(little_count, num_threads);
+            powersave = 1;
+        }
+    }
+
+    if (level >= LEVEL_SMALL_INPUT)
+    {
+        target_size = small_input_size;
+    }
+
+    if (level >= LEVEL_FRAME_SKIP)
+    {
+        min_interval = frame_skip_interval;
+    }
+
+    config->setResourceLimits(num_threads, powersave, target_size, min_interval);
+}
@@ -0,0 +1,102 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef GOVERNOR_H
+#define GOVERNOR_H
+
+#include <stdint.h>
+
+#include <atomic>
+
+#include <platform.h>
+
+class YoloConfigStore;
+
+// 按温控状态和电量逐级降低推理负载，余量恢复后逐级回升
+// 温控状态通过 AThermal_getCurrentThermalStatus 读取（API 30+，运行时查找），电量由 Java 层传入
+class InferenceGovernor
+{
+public:
+    // 降级阶梯，每级在上一级的基础上再降低一项
+    enum
+    {
+        LEVEL_NOMINAL = 0,     // 大核，大核数线程，模型默认输入尺寸
+        LEVEL_FEWER_THREADS,   // 线程数减半
+        LEVEL_LITTLE_CORES,    // 绑定小核，小核数线程
+        LEVEL_SMALL_INPUT,     // 缩小输入尺寸
+        LEVEL_FRAME_SKIP,      // 限制最短推理间隔
+        LEVEL_SMALL_MODEL,     // yolov8s 换为 yolov8n
+        LEVEL_COUNT
+    };
+
+    // 与 AThermalStatus 一致
+    enum
+    {
+        THERMAL_UNAVAILABLE = -1,
+        THERMAL_NONE = 0,
+        THERMAL_LIGHT,
+        THERMAL_MODERATE,
+        THERMAL_SEVERE,
+        THERMAL_CRITICAL,
+        THERMAL_EMERGENCY,
+        THERMAL_SHUTDOWN
+    };
+
+    InferenceGovernor();
+    ~InferenceGovernor();
+
+    // 关闭后回到 LEVEL_NOMINAL 并不再评估
+    void set_enabled(bool enable);
+    bool is_enabled() const;
+
+    // 电量百分比和是否在充电，可在任意线程调用
+    void set_battery(int level, bool charging);
+
+    // 每个推理帧调用，只在间隔到达时评估，级别变化时返回 true
+    bool poll(int64_t now_us);
+
+    int level() const;
+    int thermal_status() const;
+
+    // 当前级别是否要求使用小模型
+    bool small_model() const;
+
+    // 把当前级别的线程数、省电模式、输入尺寸和最短推理间隔写入参数存储
+    void apply(YoloConfigStore* config) const;
+
+private:
+    int read_thermal_status();
+    int target_level(int thermal, int battery, bool charging) const;
+    void transition(int64_t now_us, int new_level, int thermal);
+
+    ncnn::Mutex poll_lock;
+
+    std::atomic<bool> enabled;
+    std::atomic<int> battery_level;
+    std::atomic<bool> battery_charging;
+
+    std::atomic<int> current_level;
+    std::atomic<int> current_thermal;
+
+    int64_t last_poll_us;
+    int64_t last_transition_us;
+
+    // 运行时从 libandroid 查找的温控接口
+    void* libandroid;
+    void* thermal_manager;
+    int (*thermal_get_status)(void* manager);
+    void (*thermal_release)(void* manager);
+};
+
+#endif // GOVERNOR_H
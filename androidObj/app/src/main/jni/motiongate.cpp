@@ -0,0 +1,126 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "motiongate.h"
+
+#include <stdlib.h>
+
+#include <algorithm>
+
+#include "stats.h"
+
+// 网格列数，行数按宽高比
+static const int grid_cols = 64;
+
+// 每格最小边长，小画面不再细分
+static const int min_cell_size = 8;
+
+// 格子均值亮度变化超过该值视为变化，高于传感器噪声
+static const int luma_threshold = 10;
+
+// 静止过久也放行一次，刷新检测结果
+static const int64_t max_static_us = 2000000;
+
+MotionGate::MotionGate()
+{
+    grid_w = 0;
+    grid_h = 0;
+    ref_roi_w = 0;
+    ref_roi_h = 0;
+    last_pass_us = 0;
+    changed = 1.f;
+}
+
+void MotionGate::reset()
+{
+    reference.clear();
+    ref_roi_w = 0;
+    ref_roi_h = 0;
+}
+
+float MotionGate::changed_ratio() const
+{
+    return changed;
+}
+
+// 每格只读 16 个像素，1080p 画面约 3 千格，读取量不到整帧的 3%
+void MotionGate::downsample(const unsigned char* y, int rowstride, int roi_x, int roi_y, int roi_w, int roi_h)
+{
+    const int cell = std::max(roi_w / grid_cols, min_cell_size);
+    const int step = cell / 4;
+
+    grid_w = roi_w / cell;
+    grid_h = roi_h / cell;
+
+    current.resize(grid_w * grid_h);
+
+    for (int gy = 0; gy < grid_h; gy++)
+    {
+        const unsigned char* row0 = y + (roi_y + gy * cell + step / 2) * rowstride + roi_x + step / 2;
+
+        for (int gx = 0; gx < grid_w; gx++)
+        {
+            const unsigned char* p = row0 + gx * cell;
+
+            int sum = 0;
+            for (int sy = 0; sy < 4; sy++)
+            {
+                const unsigned char* pp = p + sy * step * rowstride;
+                sum += pp[0] + pp[step] + pp[step * 2] + pp[step * 3];
+            }
+
+            current[gy * grid_w + gx] = (unsigned char)(sum >> 4);
+        }
+    }
+}
+
+bool MotionGate::update(const unsigned char* y, int rowstride, int roi_x, int roi_y, int roi_w, int roi_h, float threshold, int64_t now_us)
+{
+    downsample(y, rowstride, roi_x, roi_y, roi_w, roi_h);
+
+    const int num_cells = grid_w * grid_h;
+
+    // 参考帧尺寸不符（旋转或换镜头）时直接放行
+    bool is_static = false;
+    if (num_cells > 0 && roi_w == ref_roi_w && roi_h == ref_roi_h && (int)reference.size() == num_cells)
+    {
+        int num_changed = 0;
+        for (int i = 0; i < num_cells; i++)
+        {
+            if (abs((int)current[i] - (int)reference[i]) > luma_threshold)
+                num_changed++;
+        }
+
+        changed = (float)num_changed / num_cells;
+        is_static = changed < threshold && now_us - last_pass_us < max_static_us;
+    }
+    else
+    {
+        changed = 1.f;
+    }
+
+    // 只在放行时更新参考帧，缓慢的移动也会逐帧累积到阈值以上
+    if (!is_static)
+    {
+        reference.swap(current);
+        ref_roi_w = roi_w;
+        ref_roi_h = roi_h;
+        last_pass_us = now_us;
+    }
+
+    stats_set_gauge(STAT_GAUGE_GATE_CHANGED, (int64_t)(changed * 1000));
+    stats_add_gauge(is_static ? STAT_GAUGE_GATE_SKIP : STAT_GAUGE_GATE_PASS, 1);
+
+    return is_static;
+}
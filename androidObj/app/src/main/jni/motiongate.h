@@ -0,0 +1,52 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef MOTIONGATE_H
+#define MOTIONGATE_H
+
+#include <stdint.h>
+
+#include <vector>
+
+// 运动门控，直接在相机 Y 平面上做降采样帧差
+// 画面切成约 64 列的网格，每格取 4x4 个采样点的均值，与上次放行帧的网格比较
+// 亮度变化超过阈值的格子占比低于 threshold 时判定为静止，可复用上次检测结果
+class MotionGate
+{
+public:
+    MotionGate();
+
+    // 返回 true 表示静止，roi 为 Y 平面中参与比较的区域
+    bool update(const unsigned char* y, int rowstride, int roi_x, int roi_y, int roi_w, int roi_h, float threshold, int64_t now_us);
+
+    // 丢弃参考帧，下一帧必定放行
+    void reset();
+
+    // 最近一帧变化格子的占比
+    float changed_ratio() const;
+
+private:
+    void downsample(const unsigned char* y, int rowstride, int roi_x, int roi_y, int roi_w, int roi_h);
+
+    std::vector<unsigned char> reference;
+    std::vector<unsigned char> current;
+    int grid_w;
+    int grid_h;
+    int ref_roi_w;
+    int ref_roi_h;
+    int64_t last_pass_us;
+    float changed;
+};
+
+#endif // MOTIONGATE_H
@@ -14,6 +14,7 @@
 
 #include "ndkcamera.h"
 
+#include <string.h>
 #include <string>
 #include <unistd.h> // 添加unistd.h头文件以使用usleep函数
 
@@ -24,6 +25,205 @@
 
 #include "mat.h"
 
+#include "stats.h"
+
+#if __ARM_NEON
+#include <arm_neon.h>
+#endif // __ARM_NEON
+
+StagingBufferPool::StagingBufferPool()
+{
+    allocations = 0;
+}
+
+unsigned char* StagingBufferPool::acquire(size_t size)
+{
+    for (size_t i = 0; i < buffers.size(); i++)
+    {
+        if (!buffers[i].in_use && buffers[i].data.size() == size)
+        {
+            buffers[i].in_use = true;
+            return buffers[i].data.data();
+        }
+    }
+
+    // 没有同尺寸的空闲缓冲，优先改造一块空闲的
+    for (size_t i = 0; i < buffers.size(); i++)
+    {
+        if (!buffers[i].in_use)
+        {
+            buffers[i].data.resize(size);
+            buffers[i].in_use = true;
+            allocations++;
+            return buffers[i].data.data();
+        }
+    }
+
+    Buffer b;
+    b.data.resize(size);
+    b.in_use = true;
+    buffers.push_back(b);
+    allocations++;
+    return buffers.back().data.data();
+}
+
+void StagingBufferPool::release(const unsigned char* ptr)
+{
+    for (size_t i = 0; i < buffers.size(); i++)
+    {
+        if (buffers[i].data.data() == ptr)
+        {
+            buffers[i].in_use = false;
+            return;
+        }
+    }
+}
+
+void StagingBufferPool::clear()
+{
+    buffers.clear();
+}
+
+int StagingBufferPool::allocation_count() const
+{
+    return allocations;
+}
+
+// 拷贝 Y 平面，去掉行尾填充
+static void pack_y(const unsigned char* y_data, int y_rowStride, int y_pixelStride, int width, int height, unsigned char* yptr)
+{
+    for (int y = 0; y < height; y++)
+    {
+        const unsigned char* y_data_ptr = y_data + y_rowStride * y;
+
+        if (y_pixelStride == 1)
+        {
+            memcpy(yptr, y_data_ptr, width);
+            yptr += width;
+            continue;
+        }
+
+        for (int x = 0; x < width; x++)
+        {
+            yptr[0] = y_data_ptr[0];
+            yptr++;
+            y_data_ptr += y_pixelStride;
+        }
+    }
+}
+
+// 由 U V 平面构造交错的 VU 平面
+static void pack_vu(const unsigned char* u_data, const unsigned char* v_data, int u_rowStride, int v_rowStride, int u_pixelStride, int v_pixelStride, int width, int height, unsigned char* uvptr)
+{
+    const int w = width / 2;
+    const int h = height / 2;
+
+    if (u_pixelStride == 2 && v_pixelStride == 2 && v_data == u_data + 1 && u_rowStride == v_rowStride)
+    {
+        // nv12 半平面布局，逐对交换 UV -> VU
+        for (int y = 0; y < h; y++)
+        {
+            const unsigned char* p = u_data + u_rowStride * y;
+
+            int x = 0;
+#if __ARM_NEON
+            for (; x + 7 < w; x += 8)
+            {
+                uint8x16_t _uv = vld1q_u8(p);
+                vst1q_u8(uvptr, vrev16q_u8(_uv));
+                p += 16;
+                uvptr += 16;
+            }
+#endif // __ARM_NEON
+            for (; x < w; x++)
+            {
+                uvptr[0] = p[1];
+                uvptr[1] = p[0];
+                p += 2;
+                uvptr += 2;
+            }
+        }
+        return;
+    }
+
+    if (u_pixelStride == 1 && v_pixelStride == 1)
+    {
+        // i420 平面布局，交错 V U
+        for (int y = 0; y < h; y++)
+        {
+            const unsigned char* v_data_ptr = v_data + v_rowStride * y;
+            const unsigned char* u_data_ptr = u_data + u_rowStride * y;
+
+            int x = 0;
+#if __ARM_NEON
+            for (; x + 7 < w; x += 8)
+            {
+                uint8x8x2_t _vu;
+                _vu.val[0] = vld1_u8(v_data_ptr);
+                _vu.val[1] = vld1_u8(u_data_ptr);
+                vst2_u8(uvptr, _vu);
+                v_data_ptr += 8;
+                u_data_ptr += 8;
+                uvptr += 16;
+            }
+#endif // __ARM_NEON
+            for (; x < w; x++)
+            {
+                uvptr[0] = v_data_ptr[0];
+                uvptr[1] = u_data_ptr[0];
+                uvptr += 2;
+                v_data_ptr++;
+                u_data_ptr++;
+            }
+        }
+        return;
+    }
+
+    for (int y = 0; y < h; y++)
+    {
+        const unsigned char* v_data_ptr = v_data + v_rowStride * y;
+        const unsigned char* u_data_ptr = u_data + u_rowStride * y;
+        for (int x = 0; x < w; x++)
+        {
+            uvptr[0] = v_data_ptr[0];
+            uvptr[1] = u_data_ptr[0];
+            uvptr += 2;
+            v_data_ptr += v_pixelStride;
+            u_data_ptr += u_pixelStride;
+        }
+    }
+}
+
+void pack_image_nv21(const AImage* image, int width, int height, unsigned char* nv21)
+{
+    int32_t y_pixelStride = 0;
+    int32_t u_pixelStride = 0;
+    int32_t v_pixelStride = 0;
+    AImage_getPlanePixelStride(image, 0, &y_pixelStride);
+    AImage_getPlanePixelStride(image, 1, &u_pixelStride);
+    AImage_getPlanePixelStride(image, 2, &v_pixelStride);
+
+    int32_t y_rowStride = 0;
+    int32_t u_rowStride = 0;
+    int32_t v_rowStride = 0;
+    AImage_getPlaneRowStride(image, 0, &y_rowStride);
+    AImage_getPlaneRowStride(image, 1, &u_rowStride);
+    AImage_getPlaneRowStride(image, 2, &v_rowStride);
+
+    uint8_t* y_data = 0;
+    uint8_t* u_data = 0;
+    uint8_t* v_data = 0;
+    int y_len = 0;
+    int u_len = 0;
+    int v_len = 0;
+    AImage_getPlaneData(image, 0, &y_data, &y_len);
+    AImage_getPlaneData(image, 1, &u_data, &u_len);
+    AImage_getPlaneData(image, 2, &v_data, &v_len);
+
+    pack_y(y_data, y_rowStride, y_pixelStride, width, height, nv21);
+    pack_vu(u_data, v_data, u_rowStride, v_rowStride, u_pixelStride, v_pixelStride, width, height, nv21 + width * height);
+}
+
 static void onDisconnected(void* context, ACameraDevice* device)
 {
     __android_log_print(ANDROID_LOG_WARN, "NdkCamera", "onDisconnected %p", device);
@@ -38,6 +238,8 @@ static void onImageAvailable(void* context, AImageReader* reader)
 {
 //     __android_log_print(ANDROID_LOG_WARN, "NdkCamera", "onImageAvailable %p", reader);
 
+    int64_t t0 = stats_now_us();
+
     AImage* image = 0;
     media_status_t status = AImageReader_acquireLatestImage(reader, &image);
 
@@ -81,49 +283,46 @@ static void onImageAvailable(void* context, AImageReader* reader)
     AImage_getPlaneData(image, 1, &u_data, &u_len);
     AImage_getPlaneData(image, 2, &v_data, &v_len);
 
-    if (u_data == v_data + 1 && v_data == y_data + width * height && y_pixelStride == 1 && u_pixelStride == 2 && v_pixelStride == 2 && y_rowStride == width && u_rowStride == width && v_rowStride == width)
+    stats_record(STAT_CAMERA_ACQUIRE, stats_now_us() - t0);
+
+    NdkCamera* camera = (NdkCamera*)context;
+
+    if (y_pixelStride == 1 && u_pixelStride == 2 && v_pixelStride == 2 && u_data == v_data + 1 && u_rowStride == v_rowStride)
     {
-        // already nv21  :)
-        ((NdkCamera*)context)->on_image((unsigned char*)y_data, (int)width, (int)height);
+        // already nv21 layout, maybe with row padding  :)
+        camera->frame_copy_bytes = 0;
+        camera->on_image((const unsigned char*)y_data, (int)y_rowStride, (const unsigned char*)v_data, (int)v_rowStride, (int)width, (int)height);
     }
     else
     {
-        // construct nv21
-        unsigned char* nv21 = new unsigned char[width * height + width * height / 2];
-        {
-            // Y
-            unsigned char* yptr = nv21;
-            for (int y=0; y<height; y++)
-            {
-                const unsigned char* y_data_ptr = y_data + y_rowStride * y;
-                for (int x=0; x<width; x++)
-                {
-                    yptr[0] = y_data_ptr[0];
-                    yptr++;
-                    y_data_ptr += y_pixelStride;
-                }
-            }
+        // construct nv21 in pooled staging buffer
+        int64_t t1 = stats_now_us();
 
-            // UV
-            unsigned char* uvptr = nv21 + width * height;
-            for (int y=0; y<height/2; y++)
-            {
-                const unsigned char* v_data_ptr = v_data + v_rowStride * y;
-                const unsigned char* u_data_ptr = u_data + u_rowStride * y;
-                for (int x=0; x<width/2; x++)
-                {
-                    uvptr[0] = v_data_ptr[0];
-                    uvptr[1] = u_data_ptr[0];
-                    uvptr += 2;
-                    v_data_ptr += v_pixelStride;
-                    u_data_ptr += u_pixelStride;
-                }
-            }
+        unsigned char* nv21 = camera->staging_pool.acquire(width * height + width * height / 2);
+
+        int copy_bytes = 0;
+
+        // Y 平面像素连续时原地引用，不拷贝
+        const unsigned char* yptr = y_data;
+        int ystride = y_rowStride;
+        if (y_pixelStride != 1)
+        {
+            pack_y(y_data, y_rowStride, y_pixelStride, width, height, nv21);
+            yptr = nv21;
+            ystride = width;
+            copy_bytes += width * height;
         }
 
-        ((NdkCamera*)context)->on_image((unsigned char*)nv21, (int)width, (int)height);
+        unsigned char* vuptr = nv21 + width * height;
+        pack_vu(u_data, v_data, u_rowStride, v_rowStride, u_pixelStride, v_pixelStride, width, height, vuptr);
+        copy_bytes += width * height / 2;
+
+        stats_record(STAT_NV21_REPACK, stats_now_us() - t1);
+
+        camera->frame_copy_bytes = copy_bytes;
+        camera->on_image(yptr, ystride, vuptr, (int)width, (int)width, (int)height);
 
-        delete[] nv21;
+        camera->staging_pool.release(nv21);
     }
 
     AImage_delete(image);
@@ -169,6 +368,8 @@ NdkCamera::NdkCamera()
     camera_facing = 0;
     camera_orientation = 0;
 
+    frame_copy_bytes = 0;
+
     camera_manager = 0;
     camera_device = 0;
     image_reader = 0;
@@ -180,26 +381,42 @@ NdkCamera::NdkCamera()
     capture_session = 0;
 
 
-    // setup imagereader and its surface
-    {
-        AImageReader_new(640, 480, AIMAGE_FORMAT_YUV_420_888, /*maxImages*/2, &image_reader);
-
-        AImageReader_ImageListener listener;
-        listener.context = this;
-        listener.onImageAvailable = onImageAvailable;
-
-        AImageReader_setImageListener(image_reader, &listener);
-
-        AImageReader_getWindow(image_reader, &image_reader_surface);
+    capture_width = 640;
+    capture_height = 480;
+    reader_width = 0;
+    reader_height = 0;
 
-        ANativeWindow_acquire(image_reader_surface);
-    }
+    create_image_reader();
 }
 
 NdkCamera::~NdkCamera()
 {
     close();
 
+    release_image_reader();
+}
+
+// setup imagereader and its surface
+void NdkCamera::create_image_reader()
+{
+    AImageReader_new(capture_width, capture_height, AIMAGE_FORMAT_YUV_420_888, /*maxImages*/2, &image_reader);
+
+    AImageReader_ImageListener listener;
+    listener.context = this;
+    listener.onImageAvailable = onImageAvailable;
+
+    AImageReader_setImageListener(image_reader, &listener);
+
+    AImageReader_getWindow(image_reader, &image_reader_surface);
+
+    ANativeWindow_acquire(image_reader_surface);
+
+    reader_width = capture_width;
+    reader_height = capture_height;
+}
+
+void NdkCamera::release_image_reader()
+{
     if (image_reader)
     {
         AImageReader_delete(image_reader);
@@ -213,11 +430,28 @@ NdkCamera::~NdkCamera()
     }
 }
 
+// 设置采集分辨率，下次 open 时按新尺寸重建 AImageReader
+void NdkCamera::set_capture_size(int width, int height)
+{
+    if (width <= 0 || height <= 0)
+        return;
+
+    capture_width = width;
+    capture_height = height;
+}
+
 int NdkCamera::open(int _camera_facing)
 {
     __android_log_print(ANDROID_LOG_WARN, "NdkCamera", "open");
 
     camera_facing = _camera_facing;
+
+    // 采集分辨率变化时重建 AImageReader，此时相机已关闭，没有帧在回调中
+    if (capture_width != reader_width || capture_height != reader_height)
+    {
+        release_image_reader();
+        create_image_reader();
+    }
     
     camera_manager = ACameraManager_create();
     if (!camera_manager)
@@ -454,6 +688,24 @@ void NdkCamera::on_image(const cv::Mat& rgb) const
 {
 }
 
+void NdkCamera::on_image(const unsigned char* y, int y_rowstride, const unsigned char* vu, int vu_rowstride, int width, int height) const
+{
+    if (y_rowstride == width && vu_rowstride == width && vu == y + width * height)
+    {
+        on_image(y, width, height);
+        return;
+    }
+
+    // 拼成连续的 nv21
+    unsigned char* nv21 = staging_pool.acquire(width * height + width * height / 2);
+    pack_y(y, y_rowstride, 1, width, height, nv21);
+    pack_y(vu, vu_rowstride, 1, width, height / 2, nv21 + width * height);
+
+    on_image(nv21, width, height);
+
+    staging_pool.release(nv21);
+}
+
 void NdkCamera::on_image(const unsigned char* nv21, int nv21_width, int nv21_height) const
 {
     // rotate nv21
@@ -508,6 +760,11 @@ NdkCameraWindow::NdkCameraWindow() : NdkCamera()
 
     accelerometer_orientation = 0;
 
+    motion_gate_enabled = false;
+    motion_gate_threshold = 0.01f;
+    motion_gate_active = false;
+    motion_static = false;
+
     // sensor
     sensor_manager = ASensorManager_getInstance();
 
@@ -549,7 +806,17 @@ void NdkCameraWindow::on_image_render(cv::Mat& rgb) const
 {
 }
 
+void NdkCameraWindow::on_image_render(const unsigned char* nv21, int nv21_width, int nv21_height, cv::Mat& rgb) const
+{
+    on_image_render(rgb);
+}
+
 void NdkCameraWindow::on_image(const unsigned char* nv21, int nv21_width, int nv21_height) const
+{
+    on_image(nv21, nv21_width, nv21 + nv21_width * nv21_height, nv21_width, nv21_width, nv21_height);
+}
+
+void NdkCameraWindow::on_image(const unsigned char* y, int y_rowstride, const unsigned char* vu, int vu_rowstride, int nv21_width, int nv21_height) const
 {
     // resolve orientation from camera_orientation and accelerometer_sensor
     {
@@ -781,23 +1048,48 @@ void NdkCameraWindow::on_image(const unsigned char* nv21, int nv21_width, int nv
         }
     }
 
+    // 运动门控，在裁剪旋转之前直接读取相机 Y 平面
+    {
+        const bool gate_enabled = motion_gate_enabled;
+        if (gate_enabled != motion_gate_active)
+        {
+            motion_gate.reset();
+            motion_gate_active = gate_enabled;
+        }
+
+        motion_static = false;
+        if (gate_enabled)
+        {
+            StatsScope scope(STAT_MOTION_GATE);
+            motion_static = motion_gate.update(y, y_rowstride, nv21_roi_x, nv21_roi_y, nv21_roi_w, nv21_roi_h, motion_gate_threshold, stats_now_us());
+        }
+    }
+
     // crop and rotate nv21
     cv::Mat nv21_croprotated(roi_h + roi_h / 2, roi_w, CV_8UC1);
     {
-        const unsigned char* srcY = nv21 + nv21_roi_y * nv21_width + nv21_roi_x;
+        StatsScope scope(STAT_CROP_ROTATE);
+
+        const unsigned char* srcY = y + nv21_roi_y * y_rowstride + nv21_roi_x;
         unsigned char* dstY = nv21_croprotated.data;
-        ncnn::kanna_rotate_c1(srcY, nv21_roi_w, nv21_roi_h, nv21_width, dstY, roi_w, roi_h, roi_w, rotate_type);
+        ncnn::kanna_rotate_c1(srcY, nv21_roi_w, nv21_roi_h, y_rowstride, dstY, roi_w, roi_h, roi_w, rotate_type);
 
-        const unsigned char* srcUV = nv21 + nv21_width * nv21_height + nv21_roi_y * nv21_width / 2 + nv21_roi_x;
+        const unsigned char* srcUV = vu + nv21_roi_y / 2 * vu_rowstride + nv21_roi_x;
         unsigned char* dstUV = nv21_croprotated.data + roi_w * roi_h;
-        ncnn::kanna_rotate_c2(srcUV, nv21_roi_w / 2, nv21_roi_h / 2, nv21_width, dstUV, roi_w / 2, roi_h / 2, roi_w, rotate_type);
+        ncnn::kanna_rotate_c2(srcUV, nv21_roi_w / 2, nv21_roi_h / 2, vu_rowstride, dstUV, roi_w / 2, roi_h / 2, roi_w, rotate_type);
     }
 
-    // nv21_croprotated to rgb
+    // nv21_croprotated to rgb, for display only
     cv::Mat rgb(roi_h, roi_w, CV_8UC3);
-    ncnn::yuv420sp2rgb(nv21_croprotated.data, roi_w, roi_h, rgb.data);
+    {
+        StatsScope scope(STAT_YUV2RGB);
+        ncnn::yuv420sp2rgb(nv21_croprotated.data, roi_w, roi_h, rgb.data);
+    }
 
-    on_image_render(rgb);
+    on_image_render(nv21_croprotated.data, roi_w, roi_h, rgb);
+
+    // 旋转到窗口方向并写入窗口
+    StatsScope blit_scope(STAT_BLIT);
 
     // rotate to native window orientation
     cv::Mat rgb_render(render_h, render_w, CV_8UC3);
@@ -847,3 +1139,19 @@ void NdkCameraWindow::on_image(const unsigned char* nv21, int nv21_width, int nv
 
     ANativeWindow_unlockAndPost(win);
 }
+
+void NdkCameraWindow::set_motion_gate(bool enable, float threshold)
+{
+    motion_gate_threshold = threshold;
+    motion_gate_enabled = enable;
+}
+
+bool NdkCameraWindow::get_motion_gate() const
+{
+    return motion_gate_enabled;
+}
+
+bool NdkCameraWindow::frame_static() const
+{
+    return motion_static;
+}
@@ -25,6 +25,39 @@
 
 #include <opencv2/core/core.hpp>
 
+#include <atomic>
+#include <vector>
+
+#include "motiongate.h"
+
+// 按尺寸复用的暂存缓冲池，只在相机回调线程中使用
+class StagingBufferPool
+{
+public:
+    StagingBufferPool();
+
+    // 取一块大小为 size 的空闲缓冲，尺寸相同时直接复用
+    unsigned char* acquire(size_t size);
+    void release(const unsigned char* ptr);
+    void clear();
+
+    // 累计堆分配次数，稳态下不再增长
+    int allocation_count() const;
+
+private:
+    struct Buffer
+    {
+        std::vector<unsigned char> data;
+        bool in_use;
+    };
+    std::vector<Buffer> buffers;
+    int allocations;
+};
+
+// 把 YUV_420_888 图像左上角 width x height 打包为紧凑的 nv21，nv21 至少 width * height * 3 / 2 字节
+// 供相机以外的图像来源（如视频解码）复用相机路径的打包逻辑
+void pack_image_nv21(const AImage* image, int width, int height, unsigned char* nv21);
+
 class NdkCamera
 {
 public:
@@ -39,12 +72,32 @@ public:
 
     virtual void on_image(const unsigned char* nv21, int nv21_width, int nv21_height) const;
 
+    // Y 与 VU 平面分开传入，rowstride 可以带行尾填充，便于直接引用相机缓冲
+    virtual void on_image(const unsigned char* y, int y_rowstride, const unsigned char* vu, int vu_rowstride, int width, int height) const;
+
+    // 设置采集分辨率，默认 640x480，下次 open 生效
+    // 分块推理需要更高的分辨率，尺寸须在相机支持的输出尺寸中，否则会话创建失败
+    void set_capture_size(int width, int height);
+
 public:
     int camera_facing;
     int camera_orientation;
     std::string camera_id; // 添加camera_id成员变量
 
+    mutable StagingBufferPool staging_pool;
+
+    // 上一帧为构造 nv21 拷贝的字节数，0 表示走了零拷贝路径
+    std::atomic<int> frame_copy_bytes;
+
 private:
+    void create_image_reader();
+    void release_image_reader();
+
+    int capture_width;
+    int capture_height;
+    int reader_width;
+    int reader_height;
+
     ACameraManager* camera_manager;
     ACameraDevice* camera_device;
     AImageReader* image_reader;
@@ -66,8 +119,20 @@ public:
 
     virtual void on_image_render(cv::Mat& rgb) const;
 
+    // 同时提供裁剪旋转后的 nv21 和用于显示的 rgb，默认转交 on_image_render(rgb)
+    virtual void on_image_render(const unsigned char* nv21, int nv21_width, int nv21_height, cv::Mat& rgb) const;
+
     virtual void on_image(const unsigned char* nv21, int nv21_width, int nv21_height) const;
 
+    virtual void on_image(const unsigned char* y, int y_rowstride, const unsigned char* vu, int vu_rowstride, int width, int height) const;
+
+    // 运动门控，threshold 为变化格子占比，低于该值的帧判定为静止，默认关闭
+    void set_motion_gate(bool enable, float threshold);
+    bool get_motion_gate() const;
+
+    // 当前帧是否被运动门控判定为静止，只在 on_image_render 中有效
+    bool frame_static() const;
+
 public:
     mutable int accelerometer_orientation;
 
@@ -76,6 +141,13 @@ private:
     mutable ASensorEventQueue* sensor_event_queue;
     const ASensor* accelerometer_sensor;
     ANativeWindow* win;
+
+    // 开关和阈值可在任意线程设置，门控状态只在相机回调线程访问
+    std::atomic<bool> motion_gate_enabled;
+    std::atomic<float> motion_gate_threshold;
+    mutable bool motion_gate_active;
+    mutable bool motion_static;
+    mutable MotionGate motion_gate;
 };
 
 #endif // NDKCAMERA_H
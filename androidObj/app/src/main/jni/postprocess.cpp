@@ -0,0 +1,286 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "postprocess.h"
+
+#include <float.h>
+#include <math.h>
+
+#include <algorithm>
+
+#if __ARM_NEON
+#include <arm_neon.h>
+#endif // __ARM_NEON
+
+#if __ARM_NEON
+// cephes exp, same polynomial as ncnn neon_mathfun.h
+static inline float32x4_t exp_ps(float32x4_t x)
+{
+    const float32x4_t one = vdupq_n_f32(1.f);
+
+    x = vminq_f32(x, vdupq_n_f32(88.3762626647949f));
+    x = vmaxq_f32(x, vdupq_n_f32(-88.3762626647949f));
+
+    // express exp(x) as exp(g + n*log(2))
+    float32x4_t fx = vmlaq_f32(vdupq_n_f32(0.5f), x, vdupq_n_f32(1.44269504088896341f));
+
+    // floor
+    float32x4_t tmp = vcvtq_f32_s32(vcvtq_s32_f32(fx));
+    uint32x4_t mask = vcgtq_f32(tmp, fx);
+    mask = vandq_u32(mask, vreinterpretq_u32_f32(one));
+    fx = vsubq_f32(tmp, vreinterpretq_f32_u32(mask));
+
+    x = vmlsq_f32(x, fx, vdupq_n_f32(0.693359375f));
+    x = vmlsq_f32(x, fx, vdupq_n_f32(-2.12194440e-4f));
+
+    float32x4_t z = vmulq_f32(x, x);
+
+    float32x4_t y = vdupq_n_f32(1.9875691500E-4f);
+    y = vmlaq_f32(vdupq_n_f32(1.3981999507E-3f), y, x);
+    y = vmlaq_f32(vdupq_n_f32(8.3334519073E-3f), y, x);
+    y = vmlaq_f32(vdupq_n_f32(4.1665795894E-2f), y, x);
+    y = vmlaq_f32(vdupq_n_f32(1.6666665459E-1f), y, x);
+    y = vmlaq_f32(vdupq_n_f32(5.0000001201E-1f), y, x);
+    y = vmlaq_f32(x, y, z);
+    y = vaddq_f32(y, one);
+
+    // build 2^n
+    int32x4_t mm = vcvtq_s32_f32(fx);
+    mm = vaddq_s32(mm, vdupq_n_s32(0x7f));
+    mm = vshlq_n_s32(mm, 23);
+
+    return vmulq_f32(y, vreinterpretq_f32_s32(mm));
+}
+
+static inline float reduce_max_ps(float32x4_t v)
+{
+#if __aarch64__
+    return vmaxvq_f32(v);
+#else
+    float32x2_t m = vpmax_f32(vget_low_f32(v), vget_high_f32(v));
+    m = vpmax_f32(m, m);
+    return vget_lane_f32(m, 0);
+#endif
+}
+
+static inline float reduce_sum_ps(float32x4_t v)
+{
+#if __aarch64__
+    return vaddvq_f32(v);
+#else
+    float32x2_t s = vadd_f32(vget_low_f32(v), vget_high_f32(v));
+    s = vpadd_f32(s, s);
+    return vget_lane_f32(s, 0);
+#endif
+}
+
+// 一行 16 个 bin：softmax + 期望，整行驻留在 4 个寄存器中
+static inline float dfl_expectation_16_neon(const float* ptr)
+{
+    float32x4_t _p0 = vld1q_f32(ptr);
+    float32x4_t _p1 = vld1q_f32(ptr + 4);
+    float32x4_t _p2 = vld1q_f32(ptr + 8);
+    float32x4_t _p3 = vld1q_f32(ptr + 12);
+
+    float32x4_t _max = vmaxq_f32(vmaxq_f32(_p0, _p1), vmaxq_f32(_p2, _p3));
+    _max = vdupq_n_f32(reduce_max_ps(_max));
+
+    _p0 = exp_ps(vsubq_f32(_p0, _max));
+    _p1 = exp_ps(vsubq_f32(_p1, _max));
+    _p2 = exp_ps(vsubq_f32(_p2, _max));
+    _p3 = exp_ps(vsubq_f32(_p3, _max));
+
+    static const float bins[16] = {0.f, 1.f, 2.f, 3.f, 4.f, 5.f, 6.f, 7.f, 8.f, 9.f, 10.f, 11.f, 12.f, 13.f, 14.f, 15.f};
+
+    float32x4_t _sum = vaddq_f32(vaddq_f32(_p0, _p1), vaddq_f32(_p2, _p3));
+
+    float32x4_t _dis = vmulq_f32(_p0, vld1q_f32(bins));
+    _dis = vmlaq_f32(_dis, _p1, vld1q_f32(bins + 4));
+    _dis = vmlaq_f32(_dis, _p2, vld1q_f32(bins + 8));
+    _dis = vmlaq_f32(_dis, _p3, vld1q_f32(bins + 12));
+
+    return reduce_sum_ps(_dis) / reduce_sum_ps(_sum);
+}
+#endif // __ARM_NEON
+
+void dfl_decode_ltrb_scalar(const float* bbox_pred, int reg_max, float* pred_ltrb)
+{
+    for (int k = 0; k < 4; k++)
+    {
+        const float* ptr = bbox_pred + k * reg_max;
+
+        float max = -FLT_MAX;
+        for (int l = 0; l < reg_max; l++)
+        {
+            max = std::max(max, ptr[l]);
+        }
+
+        // sum(l * e^x) / sum(e^x) 等价于先 softmax 再求期望，省掉一次归一化
+        float sum = 0.f;
+        float dis = 0.f;
+        for (int l = 0; l < reg_max; l++)
+        {
+            float e = expf(ptr[l] - max);
+            sum += e;
+            dis += l * e;
+        }
+
+        pred_ltrb[k] = dis / sum;
+    }
+}
+
+void dfl_decode_ltrb(const float* bbox_pred, int reg_max, float* pred_ltrb)
+{
+#if __ARM_NEON
+    if (reg_max == 16)
+    {
+        pred_ltrb[0] = dfl_expectation_16_neon(bbox_pred);
+        pred_ltrb[1] = dfl_expectation_16_neon(bbox_pred + 16);
+        pred_ltrb[2] = dfl_expectation_16_neon(bbox_pred + 32);
+        pred_ltrb[3] = dfl_expectation_16_neon(bbox_pred + 48);
+        return;
+    }
+#endif // __ARM_NEON
+
+    dfl_decode_ltrb_scalar(bbox_pred, reg_max, pred_ltrb);
+}
+
+NmsEngine::NmsEngine()
+{
+    // 320 输入下约 10x10 个格子，框普遍不小于 stride 8，再细分收益不大
+    cell_size = 32;
+    cols = 0;
+    rows = 0;
+}
+
+void NmsEngine::reset(int extent_w, int extent_h)
+{
+    x0.clear();
+    y0.clear();
+    x1.clear();
+    y1.clear();
+    areas.clear();
+    labels.clear();
+
+    cols = std::max((extent_w + cell_size - 1) / cell_size, 1);
+    rows = std::max((extent_h + cell_size - 1) / cell_size, 1);
+
+    if ((int)cells.size() < cols * rows)
+        cells.resize(cols * rows);
+
+    for (int i = 0; i < cols * rows; i++)
+    {
+        cells[i].clear();
+    }
+}
+
+void NmsEngine::reserve(int n)
+{
+    x0.reserve(n);
+    y0.reserve(n);
+    x1.reserve(n);
+    y1.reserve(n);
+    areas.reserve(n);
+    labels.reserve(n);
+}
+
+void NmsEngine::add(float x, float y, float w, float h, int label)
+{
+    x0.push_back(x);
+    y0.push_back(y);
+    x1.push_back(x + w);
+    y1.push_back(y + h);
+    areas.push_back(w * h);
+    labels.push_back(label);
+}
+
+int NmsEngine::size() const
+{
+    return (int)x0.size();
+}
+
+void NmsEngine::cell_range(int i, int& cx0, int& cy0, int& cx1, int& cy1) const
+{
+    // 超出画面的部分归入边缘格子
+    cx0 = std::min(std::max((int)floorf(x0[i] / cell_size), 0), cols - 1);
+    cy0 = std::min(std::max((int)floorf(y0[i] / cell_size), 0), rows - 1);
+    cx1 = std::min(std::max((int)floorf(x1[i] / cell_size), 0), cols - 1);
+    cy1 = std::min(std::max((int)floorf(y1[i] / cell_size), 0), rows - 1);
+}
+
+void NmsEngine::run(int mode, float nms_threshold, std::vector<int>& picked)
+{
+    picked.clear();
+
+    const int n = size();
+    const bool per_class = mode == NMS_PER_CLASS;
+
+    for (int i = 0; i < n; i++)
+    {
+        int cx0, cy0, cx1, cy1;
+        cell_range(i, cx0, cy0, cx1, cy1);
+
+        const float ax0 = x0[i];
+        const float ay0 = y0[i];
+        const float ax1 = x1[i];
+        const float ay1 = y1[i];
+        const float area = areas[i];
+        const int label = labels[i];
+
+        // 有交集的两个框必然共享至少一个格子，只需遍历候选框覆盖的格子
+        // 同一个保留框可能在多个格子中出现，重复比较不影响结果
+        int keep = 1;
+        for (int cy = cy0; keep && cy <= cy1; cy++)
+        {
+            for (int cx = cx0; keep && cx <= cx1; cx++)
+            {
+                const std::vector<int>& cell = cells[cy * cols + cx];
+                for (int k = 0; k < (int)cell.size(); k++)
+                {
+                    const int j = cell[k];
+
+                    if (per_class && labels[j] != label)
+                        continue;
+
+                    float iw = std::min(ax1, x1[j]) - std::max(ax0, x0[j]);
+                    float ih = std::min(ay1, y1[j]) - std::max(ay0, y0[j]);
+                    if (iw <= 0.f || ih <= 0.f)
+                        continue;
+
+                    // intersection over union
+                    float inter_area = iw * ih;
+                    float union_area = area + areas[j] - inter_area;
+                    if (inter_area > nms_threshold * union_area)
+                    {
+                        keep = 0;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (!keep)
+            continue;
+
+        picked.push_back(i);
+
+        for (int cy = cy0; cy <= cy1; cy++)
+        {
+            for (int cx = cx0; cx <= cx1; cx++)
+            {
+                cells[cy * cols + cx].push_back(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef POSTPROCESS_H
+#define POSTPROCESS_H
+
+#include <vector>
+
+// DFL 解码：对 4 x reg_max 的分布做 softmax 并求期望，直接写出 ltrb 距离（单位为 grid）
+// 不分配内存、不修改输入，reg_max == 16 时走 SIMD 路径
+void dfl_decode_ltrb(const float* bbox_pred, int reg_max, float* pred_ltrb);
+
+// 纯标量实现，供 SIMD 路径对照和基准测试使用
+void dfl_decode_ltrb_scalar(const float* bbox_pred, int reg_max, float* pred_ltrb);
+
+// 非极大值抑制，框以 SoA 形式保存，并按粗粒度空间网格分桶，
+// 每个候选框只与相邻格子里已保留的框比较
+class NmsEngine
+{
+public:
+    enum
+    {
+        NMS_CLASS_AGNOSTIC = 0, // 不区分类别，任意类别之间都会互相抑制
+        NMS_PER_CLASS = 1       // 只在同类别之间抑制
+    };
+
+    NmsEngine();
+
+    // 开始新的一帧，extent 为框坐标所在的画面尺寸，用于划分网格
+    void reset(int extent_w, int extent_h);
+
+    // 按最坏情况预留候选框存储
+    void reserve(int n);
+
+    // 按置信度从高到低依次加入候选框
+    void add(float x, float y, float w, float h, int label);
+
+    // 执行抑制，picked 为保留下来的候选框序号（按加入顺序）
+    void run(int mode, float nms_threshold, std::vector<int>& picked);
+
+    int size() const;
+
+private:
+    void cell_range(int i, int& cx0, int& cy0, int& cx1, int& cy1) const;
+
+    // SoA 框坐标
+    std::vector<float> x0;
+    std::vector<float> y0;
+    std::vector<float> x1;
+    std::vector<float> y1;
+    std::vector<float> areas;
+    std::vector<int> labels;
+
+    // 网格中每个格子记录与之相交的已保留框序号，内层数组跨帧复用容量
+    std::vector<std::vector<int> > cells;
+    int cell_size;
+    int cols;
+    int rows;
+};
+
+#endif // POSTPROCESS_H
@@ -0,0 +1,97 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "resultring.h"
+
+#include <string.h>
+
+#include <algorithm>
+
+#include "yolo.h"
+
+ResultRing::ResultRing()
+{
+    buffer = new uint32_t[NUM_SLOTS * SLOT_WORDS];
+    memset(buffer, 0, NUM_SLOTS * SLOT_WORDS * sizeof(uint32_t));
+
+    back = 0;
+    middle = 1;
+    front = 2;
+    sequence = 0;
+}
+
+ResultRing::~ResultRing()
+{
+    delete[] buffer;
+}
+
+void* ResultRing::data() const
+{
+    return buffer;
+}
+
+size_t ResultRing::size() const
+{
+    return NUM_SLOTS * SLOT_WORDS * sizeof(uint32_t);
+}
+
+static inline uint32_t float_bits(float v)
+{
+    uint32_t bits;
+    memcpy(&bits, &v, sizeof(bits));
+    return bits;
+}
+
+void ResultRing::publish(const std::vector<Object>& objects, int width, int height, int64_t timestamp_us)
+{
+    uint32_t* slot = buffer + back * SLOT_WORDS;
+
+    const int count = std::min((int)objects.size(), (int)MAX_OBJECTS);
+
+    sequence++;
+    slot[HEADER_SEQUENCE] = sequence;
+    slot[HEADER_COUNT] = count;
+    slot[HEADER_DROPPED] = (uint32_t)objects.size() - count;
+    slot[HEADER_FRAME_WIDTH] = width;
+    slot[HEADER_FRAME_HEIGHT] = height;
+    slot[HEADER_TIMESTAMP_LO] = (uint32_t)timestamp_us;
+    slot[HEADER_TIMESTAMP_HI] = (uint32_t)((uint64_t)timestamp_us >> 32);
+
+    uint32_t* p = slot + HEADER_WORDS;
+    for (int i = 0; i < count; i++)
+    {
+        const Object& obj = objects[i];
+        p[0] = float_bits(obj.rect.x);
+        p[1] = float_bits(obj.rect.y);
+        p[2] = float_bits(obj.rect.width);
+        p[3] = float_bits(obj.rect.height);
+        p[4] = float_bits(obj.prob);
+        p[5] = (uint32_t)obj.label;
+        p[6] = (uint32_t)obj.track_id;
+        p[7] = 0;
+        p += OBJECT_WORDS;
+    }
+
+    // release 保证读者换到该槽位时看到完整内容
+    back = middle.exchange(back | FRESH, std::memory_order_acq_rel) & SLOT_MASK;
+}
+
+int ResultRing::acquire()
+{
+    if (!(middle.load(std::memory_order_relaxed) & FRESH))
+        return -1;
+
+    front = middle.exchange(front, std::memory_order_acq_rel) & SLOT_MASK;
+    return front;
+}
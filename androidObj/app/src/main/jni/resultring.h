@@ -0,0 +1,73 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef RESULTRING_H
+#define RESULTRING_H
+
+#include <stdint.h>
+#include <stddef.h>
+
+#include <atomic>
+#include <vector>
+
+struct Object;
+
+// 检测结果的三槽位环，内存以 DirectByteBuffer 交给 Java 直接读取，不经过 JNI 拷贝
+// 写者写完自己的槽位后与交换槽位原子交换并置新结果标志，读者 acquire 时若有新结果则用自己的槽位换回
+// 任意时刻写者和读者持有不同的槽位，互不等待，读者来不及取走的结果被下一帧覆盖
+class ResultRing
+{
+public:
+    static const int NUM_SLOTS = 3;
+    static const int MAX_OBJECTS = 128;
+
+    // 槽位头部，均为 32 位字，按本机字节序
+    static const int HEADER_SEQUENCE = 0;     // 结果序号，从 1 开始
+    static const int HEADER_COUNT = 1;        // 写出的对象数
+    static const int HEADER_DROPPED = 2;      // 超出 MAX_OBJECTS 未写出的对象数
+    static const int HEADER_FRAME_WIDTH = 3;  // 坐标所在画面的宽高
+    static const int HEADER_FRAME_HEIGHT = 4;
+    static const int HEADER_TIMESTAMP_LO = 5; // 帧时间戳（单调时钟，微秒）
+    static const int HEADER_TIMESTAMP_HI = 6;
+    static const int HEADER_WORDS = 8;
+
+    // 每个对象：x，y，w，h，置信度（float），类别，跟踪编号（int），保留
+    static const int OBJECT_WORDS = 8;
+
+    static const int SLOT_WORDS = HEADER_WORDS + MAX_OBJECTS * OBJECT_WORDS;
+
+    ResultRing();
+    ~ResultRing();
+
+    void* data() const;
+    size_t size() const;
+
+    // 发布一帧的结果，只允许一个写者
+    void publish(const std::vector<Object>& objects, int width, int height, int64_t timestamp_us);
+
+    // 取得最新结果所在的槽位序号，没有新结果时返回 -1，只允许一个读者
+    // 返回的槽位在下次 acquire 之前不会被改写
+    int acquire();
+
+private:
+    enum { SLOT_MASK = 3, FRESH = 4 };
+
+    uint32_t* buffer;
+    int back;  // 写者持有
+    int front; // 读者持有
+    std::atomic<int> middle; // 交换槽位和新结果标志
+    uint32_t sequence;
+};
+
+#endif // RESULTRING_H
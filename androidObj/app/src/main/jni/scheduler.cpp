@@ -0,0 +1,191 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "scheduler.h"
+
+#include <algorithm>
+
+#include "config.h"
+#include "stats.h"
+#include "yolo.h"
+
+// 高于此值认为场景在变化
+static const float scene_change_activity = 0.15f;
+
+// 未设置节流间隔时静止场景的最长推理间隔
+static const int64_t default_max_interval_us = 1000000;
+
+// 退避间隔本身的上限，避免持续翻倍溢出
+static const int64_t max_backoff_us = 60000000;
+
+static int64_t ema(int64_t avg, int64_t value)
+{
+    return avg == 0 ? value : (avg * 7 + value) / 8;
+}
+
+InferenceScheduler::InferenceScheduler()
+{
+    last_run_us = 0;
+    last_frame_us = 0;
+    frame_interval_us = 0;
+    extract_us = 0;
+    activity = 1.f;
+    backoff_us = 0;
+    has_result = false;
+    current_interval_us = 0;
+    current_reason = REASON_WARMUP;
+}
+
+bool InferenceScheduler::should_skip(int64_t now_us, const YoloConfig& config)
+{
+    if (last_frame_us != 0)
+        frame_interval_us = ema(frame_interval_us, now_us - last_frame_us);
+    last_frame_us = now_us;
+
+    if (config.schedule_mode == SCHEDULE_ADAPTIVE)
+    {
+        update_interval(config);
+    }
+    else
+    {
+        current_interval_us = std::max(config.throttle_interval, 0) * (int64_t)1000;
+        current_reason = REASON_FIXED;
+    }
+
+    // 资源限制的最短间隔对两种模式都生效
+    const int64_t governor_interval_us = config.min_interval * (int64_t)1000;
+    if (governor_interval_us > current_interval_us)
+    {
+        current_interval_us = governor_interval_us;
+        current_reason = REASON_GOVERNOR;
+    }
+
+    stats_set_gauge(STAT_GAUGE_SCHED_INTERVAL, current_interval_us);
+    stats_set_gauge(STAT_GAUGE_SCHED_REASON, current_reason);
+    stats_set_gauge(STAT_GAUGE_FRAME_INTERVAL, frame_interval_us);
+
+    // 不节流
+    if (current_interval_us <= 0 || last_run_us == 0 || now_us - last_run_us >= current_interval_us)
+    {
+        last_run_us = now_us;
+        stats_add_gauge(STAT_GAUGE_REASON_FIXED + current_reason, 1);
+        stats_add_gauge(STAT_GAUGE_SCHED_RUN, 1);
+        return false;
+    }
+
+    stats_add_gauge(STAT_GAUGE_SCHED_SKIP, 1);
+    return true;
+}
+
+void InferenceScheduler::update_interval(const YoloConfig& config)
+{
+    if (!has_result || extract_us == 0)
+    {
+        current_interval_us = 0;
+        current_reason = REASON_WARMUP;
+        return;
+    }
+
+    // 占空比预算：推理耗时占比不超过 duty_budget%
+    const int budget = std::min(std::max(config.duty_budget, 1), 100);
+    const int64_t budget_interval_us = extract_us * 100 / budget;
+
+    // 逐帧推理的间隔，不低于相机帧间隔
+    const int64_t min_interval_us = std::max(budget_interval_us, frame_interval_us);
+
+    const int64_t max_interval_us = config.throttle_interval > 0 ? config.throttle_interval * (int64_t)1000 : default_max_interval_us;
+
+    if (activity > scene_change_activity)
+    {
+        backoff_us = min_interval_us;
+        current_interval_us = budget_interval_us > frame_interval_us ? budget_interval_us : 0;
+        current_reason = budget_interval_us > frame_interval_us ? REASON_BUDGET : REASON_SCENE_CHANGE;
+    }
+    else
+    {
+        current_interval_us = std::min(std::max(backoff_us, min_interval_us), std::max(max_interval_us, min_interval_us));
+        current_reason = REASON_SCENE_STATIC;
+    }
+}
+
+void InferenceScheduler::on_extract(int64_t duration_us)
+{
+    extract_us = ema(extract_us, duration_us);
+
+    stats_set_gauge(STAT_GAUGE_EXTRACT_AVG, extract_us);
+}
+
+void InferenceScheduler::on_result(const std::vector<Object>& objects)
+{
+    // 数量变化视为完全变化，否则按与上次同类框的最佳 IoU 估计位移
+    if (!has_result || objects.size() != last_rects.size())
+    {
+        activity = 1.f;
+    }
+    else if (objects.empty())
+    {
+        activity = 0.f;
+    }
+    else
+    {
+        float iou_sum = 0.f;
+        for (size_t i = 0; i < objects.size(); i++)
+        {
+            const cv::Rect_<float>& a = objects[i].rect;
+
+            float best = 0.f;
+            for (size_t j = 0; j < last_rects.size(); j++)
+            {
+                if (last_labels[j] != objects[i].label)
+                    continue;
+
+                const cv::Rect_<float>& b = last_rects[j];
+                float inter = (a & b).area();
+                float uni = a.area() + b.area() - inter;
+                if (uni > 0.f)
+                    best = std::max(best, inter / uni);
+            }
+
+            iou_sum += best;
+        }
+
+        activity = 1.f - iou_sum / objects.size();
+    }
+
+    // 静止时每次推理后退避间隔翻倍，上限由 update_interval 按最长间隔截断
+    if (activity <= scene_change_activity)
+        backoff_us = std::min(std::max(backoff_us, std::max(frame_interval_us, extract_us)) * 2, max_backoff_us);
+
+    last_rects.resize(objects.size());
+    last_labels.resize(objects.size());
+    for (size_t i = 0; i < objects.size(); i++)
+    {
+        last_rects[i] = objects[i].rect;
+        last_labels[i] = objects[i].label;
+    }
+
+    has_result = true;
+
+    stats_set_gauge(STAT_GAUGE_SCENE_ACTIVITY, (int64_t)(activity * 1000));
+}
+
+int64_t InferenceScheduler::interval_us() const
+{
+    return current_interval_us;
+}
+
+int InferenceScheduler::reason() const
+{
+    return current_reason;
+}
@@ -0,0 +1,86 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef SCHEDULER_H
+#define SCHEDULER_H
+
+#include <stdint.h>
+
+#include <vector>
+
+#include <opencv2/core/core.hpp>
+
+struct YoloConfig;
+struct Object;
+
+// 推理调度：决定到达的帧是否执行推理
+// 固定间隔模式沿用节流间隔；自适应模式按推理耗时、相机帧率、场景变化和占空比预算选择推理间隔
+class InferenceScheduler
+{
+public:
+    enum
+    {
+        SCHEDULE_FIXED = 0,
+        SCHEDULE_ADAPTIVE = 1
+    };
+
+    // 每次决策的原因，写入统计供调参
+    enum
+    {
+        REASON_FIXED = 0,    // 固定间隔模式
+        REASON_WARMUP,       // 尚无耗时或场景数据，逐帧推理
+        REASON_SCENE_CHANGE, // 目标数量或位置在变化，按最小间隔推理
+        REASON_SCENE_STATIC, // 场景静止，逐步退避
+        REASON_BUDGET,       // 场景变化但受占空比预算限制
+        REASON_GOVERNOR,     // 被温控或电量限制的最短间隔拉长
+        REASON_COUNT
+    };
+
+    InferenceScheduler();
+
+    // 每个到达的帧调用一次，返回 true 表示本帧跳过
+    bool should_skip(int64_t now_us, const YoloConfig& config);
+
+    // 反馈本次推理的网络耗时
+    void on_extract(int64_t duration_us);
+
+    // 反馈本次推理的结果，用于估计场景变化
+    void on_result(const std::vector<Object>& objects);
+
+    int64_t interval_us() const;
+    int reason() const;
+
+private:
+    void update_interval(const YoloConfig& config);
+
+    int64_t last_run_us;
+    int64_t last_frame_us;
+
+    // 指数滑动平均
+    int64_t frame_interval_us;
+    int64_t extract_us;
+
+    // 场景变化程度 0~1，静止时逐次翻倍的退避间隔
+    float activity;
+    int64_t backoff_us;
+    bool has_result;
+
+    int64_t current_interval_us;
+    int current_reason;
+
+    std::vector<cv::Rect_<float> > last_rects;
+    std::vector<int> last_labels;
+};
+
+#endif // SCHEDULER_H
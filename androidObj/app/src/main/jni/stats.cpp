@@ -0,0 +1,212 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "stats.h"
+
+#include <time.h>
+
+#include <algorithm>
+#include <atomic>
+
+// HDR 风格的对数-线性直方图：每个 2 的幂区间再分 16 档，相对误差约 6%
+// 0~15us 精确计数，上限约 2^31us
+#define STATS_SUB_BITS 4
+#define STATS_SUB_COUNT (1 << STATS_SUB_BITS)
+#define STATS_MAX_MSB 30
+#define STATS_NUM_BUCKETS ((STATS_MAX_MSB - STATS_SUB_BITS + 2) * STATS_SUB_COUNT)
+
+struct StageHistogram
+{
+    std::atomic<uint32_t> buckets[STATS_NUM_BUCKETS];
+    std::atomic<int64_t> count;
+    std::atomic<int64_t> sum;
+    std::atomic<int64_t> max;
+};
+
+// 静态存储零初始化
+static StageHistogram g_stats[STAT_COUNT];
+static std::atomic<int64_t> g_gauges[STAT_NUM_GAUGES];
+
+static inline int msb64(uint64_t v)
+{
+    return 63 - __builtin_clzll(v);
+}
+
+static int bucket_index(int64_t v)
+{
+    if (v < STATS_SUB_COUNT)
+        return v < 0 ? 0 : (int)v;
+
+    int msb = msb64((uint64_t)v);
+    if (msb > STATS_MAX_MSB)
+        return STATS_NUM_BUCKETS - 1;
+
+    int shift = msb - STATS_SUB_BITS;
+    return (msb - STATS_SUB_BITS + 1) * STATS_SUB_COUNT + (int)((v >> shift) & (STATS_SUB_COUNT - 1));
+}
+
+// 返回该档的上界，百分位按保守值报告
+static int64_t bucket_upper(int index)
+{
+    if (index < STATS_SUB_COUNT)
+        return index;
+
+    int octave = index / STATS_SUB_COUNT;
+    int sub = index % STATS_SUB_COUNT;
+    int shift = octave - 1;
+    return ((int64_t)(STATS_SUB_COUNT + sub + 1) << shift) - 1;
+}
+
+int64_t stats_now_us()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
+int64_t stats_now_ns()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+void stats_record(int stage, int64_t duration_us)
+{
+    if (stage < 0 || stage >= STAT_COUNT)
+        return;
+
+    StageHistogram& h = g_stats[stage];
+
+    h.buckets[bucket_index(duration_us)].fetch_add(1, std::memory_order_relaxed);
+    h.count.fetch_add(1, std::memory_order_relaxed);
+    h.sum.fetch_add(duration_us, std::memory_order_relaxed);
+
+    int64_t old_max = h.max.load(std::memory_order_relaxed);
+    while (duration_us > old_max && !h.max.compare_exchange_weak(old_max, duration_us, std::memory_order_relaxed))
+    {
+    }
+}
+
+void stats_set_gauge(int gauge, int64_t value)
+{
+    if (gauge < 0 || gauge >= STAT_NUM_GAUGES)
+        return;
+
+    g_gauges[gauge].store(value, std::memory_order_relaxed);
+}
+
+void stats_add_gauge(int gauge, int64_t delta)
+{
+    if (gauge < 0 || gauge >= STAT_NUM_GAUGES)
+        return;
+
+    g_gauges[gauge].fetch_add(delta, std::memory_order_relaxed);
+}
+
+int stats_snapshot(int64_t* out, int size)
+{
+    int n = 0;
+    for (int s = 0; s < STAT_COUNT && n + STAT_NUM_FIELDS <= size; s++)
+    {
+        const StageHistogram& h = g_stats[s];
+
+        // 并发记录时各字段可能相差几次，统计用途可以接受
+        int64_t total = 0;
+        for (int i = 0; i < STATS_NUM_BUCKETS; i++)
+        {
+            total += h.buckets[i].load(std::memory_order_relaxed);
+        }
+
+        const int64_t rank50 = (total * 50 + 99) / 100;
+        const int64_t rank90 = (total * 90 + 99) / 100;
+        const int64_t rank99 = (total * 99 + 99) / 100;
+        int64_t p50 = -1;
+        int64_t p90 = -1;
+        int64_t p99 = -1;
+
+        int64_t acc = 0;
+        for (int i = 0; i < STATS_NUM_BUCKETS && acc < rank99; i++)
+        {
+            int64_t c = h.buckets[i].load(std::memory_order_relaxed);
+            if (c == 0)
+                continue;
+
+            acc += c;
+            if (p50 < 0 && acc >= rank50) p50 = bucket_upper(i);
+            if (p90 < 0 && acc >= rank90) p90 = bucket_upper(i);
+            if (p99 < 0 && acc >= rank99) p99 = bucket_upper(i);
+        }
+
+        const int64_t count = h.count.load(std::memory_order_relaxed);
+        const int64_t max = h.max.load(std::memory_order_relaxed);
+
+        out[n + STAT_FIELD_COUNT] = count;
+        out[n + STAT_FIELD_MEAN] = count ? h.sum.load(std::memory_order_relaxed) / count : 0;
+        out[n + STAT_FIELD_P50] = p50 < 0 ? 0 : std::min(p50, max);
+        out[n + STAT_FIELD_P90] = p90 < 0 ? 0 : std::min(p90, max);
+        out[n + STAT_FIELD_P99] = p99 < 0 ? 0 : std::min(p99, max);
+        out[n + STAT_FIELD_MAX] = max;
+        n += STAT_NUM_FIELDS;
+    }
+
+    for (int g = 0; g < STAT_NUM_GAUGES && n < size; g++)
+    {
+        out[n++] = g_gauges[g].load(std::memory_order_relaxed);
+    }
+
+    return n;
+}
+
+static bool is_counter_gauge(int gauge)
+{
+    switch (gauge)
+    {
+    case STAT_GAUGE_SCHED_RUN:
+    case STAT_GAUGE_SCHED_SKIP:
+    case STAT_GAUGE_REASON_FIXED:
+    case STAT_GAUGE_REASON_WARMUP:
+    case STAT_GAUGE_REASON_SCENE_CHANGE:
+    case STAT_GAUGE_REASON_SCENE_STATIC:
+    case STAT_GAUGE_REASON_BUDGET:
+    case STAT_GAUGE_REASON_GOVERNOR:
+    case STAT_GAUGE_GATE_PASS:
+    case STAT_GAUGE_GATE_SKIP:
+        return true;
+    default:
+        return false;
+    }
+}
+
+void stats_reset()
+{
+    for (int s = 0; s < STAT_COUNT; s++)
+    {
+        StageHistogram& h = g_stats[s];
+        for (int i = 0; i < STATS_NUM_BUCKETS; i++)
+        {
+            h.buckets[i].store(0, std::memory_order_relaxed);
+        }
+        h.count.store(0, std::memory_order_relaxed);
+        h.sum.store(0, std::memory_order_relaxed);
+        h.max.store(0, std::memory_order_relaxed);
+    }
+
+    // 只清零累计计数，档位、推理间隔、决策原因等状态量只在变化时写入，清零后会一直报告 0 直到下次变化
+    for (int g = 0; g < STAT_NUM_GAUGES; g++)
+    {
+        if (is_counter_gauge(g))
+            g_gauges[g].store(0, std::memory_order_relaxed);
+    }
+}
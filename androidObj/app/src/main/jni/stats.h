@@ -0,0 +1,102 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef STATS_H
+#define STATS_H
+
+#include <stdint.h>
+
+// 逐帧各阶段耗时统计，直方图无锁记录，任意线程可调用
+enum
+{
+    STAT_CAMERA_ACQUIRE = 0, // 取相机帧
+    STAT_NV21_REPACK,        // 构造 nv21
+    STAT_CROP_ROTATE,        // 裁剪旋转
+    STAT_YUV2RGB,            // 转显示用 rgb
+    STAT_PREPROCESS,         // 缩放、转色、填充、归一化
+    STAT_EXTRACT,            // 网络推理
+    STAT_DECODE,             // 候选框解码
+    STAT_NMS,                // 排序和 NMS
+    STAT_DRAW,               // 绘制
+    STAT_BLIT,               // 写入窗口
+    STAT_MOTION_GATE,        // 运动门控帧差
+    STAT_COUNT
+};
+
+// 每个阶段输出的字段：次数、平均、p50、p90、p99、最大，时间单位为微秒
+enum
+{
+    STAT_FIELD_COUNT = 0,
+    STAT_FIELD_MEAN,
+    STAT_FIELD_P50,
+    STAT_FIELD_P90,
+    STAT_FIELD_P99,
+    STAT_FIELD_MAX,
+    STAT_NUM_FIELDS
+};
+
+// 调度相关的瞬时值和计数，附在各阶段统计之后输出
+enum
+{
+    STAT_GAUGE_SCHED_INTERVAL = 0, // 当前推理间隔，微秒，0 表示逐帧
+    STAT_GAUGE_SCHED_REASON,       // 最近一次决策原因 InferenceScheduler::REASON_*
+    STAT_GAUGE_SCENE_ACTIVITY,     // 场景变化程度，千分比
+    STAT_GAUGE_EXTRACT_AVG,        // 推理耗时滑动平均，微秒
+    STAT_GAUGE_FRAME_INTERVAL,     // 帧间隔滑动平均，微秒
+    STAT_GAUGE_SCHED_RUN,          // 执行推理的帧数
+    STAT_GAUGE_SCHED_SKIP,         // 跳过推理的帧数
+    STAT_GAUGE_REASON_FIXED,       // 以下按原因统计执行推理的次数，顺序同 REASON_*
+    STAT_GAUGE_REASON_WARMUP,
+    STAT_GAUGE_REASON_SCENE_CHANGE,
+    STAT_GAUGE_REASON_SCENE_STATIC,
+    STAT_GAUGE_REASON_BUDGET,
+    STAT_GAUGE_REASON_GOVERNOR,
+    STAT_GAUGE_GOVERNOR_LEVEL,     // InferenceGovernor::LEVEL_*
+    STAT_GAUGE_THERMAL_STATUS,     // AThermalStatus，-1 表示不可用
+    STAT_GAUGE_GATE_PASS,          // 运动门控放行的帧数
+    STAT_GAUGE_GATE_SKIP,          // 运动门控判定静止的帧数
+    STAT_GAUGE_GATE_CHANGED,       // 最近一帧变化格子的占比，千分比
+    STAT_NUM_GAUGES
+};
+
+// 单调时钟，微秒
+int64_t stats_now_us();
+
+// 单调时钟，纳秒，供微基准计时
+int64_t stats_now_ns();
+
+void stats_record(int stage, int64_t duration_us);
+
+void stats_set_gauge(int gauge, int64_t value);
+void stats_add_gauge(int gauge, int64_t delta);
+
+// 先按 STAT_COUNT x STAT_NUM_FIELDS 写出各阶段，再写 STAT_NUM_GAUGES 个瞬时值，不分配内存，返回写出的个数
+int stats_snapshot(int64_t* out, int size);
+
+// 清空各阶段耗时和累计计数，保留档位、推理间隔等状态量
+void stats_reset();
+
+// 作用域计时
+class StatsScope
+{
+public:
+    explicit StatsScope(int _stage) : stage(_stage), t0(stats_now_us()) {}
+    ~StatsScope() { stats_record(stage, stats_now_us() - t0); }
+
+private:
+    int stage;
+    int64_t t0;
+};
+
+#endif // STATS_H
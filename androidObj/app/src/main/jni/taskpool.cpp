@@ -0,0 +1,119 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "taskpool.h"
+
+TaskPool::TaskPool(int num_threads)
+{
+    func = 0;
+    context = 0;
+    generation = 0;
+    remaining = 0;
+    exit = false;
+
+    // 线程启动前先固定参数地址
+    worker_args.resize(num_threads);
+    for (int i = 0; i < num_threads; i++)
+    {
+        worker_args[i].pool = this;
+        worker_args[i].worker = i + 1;
+    }
+
+    for (int i = 0; i < num_threads; i++)
+    {
+        threads.push_back(new ncnn::Thread(worker_entry, &worker_args[i]));
+    }
+}
+
+TaskPool::~TaskPool()
+{
+    {
+        ncnn::MutexLockGuard g(lock);
+        exit = true;
+        start_cond.broadcast();
+    }
+
+    for (size_t i = 0; i < threads.size(); i++)
+    {
+        threads[i]->join();
+        delete threads[i];
+    }
+}
+
+int TaskPool::num_workers() const
+{
+    return (int)threads.size() + 1;
+}
+
+void TaskPool::run(void (*_func)(void* context, int worker), void* _context)
+{
+    {
+        ncnn::MutexLockGuard g(lock);
+        func = _func;
+        context = _context;
+        remaining = (int)threads.size();
+        generation++;
+        start_cond.broadcast();
+    }
+
+    _func(_context, 0);
+
+    ncnn::MutexLockGuard g(lock);
+    while (remaining > 0)
+    {
+        done_cond.wait(lock);
+    }
+}
+
+void* TaskPool::worker_entry(void* args)
+{
+    WorkerArgs* wa = (WorkerArgs*)args;
+    wa->pool->worker_loop(wa->worker);
+    return 0;
+}
+
+void TaskPool::worker_loop(int worker)
+{
+    unsigned int seen = 0;
+
+    while (1)
+    {
+        void (*f)(void* context, int worker) = 0;
+        void* ctx = 0;
+        {
+            ncnn::MutexLockGuard g(lock);
+
+            while (generation == seen && !exit)
+            {
+                start_cond.wait(lock);
+            }
+
+            if (exit)
+                break;
+
+            seen = generation;
+            f = func;
+            ctx = context;
+        }
+
+        f(ctx, worker);
+
+        {
+            ncnn::MutexLockGuard g(lock);
+            remaining--;
+            if (remaining == 0)
+                done_cond.signal();
+        }
+    }
+}
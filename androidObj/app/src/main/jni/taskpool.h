@@ -0,0 +1,63 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef TASKPOOL_H
+#define TASKPOOL_H
+
+#include <vector>
+
+#include <platform.h>
+
+// 常驻线程池，每次 run 在所有后台线程和调用线程上各执行一次同一个函数
+// 任务的划分由函数自己完成（例如原子计数领取），run 在全部返回后才返回
+class TaskPool
+{
+public:
+    // num_threads 为后台线程数，加上调用线程共 num_threads + 1 个工作者
+    TaskPool(int num_threads);
+    ~TaskPool();
+
+    // worker 为 0 表示调用线程，1 ~ num_threads 为后台线程
+    void run(void (*func)(void* context, int worker), void* context);
+
+    int num_workers() const;
+
+protected:
+    static void* worker_entry(void* args);
+    void worker_loop(int worker);
+
+private:
+    ncnn::Mutex lock;
+    ncnn::ConditionVariable start_cond;
+    ncnn::ConditionVariable done_cond;
+
+    void (*func)(void* context, int worker);
+    void* context;
+
+    // 每次 run 递增，后台线程据此判断有新任务
+    unsigned int generation;
+    int remaining;
+    bool exit;
+
+    struct WorkerArgs
+    {
+        TaskPool* pool;
+        int worker;
+    };
+
+    std::vector<WorkerArgs> worker_args;
+    std::vector<ncnn::Thread*> threads;
+};
+
+#endif // TASKPOOL_H
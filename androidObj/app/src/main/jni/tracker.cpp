@@ -0,0 +1,350 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "tracker.h"
+
+#include <float.h>
+
+#include <algorithm>
+
+#include "yolo.h"
+
+// 关联所需的最小 IoU
+static const float min_iou = 0.3f;
+
+// 连续这么多次推理未关联则删除轨迹
+static const int max_misses = 3;
+
+// 外推的最长时间，推理停顿时框不会一直漂移
+static const int64_t max_extrapolate_us = 500000;
+
+// 噪声按框高缩放，时间以秒为单位
+static const float measure_std = 0.05f;      // 检测框的位置误差
+static const float position_accel_std = 2.f; // 中心的加速度
+static const float size_accel_std = 0.5f;    // 宽高的变化率
+static const float position_velocity_std = 1.f; // 新轨迹中心速度的先验
+static const float size_velocity_std = 0.25f;
+
+void ObjectTracker::KalmanAxis::init(float z, float r, float q)
+{
+    x = z;
+    v = 0.f;
+    p00 = r;
+    p01 = 0.f;
+    p11 = q;
+}
+
+// 匀速模型，过程噪声为白噪声加速度
+void ObjectTracker::KalmanAxis::predict(float dt, float q)
+{
+    x += v * dt;
+
+    const float dt2 = dt * dt;
+    p00 += dt * (2 * p01 + dt * p11) + q * dt2 * dt / 3;
+    p01 += dt * p11 + q * dt2 / 2;
+    p11 += q * dt;
+}
+
+void ObjectTracker::KalmanAxis::correct(float z, float r)
+{
+    const float s = p00 + r;
+    const float k0 = p00 / s;
+    const float k1 = p01 / s;
+    const float y = z - x;
+
+    x += k0 * y;
+    v += k1 * y;
+
+    p11 -= k1 * p01;
+    p01 -= k0 * p01;
+    p00 -= k0 * p00;
+}
+
+float ObjectTracker::KalmanAxis::extrapolate(float dt) const
+{
+    return x + v * dt;
+}
+
+// 匈牙利算法求 cost 的最小代价匹配，要求 n <= m，assignment[i] 为第 i 行匹配的列
+void ObjectTracker::hungarian(int n, int m)
+{
+    std::vector<float>& u = hungarian_u;
+    std::vector<float>& v = hungarian_v;
+    std::vector<int>& p = hungarian_p;
+    std::vector<int>& way = hungarian_way;
+    std::vector<float>& minv = hungarian_minv;
+    std::vector<char>& used = hungarian_used;
+
+    u.assign(n + 1, 0.f);
+    v.assign(m + 1, 0.f);
+    p.assign(m + 1, 0);
+    way.assign(m + 1, 0);
+    minv.resize(m + 1);
+    used.resize(m + 1);
+
+    for (int i = 1; i <= n; i++)
+    {
+        p[0] = i;
+        int j0 = 0;
+        std::fill(minv.begin(), minv.end(), FLT_MAX);
+        std::fill(used.begin(), used.end(), 0);
+
+        do
+        {
+            used[j0] = 1;
+            const int i0 = p[j0];
+            float delta = FLT_MAX;
+            int j1 = 0;
+
+            for (int j = 1; j <= m; j++)
+            {
+                if (used[j])
+                    continue;
+
+                const float cur = cost[(i0 - 1) * m + (j - 1)] - u[i0] - v[j];
+                if (cur < minv[j])
+                {
+                    minv[j] = cur;
+                    way[j] = j0;
+                }
+                if (minv[j] < delta)
+                {
+                    delta = minv[j];
+                    j1 = j;
+                }
+            }
+
+            for (int j = 0; j <= m; j++)
+            {
+                if (used[j])
+                {
+                    u[p[j]] += delta;
+                    v[j] -= delta;
+                }
+                else
+                {
+                    minv[j] -= delta;
+                }
+            }
+
+            j0 = j1;
+        } while (p[j0] != 0);
+
+        do
+        {
+            const int j1 = way[j0];
+            p[j0] = p[j1];
+            j0 = j1;
+        } while (j0);
+    }
+
+    assignment.assign(n, -1);
+    for (int j = 1; j <= m; j++)
+    {
+        if (p[j])
+            assignment[p[j] - 1] = j - 1;
+    }
+}
+
+static float rect_iou(float ax, float ay, float aw, float ah, const cv::Rect_<float>& b)
+{
+    const float x0 = std::max(ax, b.x);
+    const float y0 = std::max(ay, b.y);
+    const float x1 = std::min(ax + aw, b.x + b.width);
+    const float y1 = std::min(ay + ah, b.y + b.height);
+
+    if (x1 <= x0 || y1 <= y0)
+        return 0.f;
+
+    const float inter = (x1 - x0) * (y1 - y0);
+    return inter / (aw * ah + b.area() - inter);
+}
+
+ObjectTracker::ObjectTracker()
+{
+    next_id = 0;
+}
+
+void ObjectTracker::predicted_rect(const Track& track, int64_t timestamp_us, float& x, float& y, float& w, float& h) const
+{
+    const int64_t elapsed_us = std::min(std::max(timestamp_us - track.timestamp_us, (int64_t)0), max_extrapolate_us);
+    const float dt = elapsed_us / 1000000.f;
+
+    const float cx = track.axes[AXIS_CX].extrapolate(dt);
+    const float cy = track.axes[AXIS_CY].extrapolate(dt);
+    w = std::max(track.axes[AXIS_W].extrapolate(dt), 1.f);
+    h = std::max(track.axes[AXIS_H].extrapolate(dt), 1.f);
+    x = cx - w / 2;
+    y = cy - h / 2;
+}
+
+void ObjectTracker::update(std::vector<Object>& detections, int64_t timestamp_us)
+{
+    const int num_tracks = (int)tracks.size();
+    const int num_detections = (int)detections.size();
+
+    // 代价为 1 - IoU，类别不同的不关联
+    // 轨迹多于检测时转置，保证行数不多于列数
+    const bool transposed = num_tracks > num_detections;
+    const int n = transposed ? num_detections : num_tracks;
+    const int m = transposed ? num_tracks : num_detections;
+
+    cost.resize(n * m);
+    for (int i = 0; i < num_tracks; i++)
+    {
+        float x, y, w, h;
+        predicted_rect(tracks[i], timestamp_us, x, y, w, h);
+
+        for (int j = 0; j < num_detections; j++)
+        {
+            float iou = 0.f;
+            if (tracks[i].label == detections[j].label)
+                iou = rect_iou(x, y, w, h, detections[j].rect);
+
+            if (transposed)
+                cost[j * m + i] = 1.f - iou;
+            else
+                cost[i * m + j] = 1.f - iou;
+        }
+    }
+
+    if (n > 0)
+        hungarian(n, m);
+    else
+        assignment.clear();
+
+    detection_matched.assign(num_detections, 0);
+
+    // 按轨迹遍历匹配结果，IoU 不足的视为未关联
+    track_match.assign(num_tracks, -1);
+    for (int r = 0; r < n; r++)
+    {
+        const int c = assignment[r];
+        if (c < 0)
+            continue;
+
+        const int ti = transposed ? c : r;
+        const int di = transposed ? r : c;
+        if (1.f - cost[r * m + c] < min_iou)
+            continue;
+
+        track_match[ti] = di;
+    }
+
+    for (int i = 0; i < num_tracks; i++)
+    {
+        Track& track = tracks[i];
+
+        const int di = track_match[i];
+        if (di < 0)
+        {
+            track.misses++;
+            continue;
+        }
+
+        Object& obj = detections[di];
+
+        const float h = std::max(obj.rect.height, 1.f);
+        const float r = (measure_std * h) * (measure_std * h);
+        const float qp = (position_accel_std * h) * (position_accel_std * h);
+        const float qs = (size_accel_std * h) * (size_accel_std * h);
+
+        const float dt = std::max(timestamp_us - track.timestamp_us, (int64_t)0) / 1000000.f;
+        track.axes[AXIS_CX].predict(dt, qp);
+        track.axes[AXIS_CY].predict(dt, qp);
+        track.axes[AXIS_W].predict(dt, qs);
+        track.axes[AXIS_H].predict(dt, qs);
+
+        track.axes[AXIS_CX].correct(obj.rect.x + obj.rect.width / 2, r);
+        track.axes[AXIS_CY].correct(obj.rect.y + obj.rect.height / 2, r);
+        track.axes[AXIS_W].correct(obj.rect.width, r);
+        track.axes[AXIS_H].correct(obj.rect.height, r);
+
+        track.prob = obj.prob;
+        track.timestamp_us = timestamp_us;
+        track.misses = 0;
+
+        obj.track_id = track.id;
+        detection_matched[di] = 1;
+    }
+
+    // 删除长时间未关联的轨迹
+    size_t k = 0;
+    for (size_t i = 0; i < tracks.size(); i++)
+    {
+        if (tracks[i].misses < max_misses)
+            tracks[k++] = tracks[i];
+    }
+    tracks.resize(k);
+
+    // 未关联的检测开始新轨迹
+    for (int j = 0; j < num_detections; j++)
+    {
+        if (detection_matched[j])
+            continue;
+
+        Object& obj = detections[j];
+
+        const float h = std::max(obj.rect.height, 1.f);
+        const float r = (measure_std * h) * (measure_std * h);
+        const float vp = (position_velocity_std * h) * (position_velocity_std * h);
+        const float vs = (size_velocity_std * h) * (size_velocity_std * h);
+
+        Track track;
+        track.id = next_id++;
+        track.label = obj.label;
+        track.prob = obj.prob;
+        track.axes[AXIS_CX].init(obj.rect.x + obj.rect.width / 2, r, vp);
+        track.axes[AXIS_CY].init(obj.rect.y + obj.rect.height / 2, r, vp);
+        track.axes[AXIS_W].init(obj.rect.width, r, vs);
+        track.axes[AXIS_H].init(obj.rect.height, r, vs);
+        track.timestamp_us = timestamp_us;
+        track.misses = 0;
+
+        tracks.push_back(track);
+
+        obj.track_id = track.id;
+    }
+}
+
+void ObjectTracker::predict(int64_t timestamp_us, std::vector<Object>& objects) const
+{
+    objects.clear();
+
+    // 只输出最近一次推理中关联上的轨迹，未关联的轨迹保留用于重新关联但不绘制
+    for (size_t i = 0; i < tracks.size(); i++)
+    {
+        const Track& track = tracks[i];
+        if (track.misses > 0)
+            continue;
+
+        Object obj;
+        predicted_rect(track, timestamp_us, obj.rect.x, obj.rect.y, obj.rect.width, obj.rect.height);
+        obj.label = track.label;
+        obj.prob = track.prob;
+        obj.track_id = track.id;
+
+        objects.push_back(obj);
+    }
+}
+
+void ObjectTracker::reset()
+{
+    tracks.clear();
+}
+
+int ObjectTracker::track_count() const
+{
+    return (int)tracks.size();
+}
@@ -0,0 +1,96 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef TRACKER_H
+#define TRACKER_H
+
+#include <stdint.h>
+
+#include <vector>
+
+struct Object;
+
+// 检测结果之间的目标跟踪
+// 推理帧上按 IoU 用匈牙利算法关联检测和轨迹，每条轨迹的中心和宽高各用一个匀速卡尔曼滤波
+// 跳过推理的帧上把轨迹外推到当前时刻，框随目标移动而不是停在上次推理的位置
+// 不加锁，调用方负责 update 和 predict 之间的互斥
+class ObjectTracker
+{
+public:
+    ObjectTracker();
+
+    // 以一次推理结果更新轨迹，timestamp_us 为该帧的采集时间
+    // 关联上的检测写回 track_id
+    void update(std::vector<Object>& detections, int64_t timestamp_us);
+
+    // 输出外推到 timestamp_us 的轨迹，不修改轨迹状态
+    void predict(int64_t timestamp_us, std::vector<Object>& objects) const;
+
+    // 清空轨迹，编号继续递增
+    void reset();
+
+    int track_count() const;
+
+private:
+    // 单个坐标的位置和速度，协方差只保存上三角
+    struct KalmanAxis
+    {
+        float x;
+        float v;
+        float p00;
+        float p01;
+        float p11;
+
+        void init(float z, float r, float q);
+        void predict(float dt, float q);
+        void correct(float z, float r);
+        float extrapolate(float dt) const;
+    };
+
+    enum { AXIS_CX = 0, AXIS_CY, AXIS_W, AXIS_H, NUM_AXES };
+
+    struct Track
+    {
+        int id;
+        int label;
+        float prob;
+        KalmanAxis axes[NUM_AXES];
+        int64_t timestamp_us; // 滤波状态对应的时刻
+        int misses; // 连续未关联的推理次数
+    };
+
+    void predicted_rect(const Track& track, int64_t timestamp_us, float& x, float& y, float& w, float& h) const;
+
+    void hungarian(int n, int m);
+
+private:
+    std::vector<Track> tracks;
+    int next_id;
+
+    // 关联时复用的缓冲
+    std::vector<float> cost;
+    std::vector<int> assignment;
+    std::vector<char> detection_matched;
+    std::vector<int> track_match;
+
+    // 匈牙利算法的势和增广路径
+    std::vector<float> hungarian_u;
+    std::vector<float> hungarian_v;
+    std::vector<int> hungarian_p;
+    std::vector<int> hungarian_way;
+    std::vector<float> hungarian_minv;
+    std::vector<char> hungarian_used;
+};
+
+#endif // TRACKER_H
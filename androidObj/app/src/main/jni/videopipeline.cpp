@@ -0,0 +1,520 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#include "videopipeline.h"
+
+#include <string.h>
+#include <unistd.h>
+
+#include <algorithm>
+
+#include <android/log.h>
+
+#include "ndkcamera.h"
+#include "stats.h"
+
+// 编解码器队列的等待时间
+static const int64_t codec_timeout_us = 10000;
+
+// 等待渲染到 AImageReader 的最长时间，超时丢弃这一帧
+static const int image_timeout_ms = 1000;
+
+static const int64_t progress_interval_us = 500000;
+
+VideoPipeline::VideoPipeline(DetectFunc _detect, ProgressFunc _progress, void* _context)
+{
+    detect = _detect;
+    progress = _progress;
+    context = _context;
+
+    extractor = 0;
+    codec = 0;
+    reader = 0;
+    width = 0;
+    height = 0;
+    duration_us = 0;
+    stride = 1;
+
+    exit = false;
+    cancelled = false;
+    num_dispatched = 0;
+    decode_finished = false;
+}
+
+int VideoPipeline::open_decoder(const char* path)
+{
+    extractor = AMediaExtractor_new();
+    if (AMediaExtractor_setDataSource(extractor, path) != AMEDIA_OK)
+    {
+        __android_log_print(ANDROID_LOG_WARN, "ncnn", "open video %s failed", path);
+        return -1;
+    }
+
+    // 取第一条视频轨
+    AMediaFormat* format = 0;
+    const char* mime = 0;
+    const size_t num_tracks = AMediaExtractor_getTrackCount(extractor);
+    for (size_t i = 0; i < num_tracks; i++)
+    {
+        AMediaFormat* f = AMediaExtractor_getTrackFormat(extractor, i);
+        const char* m = 0;
+        if (AMediaFormat_getString(f, AMEDIAFORMAT_KEY_MIME, &m) && strncmp(m, "video/", 6) == 0)
+        {
+            AMediaExtractor_selectTrack(extractor, i);
+            format = f;
+            mime = m;
+            break;
+        }
+        AMediaFormat_delete(f);
+    }
+
+    if (!format)
+    {
+        __android_log_print(ANDROID_LOG_WARN, "ncnn", "no video track in %s", path);
+        return -1;
+    }
+
+    int32_t w = 0;
+    int32_t h = 0;
+    AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_WIDTH, &w);
+    AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_HEIGHT, &h);
+    duration_us = 0;
+    AMediaFormat_getInt64(format, AMEDIAFORMAT_KEY_DURATION, &duration_us);
+
+    // 帧在读出后立即打包并归还，少量缓冲即可
+    int ret = -1;
+    ANativeWindow* window = 0;
+    if (w > 1 && h > 1 && AImageReader_new(w, h, AIMAGE_FORMAT_YUV_420_888, 3, &reader) == AMEDIA_OK)
+    {
+        AImageReader_getWindow(reader, &window);
+
+        codec = AMediaCodec_createDecoderByType(mime);
+        if (codec && AMediaCodec_configure(codec, format, window, 0, 0) == AMEDIA_OK && AMediaCodec_start(codec) == AMEDIA_OK)
+        {
+            ret = 0;
+        }
+    }
+
+    if (ret != 0)
+    {
+        __android_log_print(ANDROID_LOG_WARN, "ncnn", "create decoder %s %dx%d failed", mime, w, h);
+    }
+
+    // nv21 的色度按 2x2 采样，奇数尺寸舍去最后一行一列
+    // 视频的旋转信息不处理，坐标对应解码输出的画面
+    width = w & ~1;
+    height = h & ~1;
+
+    AMediaFormat_delete(format);
+
+    return ret;
+}
+
+void VideoPipeline::close_decoder()
+{
+    if (codec)
+    {
+        AMediaCodec_stop(codec);
+        AMediaCodec_delete(codec);
+        codec = 0;
+    }
+
+    if (reader)
+    {
+        AImageReader_delete(reader);
+        reader = 0;
+    }
+
+    if (extractor)
+    {
+        AMediaExtractor_delete(extractor);
+        extractor = 0;
+    }
+}
+
+float VideoPipeline::run(const char* path, const char* output_path, int num_workers, int _stride)
+{
+    stride = std::max(_stride, 0);
+    num_workers = std::max(num_workers, 1);
+
+    if (open_decoder(path) != 0)
+    {
+        close_decoder();
+        return -1.f;
+    }
+
+    FILE* fp = fopen(output_path, "wb");
+    if (!fp)
+    {
+        __android_log_print(ANDROID_LOG_WARN, "ncnn", "open %s failed", output_path);
+        close_decoder();
+        return -2.f;
+    }
+
+    fprintf(fp, "frame,timestamp_us,label,prob,x,y,w,h\n");
+
+    exit = false;
+    cancelled = false;
+    results.clear();
+    num_dispatched = 0;
+    decode_finished = false;
+
+    const int64_t t0 = stats_now_us();
+
+    // 缓冲在线程启动前分配好，解码线程只往空闲的槽里打包
+    for (int i = 0; i < num_workers; i++)
+    {
+        Worker* w = new Worker;
+        w->pipeline = this;
+        w->nv21.resize(width * height * 3 / 2);
+        w->sequence = 0;
+        w->frame = 0;
+        w->timestamp_us = 0;
+        w->busy = false;
+        workers.push_back(w);
+    }
+
+    for (int i = 0; i < num_workers; i++)
+    {
+        workers[i]->thread = new ncnn::Thread(worker_entry, workers[i]);
+    }
+
+    ncnn::Thread* decode_thread = new ncnn::Thread(decode_entry, this);
+
+    // 推理线程完成的顺序不定，按送检序号依次写出
+    int next = 0;
+    int64_t position_us = 0;
+    int64_t last_report_us = t0;
+    while (1)
+    {
+        Result r;
+        {
+            ncnn::MutexLockGuard g(result_lock);
+
+            while (results.find(next) == results.end() && !(decode_finished && next == num_dispatched))
+            {
+                result_ready.wait(result_lock);
+            }
+
+            std::map<int, Result>::iterator it = results.find(next);
+            if (it == results.end())
+                break;
+
+            r.frame = it->second.frame;
+            r.timestamp_us = it->second.timestamp_us;
+            r.objects.swap(it->second.objects);
+            results.erase(it);
+        }
+
+        write_result(fp, r.frame, r.timestamp_us, r.objects);
+
+        next++;
+        position_us = r.timestamp_us;
+
+        const int64_t now_us = stats_now_us();
+        if (progress && now_us - last_report_us >= progress_interval_us)
+        {
+            if (!progress(context, next, position_us, duration_us, next * 1000000.f / (now_us - t0)))
+            {
+                cancel();
+                break;
+            }
+
+            last_report_us = now_us;
+        }
+    }
+
+    const int64_t elapsed_us = stats_now_us() - t0;
+    const float fps = elapsed_us > 0 ? next * 1000000.f / elapsed_us : 0.f;
+
+    decode_thread->join();
+    delete decode_thread;
+
+    {
+        ncnn::MutexLockGuard g(worker_lock);
+        exit = true;
+        worker_ready.broadcast();
+    }
+
+    for (size_t i = 0; i < workers.size(); i++)
+    {
+        workers[i]->thread->join();
+        delete workers[i]->thread;
+        delete workers[i];
+    }
+    workers.clear();
+
+    fclose(fp);
+    close_decoder();
+
+    if (progress && !cancelled)
+    {
+        progress(context, next, position_us, duration_us, fps);
+    }
+
+    return fps;
+}
+
+// 解码线程在下一次循环或等待空闲推理线程时退出，推理线程不再开始新的帧
+void VideoPipeline::cancel()
+{
+    ncnn::MutexLockGuard g(worker_lock);
+
+    cancelled = true;
+    worker_free.broadcast();
+    worker_ready.broadcast();
+}
+
+void VideoPipeline::write_result(FILE* fp, int frame, int64_t timestamp_us, const std::vector<Object>& objects)
+{
+    if (objects.empty())
+    {
+        fprintf(fp, "%d,%lld,-1,0,0,0,0,0\n", frame, (long long)timestamp_us);
+        return;
+    }
+
+    for (size_t i = 0; i < objects.size(); i++)
+    {
+        const Object& obj = objects[i];
+        fprintf(fp, "%d,%lld,%d,%.4f,%.1f,%.1f,%.1f,%.1f\n", frame, (long long)timestamp_us, obj.label, obj.prob, obj.rect.x, obj.rect.y, obj.rect.width, obj.rect.height);
+    }
+}
+
+void* VideoPipeline::decode_entry(void* args)
+{
+    ((VideoPipeline*)args)->decode_loop();
+    return 0;
+}
+
+void* VideoPipeline::worker_entry(void* args)
+{
+    Worker* w = (Worker*)args;
+    w->pipeline->worker_loop(w);
+    return 0;
+}
+
+// 渲染到 surface 是异步的，轮询等待时间戳为 timestamp_ns 的图像到达
+// 之前超时的帧可能随后才到达，时间戳更早的图像直接丢弃，不会被当成当前帧
+static AImage* acquire_image(AImageReader* reader, int64_t timestamp_ns)
+{
+    for (int i = 0; i < image_timeout_ms; i++)
+    {
+        AImage* image = 0;
+        if (AImageReader_acquireNextImage(reader, &image) != AMEDIA_OK)
+        {
+            usleep(1000);
+            continue;
+        }
+
+        int64_t image_ns = 0;
+        AImage_getTimestamp(image, &image_ns);
+        if (image_ns == timestamp_ns)
+            return image;
+
+        AImage_delete(image);
+
+        // 一次只渲染一帧，不会有更晚的图像，出现说明当前帧已丢失
+        if (image_ns > timestamp_ns)
+        {
+            __android_log_print(ANDROID_LOG_WARN, "ncnn", "video image %lld after frame %lld", (long long)image_ns, (long long)timestamp_ns);
+            return 0;
+        }
+
+        __android_log_print(ANDROID_LOG_WARN, "ncnn", "drop stale video image %lld", (long long)image_ns);
+    }
+
+    return 0;
+}
+
+void VideoPipeline::decode_loop()
+{
+    bool input_done = false;
+    bool output_done = false;
+
+    // 关键帧模式下跳转失败时按输入结束处理
+    bool seek_failed = false;
+
+    // 解码输出的帧序号，关键帧模式下为关键帧的序号
+    int frame = 0;
+
+    while (!output_done)
+    {
+        {
+            ncnn::MutexLockGuard g(worker_lock);
+            if (cancelled)
+                break;
+        }
+
+        if (!input_done)
+        {
+            ssize_t index = AMediaCodec_dequeueInputBuffer(codec, codec_timeout_us);
+            if (index >= 0)
+            {
+                size_t capacity = 0;
+                uint8_t* buffer = AMediaCodec_getInputBuffer(codec, index, &capacity);
+                ssize_t size = seek_failed ? -1 : AMediaExtractor_readSampleData(extractor, buffer, capacity);
+                if (size < 0)
+                {
+                    AMediaCodec_queueInputBuffer(codec, index, 0, 0, 0, AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM);
+                    input_done = true;
+                }
+                else
+                {
+                    const int64_t sample_us = AMediaExtractor_getSampleTime(extractor);
+                    AMediaCodec_queueInputBuffer(codec, index, 0, size, sample_us, 0);
+
+                    // 关键帧模式直接跳到下一个同步帧，中间的帧不送进解码器
+                    if (stride == STRIDE_KEYFRAMES)
+                    {
+                        if (AMediaExtractor_seekTo(extractor, sample_us + 1, AMEDIAEXTRACTOR_SEEK_NEXT_SYNC) != AMEDIA_OK)
+                        {
+                            __android_log_print(ANDROID_LOG_WARN, "ncnn", "seek video after %lld failed", (long long)sample_us);
+                            seek_failed = true;
+                        }
+                    }
+                    else
+                    {
+                        AMediaExtractor_advance(extractor);
+                    }
+                }
+            }
+        }
+
+        AMediaCodecBufferInfo info;
+        ssize_t index = AMediaCodec_dequeueOutputBuffer(codec, &info, codec_timeout_us);
+        if (index < 0)
+        {
+            if (index == AMEDIACODEC_INFO_TRY_AGAIN_LATER || index == AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED || index == AMEDIACODEC_INFO_OUTPUT_BUFFERS_CHANGED)
+                continue;
+
+            __android_log_print(ANDROID_LOG_WARN, "ncnn", "decode video failed %d", (int)index);
+            break;
+        }
+
+        if (info.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM)
+            output_done = true;
+
+        const bool has_frame = !output_done || info.size > 0;
+        const bool selected = has_frame && (stride <= 1 || frame % stride == 0);
+
+        if (!selected)
+        {
+            // 跳过的帧不渲染，不占用 AImageReader 和推理线程
+            AMediaCodec_releaseOutputBuffer(codec, index, false);
+            if (has_frame)
+                frame++;
+            continue;
+        }
+
+        // 等到有空闲的推理线程再渲染，解码器在此停下
+        Worker* w = 0;
+        {
+            ncnn::MutexLockGuard g(worker_lock);
+
+            while (!w && !cancelled)
+            {
+                for (size_t i = 0; i < workers.size(); i++)
+                {
+                    if (!workers[i]->busy)
+                    {
+                        w = workers[i];
+                        break;
+                    }
+                }
+
+                if (!w)
+                    worker_free.wait(worker_lock);
+            }
+        }
+
+        if (!w)
+        {
+            AMediaCodec_releaseOutputBuffer(codec, index, false);
+            break;
+        }
+
+        // 显式指定 surface 时间戳，按时间戳认领图像，超时后迟到的图像不会错位到后面的帧
+        const int64_t timestamp_ns = info.presentationTimeUs * 1000;
+        AMediaCodec_releaseOutputBufferAtTime(codec, index, timestamp_ns);
+
+        AImage* image = acquire_image(reader, timestamp_ns);
+        if (!image)
+        {
+            __android_log_print(ANDROID_LOG_WARN, "ncnn", "video frame %d timeout", frame);
+            frame++;
+            continue;
+        }
+
+        // 槽空闲时只有解码线程访问，打包不必持锁
+        pack_image_nv21(image, width, height, w->nv21.data());
+        AImage_delete(image);
+
+        {
+            ncnn::MutexLockGuard g(result_lock);
+            w->sequence = num_dispatched++;
+        }
+
+        {
+            ncnn::MutexLockGuard g(worker_lock);
+            w->frame = frame;
+            w->timestamp_us = info.presentationTimeUs;
+            w->busy = true;
+            worker_ready.broadcast();
+        }
+
+        frame++;
+    }
+
+    ncnn::MutexLockGuard g(result_lock);
+    decode_finished = true;
+    result_ready.signal();
+}
+
+void VideoPipeline::worker_loop(Worker* w)
+{
+    while (1)
+    {
+        {
+            ncnn::MutexLockGuard g(worker_lock);
+
+            while (!w->busy && !exit && !cancelled)
+            {
+                worker_ready.wait(worker_lock);
+            }
+
+            if (!w->busy || cancelled)
+                break;
+        }
+
+        Result r;
+        r.frame = w->frame;
+        r.timestamp_us = w->timestamp_us;
+
+        // 检测失败时按没有对象记录
+        if (detect(context, w->nv21.data(), width, height, r.objects) != 0)
+            r.objects.clear();
+
+        {
+            ncnn::MutexLockGuard g(result_lock);
+            results[w->sequence].frame = r.frame;
+            results[w->sequence].timestamp_us = r.timestamp_us;
+            results[w->sequence].objects.swap(r.objects);
+            result_ready.signal();
+        }
+
+        ncnn::MutexLockGuard g(worker_lock);
+        w->busy = false;
+        worker_free.signal();
+    }
+}
@@ -0,0 +1,114 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2021 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+#ifndef VIDEOPIPELINE_H
+#define VIDEOPIPELINE_H
+
+#include <stdint.h>
+#include <stdio.h>
+
+#include <map>
+#include <vector>
+
+#include <media/NdkImageReader.h>
+#include <media/NdkMediaCodec.h>
+#include <media/NdkMediaExtractor.h>
+
+#include <platform.h>
+
+#include "yolo.h"
+
+// 离线检测视频文件的流水线
+// 解码线程用 AMediaExtractor + AMediaCodec 解码到 AImageReader，打包成 nv21 交给推理线程
+// 每个推理线程只有一帧在处理，全部线程忙时解码线程等待，解码器随之停下
+// 结果按帧序交回调用线程写入 CSV，每行一个对象：frame,timestamp_us,label,prob,x,y,w,h
+// 没有对象的帧写一行 label 为 -1 的记录，输出中每个检测过的帧都有记录
+class VideoPipeline
+{
+public:
+    // 检测一帧紧凑 nv21，返回 0 成功
+    typedef int (*DetectFunc)(void* context, const unsigned char* nv21, int width, int height, std::vector<Object>& objects);
+
+    // 进度回调，在调用 run 的线程上约每 500 毫秒一次，结束时再回调一次
+    // 返回 false 时取消，解码和推理线程停下，run 不再写出剩余的帧
+    typedef bool (*ProgressFunc)(void* context, int frames, int64_t position_us, int64_t duration_us, float fps);
+
+    // stride 为 0 只解码关键帧，为 n 时每 n 帧检测一帧
+    static const int STRIDE_KEYFRAMES = 0;
+
+    VideoPipeline(DetectFunc detect, ProgressFunc progress, void* context);
+
+    // 阻塞直到全部完成或被取消，返回每秒检测的帧数
+    // 返回 -1 表示打开视频或创建解码器失败，-2 表示无法写入输出文件
+    float run(const char* path, const char* output_path, int num_workers, int stride);
+
+protected:
+    static void* decode_entry(void* args);
+    static void* worker_entry(void* args);
+    void decode_loop();
+    int open_decoder(const char* path);
+    void close_decoder();
+    void cancel();
+    void write_result(FILE* fp, int frame, int64_t timestamp_us, const std::vector<Object>& objects);
+
+private:
+    DetectFunc detect;
+    ProgressFunc progress;
+    void* context;
+
+    AMediaExtractor* extractor;
+    AMediaCodec* codec;
+    AImageReader* reader;
+    int width;
+    int height;
+    int64_t duration_us;
+    int stride;
+
+    struct Worker
+    {
+        VideoPipeline* pipeline;
+        ncnn::Thread* thread;
+        std::vector<unsigned char> nv21;
+        int sequence;
+        int frame;
+        int64_t timestamp_us;
+        bool busy;
+    };
+
+    // 推理线程的帧槽
+    ncnn::Mutex worker_lock;
+    ncnn::ConditionVariable worker_free;
+    ncnn::ConditionVariable worker_ready;
+    std::vector<Worker*> workers;
+    bool exit;
+    bool cancelled;
+
+    void worker_loop(Worker* w);
+
+    struct Result
+    {
+        int frame;
+        int64_t timestamp_us;
+        std::vector<Object> objects;
+    };
+
+    // 待写出的结果，按送检序号排序
+    ncnn::Mutex result_lock;
+    ncnn::ConditionVariable result_ready;
+    std::map<int, Result> results;
+    int num_dispatched;
+    bool decode_finished;
+};
+
+#endif // VIDEOPIPELINE_H
@@ -18,6 +18,16 @@
 #include <opencv2/imgproc/imgproc.hpp>
 
 #include "cpu.h"
+#include "datareader.h"
+
+#include <sys/mman.h>
+#include <unistd.h>
+
+#include <atomic>
+
+#include "alloc_check.h"
+#include "postprocess.h"
+#include "stats.h"
 
 static float fast_exp(float x)
 {
@@ -33,12 +43,6 @@ static float sigmoid(float x)
 {
     return 1.0f / (1.0f + fast_exp(-x));
 }
-static float intersection_area(const Object& a, const Object& b)
-{
-    cv::Rect_<float> inter = a.rect & b.rect;
-    return inter.area();
-}
-
 static void qsort_descent_inplace(std::vector<Object>& faceobjects, int left, int right)
 {
     int i = left;
@@ -84,40 +88,20 @@ static void qsort_descent_inplace(std::vector<Object>& faceobjects)
     qsort_descent_inplace(faceobjects, 0, faceobjects.size() - 1);
 }
 
-static void nms_sorted_bboxes(const std::vector<Object>& faceobjects, std::vector<int>& picked, float nms_threshold)
+// 按面积从大到小排序，小目标绘制在上层
+static void sort_by_area(std::vector<Object>& objects)
 {
-    picked.clear();
-
-    const int n = faceobjects.size();
-
-    std::vector<float> areas(n);
-    for (int i = 0; i < n; i++)
-    {
-        areas[i] = faceobjects[i].rect.width * faceobjects[i].rect.height;
-    }
-
-    for (int i = 0; i < n; i++)
+    struct
     {
-        const Object& a = faceobjects[i];
-
-        int keep = 1;
-        for (int j = 0; j < (int)picked.size(); j++)
+        bool operator()(const Object& a, const Object& b) const
         {
-            const Object& b = faceobjects[picked[j]];
-
-            // intersection over union
-            float inter_area = intersection_area(a, b);
-            float union_area = areas[i] + areas[picked[j]] - inter_area;
-            // float IoU = inter_area / union_area
-            if (inter_area / union_area > nms_threshold)
-                keep = 0;
+            return a.rect.area() > b.rect.area();
         }
-
-        if (keep)
-            picked.push_back(i);
-    }
+    } objects_area_greater;
+    std::sort(objects.begin(), objects.end(), objects_area_greater);
 }
-static void generate_grids_and_stride(const int target_w, const int target_h, std::vector<int>& strides, std::vector<GridAndStride>& grid_strides)
+
+static void generate_grids_and_stride(const int target_w, const int target_h, const std::vector<int>& strides, std::vector<GridAndStride>& grid_strides)
 {
     for (int i = 0; i < (int)strides.size(); i++)
     {
@@ -137,156 +121,457 @@ static void generate_grids_and_stride(const int target_w, const int target_h, st
         }
     }
 }
-static void generate_proposals(std::vector<GridAndStride> grid_strides, const ncnn::Mat& pred, float prob_threshold, std::vector<Object>& objects)
+// 将概率阈值换算到 logit 空间，每帧只算一次
+// sigmoid 使用 fast_exp 近似（logit 误差 < 0.05），因此减去余量保证预筛选只会放过、不会误杀，
+// 最终仍由原来的 sigmoid(score) >= prob_threshold 判定
+static float prob_threshold_to_logit(float prob_threshold)
+{
+    if (prob_threshold <= 0.f)
+        return -FLT_MAX;
+
+    const float p = std::min(prob_threshold, 0.999999f);
+    return logf(p / (1.f - p)) - 0.1f;
+}
+
+// 单个 anchor 的解码，class_mask 为当前启用的类别，class_ids 为其中置位的类别（为空时不按类别预先过滤）
+static inline void generate_proposal(const float* pred_row, int grid0, int grid1, int stride, float prob_threshold, float score_threshold, const uint64_t* class_mask, const int* class_ids, int num_class_ids, std::vector<Object>& objects)
 {
-    const int num_points = grid_strides.size();
     const int num_class = 80;
     const int reg_max_1 = 16;
 
-    for (int i = 0; i < num_points; i++)
-    {
-        const float* scores = pred.row(i) + 4 * reg_max_1;
+    const float* scores = pred_row + 4 * reg_max_1;
 
-        // find label with max score
-        int label = -1;
-        float score = -FLT_MAX;
-        for (int k = 0; k < num_class; k++)
+    // 按检测模式过滤：启用类别的得分都低于阈值时，最高分类别要么低于阈值要么未启用，
+    // 结果与下面 argmax 后的掩码检查相同，直接跳过 80 类 argmax
+    if (class_ids)
+    {
+        bool has_candidate = false;
+        for (int k = 0; k < num_class_ids; k++)
         {
-            float confidence = scores[k];
-            if (confidence > score)
+            if (scores[class_ids[k]] >= score_threshold)
             {
-                label = k;
-                score = confidence;
+                has_candidate = true;
+                break;
             }
         }
-        float box_prob = sigmoid(score);
-        if (box_prob >= prob_threshold)
+
+        if (!has_candidate)
+            return;
+    }
+
+    // find label with max score
+    int label = -1;
+    float score = -FLT_MAX;
+    for (int k = 0; k < num_class; k++)
+    {
+        float confidence = scores[k];
+        if (confidence > score)
         {
-            ncnn::Mat bbox_pred(reg_max_1, 4, (void*)pred.row(i));
-            {
-                ncnn::Layer* softmax = ncnn::create_layer("Softmax");
+            label = k;
+            score = confidence;
+        }
+    }
+    if (score < score_threshold)
+        return;
 
-                ncnn::ParamDict pd;
-                pd.set(0, 1); // axis
-                pd.set(1, 1);
-                softmax->load_param(pd);
+    // 最高分类别未启用则直接丢弃，不进入排序和 NMS
+    if (!((class_mask[label >> 6] >> (label & 63)) & 1))
+        return;
+
+    float box_prob = sigmoid(score);
+    if (box_prob < prob_threshold)
+        return;
 
-                ncnn::Option opt;
-                opt.num_threads = 1;
-                opt.use_packing_layout = false;
+    // 融合的 softmax + 期望，不再为每个 proposal 创建 Softmax 层
+    float pred_ltrb[4];
+    dfl_decode_ltrb(pred_row, reg_max_1, pred_ltrb);
+    for (int k = 0; k < 4; k++)
+    {
+        pred_ltrb[k] *= stride;
+    }
 
-                softmax->create_pipeline(opt);
+    float pb_cx = (grid0 + 0.5f) * stride;
+    float pb_cy = (grid1 + 0.5f) * stride;
 
-                softmax->forward_inplace(bbox_pred, opt);
+    float x0 = pb_cx - pred_ltrb[0];
+    float y0 = pb_cy - pred_ltrb[1];
+    float x1 = pb_cx + pred_ltrb[2];
+    float y1 = pb_cy + pred_ltrb[3];
 
-                softmax->destroy_pipeline(opt);
+    Object obj;
+    obj.rect.x = x0;
+    obj.rect.y = y0;
+    obj.rect.width = x1 - x0;
+    obj.rect.height = y1 - y0;
+    obj.label = label;
+    obj.prob = box_prob;
+    obj.track_id = -1;
 
-                delete softmax;
-            }
+    objects.push_back(obj);
+}
 
-            float pred_ltrb[4];
-            for (int k = 0; k < 4; k++)
-            {
-                float dis = 0.f;
-                const float* dis_after_sm = bbox_pred.row(k);
-                for (int l = 0; l < reg_max_1; l++)
-                {
-                    dis += l * dis_after_sm[l];
-                }
-
-                pred_ltrb[k] = dis * grid_strides[i].stride;
-            }
+static void generate_proposals(const std::vector<GridAndStride>& grid_strides, const ncnn::Mat& pred, float prob_threshold, std::vector<Object>& objects, const uint64_t* class_mask, const int* class_ids, int num_class_ids)
+{
+    const int num_points = grid_strides.size();
 
-            float pb_cx = (grid_strides[i].grid0 + 0.5f) * grid_strides[i].stride;
-            float pb_cy = (grid_strides[i].grid1 + 0.5f) * grid_strides[i].stride;
+    const float score_threshold = prob_threshold_to_logit(prob_threshold);
 
-            float x0 = pb_cx - pred_ltrb[0];
-            float y0 = pb_cy - pred_ltrb[1];
-            float x1 = pb_cx + pred_ltrb[2];
-            float y1 = pb_cy + pred_ltrb[3];
+    for (int i = 0; i < num_points; i++)
+    {
+        const GridAndStride& gs = grid_strides[i];
+        generate_proposal(pred.row(i), gs.grid0, gs.grid1, gs.stride, prob_threshold, score_threshold, class_mask, class_ids, num_class_ids, objects);
+    }
+}
 
-            Object obj;
-            obj.rect.x = x0;
-            obj.rect.y = y0;
-            obj.rect.width = x1 - x0;
-            obj.rect.height = y1 - y0;
-            obj.label = label;
-            obj.prob = box_prob;
+// 不查表：anchor 按 stride 分层、层内按行优先排列，网格中心直接由序号推算
+static void generate_proposals_by_index(const std::vector<int>& strides, const int target_w, const int target_h, const ncnn::Mat& pred, float prob_threshold, std::vector<Object>& objects, const uint64_t* class_mask, const int* class_ids, int num_class_ids)
+{
+    const float score_threshold = prob_threshold_to_logit(prob_threshold);
 
-            objects.push_back(obj);
+    int i = 0;
+    for (size_t s = 0; s < strides.size(); s++)
+    {
+        const int stride = strides[s];
+        const int num_grid_w = target_w / stride;
+        const int num_grid_h = target_h / stride;
+        for (int g1 = 0; g1 < num_grid_h; g1++)
+        {
+            for (int g0 = 0; g0 < num_grid_w; g0++)
+            {
+                generate_proposal(pred.row(i), g0, g1, stride, prob_threshold, score_threshold, class_mask, class_ids, num_class_ids, objects);
+                i++;
+            }
         }
     }
 }
 
-Yolo::Yolo()
+Yolo::Yolo(YoloConfigStore* shared_config)
 {
+    // 未指定共享的参数存储时使用自己的
+    config = shared_config ? shared_config : &own_config;
+
     blob_pool_allocator.set_size_compare_ratio(0.f);
     workspace_pool_allocator.set_size_compare_ratio(0.f);
+    blob_alloc_check.set_allocator(&blob_pool_allocator);
+    workspace_alloc_check.set_allocator(&workspace_pool_allocator);
     
-    // 初始化节流控制
-    throttle_interval = 0; // 默认不节流
-    last_inference_time = std::chrono::steady_clock::now();
-    
-    // 初始化检测模式
-    detect_mode = DETECT_MODE_HUMAN_ONLY; // 默认只检测人类
+    class_ids.reserve(NUM_CLASS);
+    class_ids_version = 0;
+
+    // 每个区域最多 MAX_TILE_GRID x MAX_TILE_GRID 个分块加一次整体推理
+    regions.reserve(YoloConfig::MAX_REGIONS * (YoloConfig::MAX_TILE_GRID * YoloConfig::MAX_TILE_GRID + 1));
+
+    strides = {8, 16, 32}; // might have stride=64
+
+    // 网格缓存
+    grid_table = true;
+    invalidate_grid_cache();
+    grid_alloc_count = 0;
+
+    extractor = 0;
+    extractor_template = 0;
+
+    tile_pool = 0;
+
+    // 默认映射 apk 中未压缩的权重
+    mmap_weights = true;
+    weights_map = 0;
+    weights_map_size = 0;
+    weights_map_offset = 0;
+
+    detect_alloc_count = -1;
+    detect_frame_count = 0;
+
+    // 首帧在推理线程上应用线程数和省电模式
+    applied_num_threads = -1;
+    applied_powersave = -1;
+}
+
+Yolo::~Yolo()
+{
+    release_frame_context();
+
+    // 权重可能引用映射内存，先释放网络再解除映射
+    yolo.clear();
+    unmap_weights();
+}
+
+// 获取当前参数快照
+YoloConfig Yolo::getConfig() const
+{
+    return config->load();
+}
+
+// 参数设置转发到参数存储
+void Yolo::setProbThreshold(float threshold)
+{
+    config->setProbThreshold(threshold);
+}
+
+void Yolo::setNmsThreshold(float threshold)
+{
+    config->setNmsThreshold(threshold);
 }
 
-// 设置推理节流间隔
 void Yolo::setThrottleInterval(int interval)
 {
-    throttle_interval = interval;
+    config->setThrottleInterval(interval);
 }
 
-// 获取当前节流间隔
 int Yolo::getThrottleInterval()
 {
-    return throttle_interval;
+    return config->getThrottleInterval();
+}
+
+void Yolo::setDetectMode(int mode)
+{
+    config->setDetectMode(mode);
+}
+
+int Yolo::getDetectMode()
+{
+    return config->getDetectMode();
+}
+
+void Yolo::setClassMask(const uint64_t* mask, int num_words)
+{
+    config->setClassMask(mask, num_words);
+}
+
+void Yolo::setClasses(const int* ids, int num_ids)
+{
+    config->setClasses(ids, num_ids);
+}
+
+void Yolo::getClassMask(uint64_t* mask) const
+{
+    config->getClassMask(mask);
+}
+
+void Yolo::setNmsMode(int mode)
+{
+    config->setNmsMode(mode);
+}
+
+void Yolo::setRegionsOfInterest(const float* rects, int num_regions)
+{
+    config->setRegions(rects, num_regions);
+}
+
+void Yolo::setTiling(int cols, int rows, int overlap_percent)
+{
+    config->setTiling(cols, rows, overlap_percent);
+}
+
+void Yolo::setTileThreads(int num_threads)
+{
+    config->setTileThreads(num_threads);
+}
+
+int Yolo::getNmsMode()
+{
+    return config->getNmsMode();
 }
 
 // 判断是否应该跳过本次推理
 bool Yolo::shouldSkipInference()
 {
-    // 如果节流间隔为0，表示不节流
-    if (throttle_interval <= 0) {
-        return false;
+    return scheduler.should_skip(stats_now_us(), config->load());
+}
+
+// 获取调度器当前选择的推理间隔（微秒）和原因
+int64_t Yolo::getScheduleInterval() const
+{
+    return scheduler.interval_us();
+}
+
+int Yolo::getScheduleReason() const
+{
+    return scheduler.reason();
+}
+
+// 由类别掩码展开出置位的类别序号，快照版本不变时跳过
+static void update_class_ids(const YoloConfig& c, std::vector<int>& class_ids, unsigned int& class_ids_version)
+{
+    if (c.version == class_ids_version)
+        return;
+
+    class_ids.clear();
+    for (int k = 0; k < Yolo::NUM_CLASS; k++)
+    {
+        if ((c.class_mask[k >> 6] >> (k & 63)) & 1)
+            class_ids.push_back(k);
     }
-    
-    auto current_time = std::chrono::steady_clock::now();
-    auto elapsed = std::chrono::duration_cast<std::chrono::milliseconds>(current_time - last_inference_time).count();
-    
-    // 如果距离上次推理时间小于节流间隔，则跳过本次推理
-    if (elapsed < throttle_interval) {
-        return true;
+
+    class_ids_version = c.version;
+}
+
+// 设置是否使用网格查找表
+void Yolo::setGridTable(bool enable)
+{
+    grid_table = enable;
+}
+
+// 获取上一帧网格相关的堆分配次数，稳态应为 0
+int Yolo::getGridAllocCount()
+{
+    return grid_alloc_count;
+}
+
+// 按输入尺寸和 stride 集合缓存网格，未命中时替换最久未使用的一项
+const std::vector<GridAndStride>& Yolo::get_grid_strides(int target_w, int target_h)
+{
+    if (strides != grid_strides_key)
+    {
+        invalidate_grid_cache();
+        grid_strides_key = strides;
     }
-    
-    // 更新上次推理时间
-    last_inference_time = current_time;
-    return false;
+
+    grid_cache_clock++;
+
+    int slot = 0;
+    for (int i = 0; i < GRID_CACHE_SIZE; i++)
+    {
+        GridCacheEntry& entry = grid_cache[i];
+        if (entry.target_w == target_w && entry.target_h == target_h)
+        {
+            entry.last_use = grid_cache_clock;
+            return entry.grid_strides;
+        }
+
+        if (entry.last_use < grid_cache[slot].last_use)
+            slot = i;
+    }
+
+    GridCacheEntry& entry = grid_cache[slot];
+
+    const size_t capacity = entry.grid_strides.capacity();
+
+    entry.grid_strides.clear();
+    generate_grids_and_stride(target_w, target_h, strides, entry.grid_strides);
+
+    if (entry.grid_strides.capacity() != capacity)
+        grid_alloc_count++;
+
+    // 按最坏情况（每个 anchor 都成为候选）预留
+    frame.proposals.reserve(entry.grid_strides.size());
+    frame.picked.reserve(entry.grid_strides.size());
+    frame.nms.reserve(entry.grid_strides.size());
+
+    entry.target_w = target_w;
+    entry.target_h = target_h;
+    entry.last_use = grid_cache_clock;
+
+    return entry.grid_strides;
 }
 
-// 设置检测模式
-void Yolo::setDetectMode(int mode)
+// 获取上一次 detect 中的堆分配次数
+int Yolo::getDetectAllocCount()
+{
+    return detect_alloc_count;
+}
+
+// 释放帧上下文持有的张量和提取器，须在清空模型和内存池之前调用
+void Yolo::release_frame_context()
+{
+    release_tile_workers();
+
+    // 调用方保证此时没有进行中的 detect_pixels
+    {
+        ncnn::MutexLockGuard g(still_lock);
+
+        for (size_t i = 0; i < still_contexts.size(); i++)
+        {
+            delete_worker_context(still_contexts[i]);
+        }
+
+        still_contexts.clear();
+        still_free.clear();
+    }
+
+    delete extractor;
+    extractor = 0;
+    delete extractor_template;
+    extractor_template = 0;
+
+    frame.in.release();
+    frame.in_pad.release();
+    frame.out.release();
+
+    detect_frame_count = 0;
+}
+
+// 感兴趣区域的最小边长（像素）
+static const int min_region_size = 32;
+
+// 资源限制中的线程数，0 表示大核数
+static int resolve_num_threads(const YoloConfig& c)
+{
+    return c.num_threads > 0 ? c.num_threads : ncnn::get_big_cpu_count();
+}
+
+// 资源限制的输入尺寸只会缩小模型默认尺寸
+int Yolo::effective_target_size(const YoloConfig& c) const
+{
+    return c.target_size > 0 ? std::min(c.target_size, target_size) : target_size;
+}
+
+// 线程数或省电模式变化时在推理线程上重新设置，切换省电模式代价较高，只在变化时调用
+void Yolo::apply_resource_limits(const YoloConfig& c)
 {
-    if (mode == DETECT_MODE_HUMAN_ONLY || mode == DETECT_MODE_HUMAN_AND_VEHICLE)
+    const int num_threads = resolve_num_threads(c);
+
+    if (c.powersave != applied_powersave)
+    {
+        ncnn::set_cpu_powersave(c.powersave);
+        applied_powersave = c.powersave;
+    }
+
+    if (num_threads != applied_num_threads && extractor_template)
     {
-        detect_mode = mode;
+        ncnn::set_omp_num_threads(num_threads);
+        extractor_template->set_num_threads(num_threads);
+        applied_num_threads = num_threads;
     }
 }
 
-// 获取当前检测模式
-int Yolo::getDetectMode()
+// 使网格缓存失效，load() 或 target_size 变化时调用
+void Yolo::invalidate_grid_cache()
 {
-    return detect_mode;
+    for (int i = 0; i < GRID_CACHE_SIZE; i++)
+    {
+        grid_cache[i].target_w = 0;
+        grid_cache[i].target_h = 0;
+        grid_cache[i].last_use = 0;
+        grid_cache[i].grid_strides.clear();
+    }
+    grid_cache_clock = 0;
+    grid_strides_key.clear();
 }
 
-int Yolo::load(AAssetManager* mgr, const char* modeltype, int _target_size, const float* _mean_vals, const float* _norm_vals, bool use_gpu)
+// 加载前释放旧模型，线程数和省电模式取自资源限制
+void Yolo::begin_load(bool use_gpu)
 {
+    release_frame_context();
+
     yolo.clear();
     blob_pool_allocator.clear();
     workspace_pool_allocator.clear();
+    blob_alloc_check.reset();
+    workspace_alloc_check.reset();
+    unmap_weights();
+
+    invalidate_grid_cache();
 
-    ncnn::set_cpu_powersave(2);
-    ncnn::set_omp_num_threads(ncnn::get_big_cpu_count());
+    // 加载线程上设置只影响预热，推理线程在首帧重新应用
+    const YoloConfig c = config->load();
+    const int num_threads = resolve_num_threads(c);
+
+    ncnn::set_cpu_powersave(c.powersave);
+    ncnn::set_omp_num_threads(num_threads);
+
+    applied_num_threads = -1;
+    applied_powersave = -1;
 
     yolo.opt = ncnn::Option();
 
@@ -294,18 +579,13 @@ int Yolo::load(AAssetManager* mgr, const char* modeltype, int _target_size, cons
     yolo.opt.use_vulkan_compute = use_gpu;
 #endif
 
-    yolo.opt.num_threads = ncnn::get_big_cpu_count();
-    yolo.opt.blob_allocator = &blob_pool_allocator;
-    yolo.opt.workspace_allocator = &workspace_pool_allocator;
-
-    char parampath[256];
-    char modelpath[256];
-    sprintf(parampath, "yolov8%s.param", modeltype);
-    sprintf(modelpath, "yolov8%s.bin", modeltype);
-
-    yolo.load_param(mgr, parampath);
-    yolo.load_model(mgr, modelpath);
+    yolo.opt.num_threads = num_threads;
+    yolo.opt.blob_allocator = &blob_alloc_check;
+    yolo.opt.workspace_allocator = &workspace_alloc_check;
+}
 
+void Yolo::finish_load(int _target_size, const float* _mean_vals, const float* _norm_vals)
+{
     target_size = _target_size;
     mean_vals[0] = _mean_vals[0];
     mean_vals[1] = _mean_vals[1];
@@ -314,138 +594,1058 @@ int Yolo::load(AAssetManager* mgr, const char* modeltype, int _target_size, cons
     norm_vals[1] = _norm_vals[1];
     norm_vals[2] = _norm_vals[2];
 
+    // 提取器模板保持所有 blob 为空，每帧 clear 后赋值给工作提取器即可复位，不再重新创建
+    extractor_template = new ncnn::Extractor(yolo.create_extractor());
+    extractor = new ncnn::Extractor(*extractor_template);
+}
+
+// 从当前目录的 yolov8<modeltype>.param/.bin 加载，供没有 AAssetManager 的基准测试和主机构建使用
+int Yolo::load(const char* modeltype, int _target_size, const float* _mean_vals, const float* _norm_vals, bool use_gpu)
+{
+    begin_load(use_gpu);
+
+    char parampath[256];
+    char modelpath[256];
+    sprintf(parampath, "yolov8%s.param", modeltype);
+    sprintf(modelpath, "yolov8%s.bin", modeltype);
+
+    if (yolo.load_param(parampath) != 0)
+    {
+        NCNN_LOGE("load %s failed", parampath);
+        return -1;
+    }
+
+    if (yolo.load_model(modelpath) != 0)
+    {
+        NCNN_LOGE("load %s %s failed", parampath, modelpath);
+        return -1;
+    }
+
+    finish_load(_target_size, _mean_vals, _norm_vals);
+
     return 0;
 }
 
-int Yolo::detect(const cv::Mat& rgb, std::vector<Object>& objects, float prob_threshold, float nms_threshold)
+#if __ANDROID_API__ >= 9
+int Yolo::load(AAssetManager* mgr, const char* modeltype, int _target_size, const float* _mean_vals, const float* _norm_vals, bool use_gpu)
 {
-    // 检查是否应该跳过本次推理
-    if (shouldSkipInference()) {
-        return 1; // 被节流
+    begin_load(use_gpu);
+
+    char parampath[256];
+    char modelpath[256];
+    sprintf(parampath, "yolov8%s.param", modeltype);
+    sprintf(modelpath, "yolov8%s.bin", modeltype);
+
+    if (yolo.load_param(mgr, parampath) != 0)
+    {
+        NCNN_LOGE("load %s failed", parampath);
+        return -1;
     }
-    
-    int width = rgb.cols;
-    int height = rgb.rows;
 
-    // pad to multiple of 32
-    int w = width;
-    int h = height;
-    float scale = 1.f;
-    if (w > h)
+    // 优先映射权重，asset 被压缩或未对齐时退回逐块读取
+    int ret = -1;
+    if (mmap_weights && map_weights(mgr, modelpath) == 0)
     {
-        scale = (float)target_size / w;
-        w = target_size;
-        h = h * scale;
+        const unsigned char* mem = (const unsigned char*)weights_map + weights_map_offset;
+        ncnn::DataReaderFromMemory dr(mem);
+        ret = yolo.load_model(dr);
     }
     else
     {
-        scale = (float)target_size / h;
-        h = target_size;
-        w = w * scale;
+        ret = yolo.load_model(mgr, modelpath);
     }
 
-    ncnn::Mat in = ncnn::Mat::from_pixels_resize(rgb.data, ncnn::Mat::PIXEL_RGB2BGR, width, height, w, h);
-
-    // pad to target_size rectangle
-    int wpad = (w + 31) / 32 * 32 - w;
-    int hpad = (h + 31) / 32 * 32 - h;
-    ncnn::Mat in_pad;
-    ncnn::copy_make_border(in, in_pad, hpad / 2, hpad - hpad / 2, wpad / 2, wpad - wpad / 2, ncnn::BORDER_CONSTANT, 0.f);
+    if (ret != 0)
+    {
+        NCNN_LOGE("load %s %s failed", parampath, modelpath);
+        return -1;
+    }
 
-    in_pad.substract_mean_normalize(0, norm_vals);
+    finish_load(_target_size, _mean_vals, _norm_vals);
 
-    ncnn::Extractor ex = yolo.create_extractor();
+    return 0;
+}
 
-    ex.input("images", in_pad);
+// 映射 apk 中未压缩存储的权重，ncnn 直接引用其中的数据，不再逐块读取到新分配的内存
+int Yolo::map_weights(AAssetManager* mgr, const char* modelpath)
+{
+    AAsset* asset = AAssetManager_open(mgr, modelpath, AASSET_MODE_BUFFER);
+    if (!asset)
+        return -1;
 
-    std::vector<Object> proposals;
-    
-    ncnn::Mat out;
-    ex.extract("output", out);
+    // 被压缩的 asset 无法取得文件描述符，需要在 gradle 中设置 noCompress
+    off_t start = 0;
+    off_t length = 0;
+    int fd = AAsset_openFileDescriptor(asset, &start, &length);
+    AAsset_close(asset);
 
-    std::vector<int> strides = {8, 16, 32}; // might have stride=64
-    std::vector<GridAndStride> grid_strides;
-    generate_grids_and_stride(in_pad.w, in_pad.h, strides, grid_strides);
-    generate_proposals(grid_strides, out, prob_threshold, proposals);
+    if (fd < 0)
+    {
+        NCNN_LOGE("%s is compressed, fallback to AAsset_read", modelpath);
+        return -1;
+    }
 
-    // sort all proposals by score from highest to lowest
-    qsort_descent_inplace(proposals);
+    // 权重按 float 读取，起始位置需 4 字节对齐
+    if (start % 4 != 0)
+    {
+        NCNN_LOGE("%s is not 4-byte aligned in apk, fallback to AAsset_read", modelpath);
+        close(fd);
+        return -1;
+    }
 
-    // apply nms with nms_threshold
-    std::vector<int> picked;
-    nms_sorted_bboxes(proposals, picked, nms_threshold);
+    const off_t page_size = sysconf(_SC_PAGESIZE);
+    const off_t map_start = start / page_size * page_size;
+    const size_t map_size = (size_t)(start - map_start + length);
 
-    int count = picked.size();
+    // 私有可写映射，个别层就地修改权重时只复制对应页，不会改动 apk
+    void* ptr = mmap(0, map_size, PROT_READ | PROT_WRITE, MAP_PRIVATE, fd, map_start);
+    close(fd);
 
-    objects.resize(count);
-    for (int i = 0; i < count; i++)
+    if (ptr == MAP_FAILED)
     {
-        objects[i] = proposals[picked[i]];
+        NCNN_LOGE("mmap %s failed", modelpath);
+        return -1;
+    }
 
-        // adjust offset to original unpadded
-        float x0 = (objects[i].rect.x - (wpad / 2)) / scale;
-        float y0 = (objects[i].rect.y - (hpad / 2)) / scale;
-        float x1 = (objects[i].rect.x + objects[i].rect.width - (wpad / 2)) / scale;
-        float y1 = (objects[i].rect.y + objects[i].rect.height - (hpad / 2)) / scale;
+    weights_map = ptr;
+    weights_map_size = map_size;
+    weights_map_offset = (size_t)(start - map_start);
 
-        // clip
-        x0 = std::max(std::min(x0, (float)(width - 1)), 0.f);
-        y0 = std::max(std::min(y0, (float)(height - 1)), 0.f);
-        x1 = std::max(std::min(x1, (float)(width - 1)), 0.f);
-        y1 = std::max(std::min(y1, (float)(height - 1)), 0.f);
+    return 0;
+}
 
-        objects[i].rect.x = x0;
-        objects[i].rect.y = y0;
-        objects[i].rect.width = x1 - x0;
-        objects[i].rect.height = y1 - y0;
+#endif // __ANDROID_API__ >= 9
+
+void Yolo::unmap_weights()
+{
+    if (weights_map)
+    {
+        munmap(weights_map, weights_map_size);
     }
-    
-    // sort objects by area
-    struct
+
+    weights_map = 0;
+    weights_map_size = 0;
+    weights_map_offset = 0;
+}
+
+// 设置是否映射权重，下次 load 生效
+void Yolo::setMmapWeights(bool enable)
+{
+    mmap_weights = enable;
+}
+
+// 当前模型的权重是否为映射加载
+bool Yolo::isWeightsMapped() const
+{
+    return weights_map != 0;
+}
+
+// 是否已加载模型
+bool Yolo::is_loaded() const
+{
+    return extractor_template != 0;
+}
+
+// 以空白输入跑一次推理，提前完成内存池分配和 gpu 管线准备
+int Yolo::warmup()
+{
+    if (!is_loaded())
+        return -1;
+
+    const int w = (target_size + 31) / 32 * 32;
+    frame.in_pad.create(w, w, 3);
+    frame.in_pad.fill(0.f);
+
+    extractor->clear();
+    *extractor = *extractor_template;
+    extractor->input("images", frame.in_pad);
+    extractor->extract("output", frame.out);
+
+    get_grid_strides(w, w);
+
+    return 0;
+}
+
+// 按长边缩放到 target_size，并计算填充到 32 倍数所需的边距
+static void resolve_letterbox(int width, int height, int target_size, int& w, int& h, float& scale, int& wpad, int& hpad)
+{
+    w = width;
+    h = height;
+    scale = 1.f;
+    if (w > h)
     {
-        bool operator()(const Object& a, const Object& b) const
+        scale = (float)target_size / w;
+        w = target_size;
+        h = h * scale;
+    }
+    else
+    {
+        scale = (float)target_size / h;
+        h = target_size;
+        w = w * scale;
+    }
+
+    wpad = (w + 31) / 32 * 32 - w;
+    hpad = (h + 31) / 32 * 32 - h;
+}
+
+// nv21 中 (roi_x, roi_y, roi_w, roi_h) 区域直接双线性采样到填充后的 BGR 输入张量，缩放、转色、填充和归一化一次完成
+// 转色系数与 ncnn::yuv420sp2rgb 相同，区域坐标须为偶数
+static void nv21_to_letterbox(const unsigned char* nv21, int srcw, int srch, int roi_x, int roi_y, int roi_w, int roi_h, ncnn::Mat& in_pad, int w, int h, int left, int top, const float* norm_vals)
+{
+    in_pad.fill(0.f);
+
+    const unsigned char* yplane = nv21;
+    const unsigned char* vuplane = nv21 + srcw * srch;
+    const int uvw = srcw / 2;
+    const int uvh = srch / 2;
+
+    const float scale_x = (float)roi_w / w;
+    const float scale_y = (float)roi_h / h;
+
+    // 采样限制在区域内，避免混入区域外的像素
+    const float max_x = (float)(roi_x + roi_w - 1);
+    const float max_y = (float)(roi_y + roi_h - 1);
+    const float max_cx = (float)((roi_x + roi_w) / 2 - 1);
+    const float max_cy = (float)((roi_y + roi_h) / 2 - 1);
+
+    float* outptr_b = in_pad.channel(0).row(top) + left;
+    float* outptr_g = in_pad.channel(1).row(top) + left;
+    float* outptr_r = in_pad.channel(2).row(top) + left;
+
+    for (int dy = 0; dy < h; dy++)
+    {
+        float fy = std::min(std::max(roi_y + (dy + 0.5f) * scale_y - 0.5f, (float)roi_y), max_y);
+        int sy = std::min((int)fy, srch - 2);
+        float by = fy - sy;
+
+        float fcy = std::min(std::max((roi_y + (dy + 0.5f) * scale_y) * 0.5f - 0.5f, (float)(roi_y / 2)), max_cy);
+        int scy = std::min((int)fcy, uvh - 2);
+        float bcy = fcy - scy;
+
+        const unsigned char* y0 = yplane + sy * srcw;
+        const unsigned char* y1 = y0 + srcw;
+        const unsigned char* vu0 = vuplane + scy * srcw;
+        const unsigned char* vu1 = vu0 + srcw;
+
+        for (int dx = 0; dx < w; dx++)
         {
-            return a.rect.area() > b.rect.area();
+            float fx = std::min(std::max(roi_x + (dx + 0.5f) * scale_x - 0.5f, (float)roi_x), max_x);
+            int sx = std::min((int)fx, srcw - 2);
+            float bx = fx - sx;
+
+            float fcx = std::min(std::max((roi_x + (dx + 0.5f) * scale_x) * 0.5f - 0.5f, (float)(roi_x / 2)), max_cx);
+            int scx = std::min((int)fcx, uvw - 2);
+            float bcx = fcx - scx;
+
+            float yy = (y0[sx] * (1.f - bx) + y0[sx + 1] * bx) * (1.f - by)
+                       + (y1[sx] * (1.f - bx) + y1[sx + 1] * bx) * by;
+
+            const unsigned char* p00 = vu0 + scx * 2;
+            const unsigned char* p01 = p00 + 2;
+            const unsigned char* p10 = vu1 + scx * 2;
+            const unsigned char* p11 = p10 + 2;
+
+            float v = (p00[0] * (1.f - bcx) + p01[0] * bcx) * (1.f - bcy) + (p10[0] * (1.f - bcx) + p11[0] * bcx) * bcy - 128.f;
+            float u = (p00[1] * (1.f - bcx) + p01[1] * bcx) * (1.f - bcy) + (p10[1] * (1.f - bcx) + p11[1] * bcx) * bcy - 128.f;
+
+            float r = yy + (90.f / 64) * v;
+            float g = yy - (46.f / 64) * v - (22.f / 64) * u;
+            float b = yy + (113.f / 64) * u;
+
+            outptr_b[dx] = std::min(std::max(b, 0.f), 255.f) * norm_vals[0];
+            outptr_g[dx] = std::min(std::max(g, 0.f), 255.f) * norm_vals[1];
+            outptr_r[dx] = std::min(std::max(r, 0.f), 255.f) * norm_vals[2];
         }
-    } objects_area_greater;
-    std::sort(objects.begin(), objects.end(), objects_area_greater);
-    
-    // 根据检测模式过滤结果
-    if (detect_mode == DETECT_MODE_HUMAN_ONLY)
+
+        outptr_b += in_pad.w;
+        outptr_g += in_pad.w;
+        outptr_r += in_pad.w;
+    }
+}
+
+// 沿一个方向把 [origin, origin + length) 切成 count 段，相邻段重叠 overlap 百分比，返回第 i 段
+static void tile_span(int origin, int length, int count, int overlap, bool even, int i, int& start, int& size)
+{
+    // count 段覆盖 length：size * (count - (count - 1) * overlap) = length
+    size = std::min((int)(length / (count - (count - 1) * overlap / 100.f) + 0.5f), length);
+    start = origin + (count > 1 ? (length - size) * i / (count - 1) : 0);
+
+    if (even)
+    {
+        size = size / 2 * 2;
+        start = start / 2 * 2;
+    }
+}
+
+// 把归一化的感兴趣区域换算为像素区域，没有设置时为整个画面
+// 设置了分块时每个区域后面追加它的分块，原区域保留，兼顾跨越分块的大目标
+// even 为真时坐标和尺寸取偶数，供 nv21 采样
+void Yolo::resolve_regions(const YoloConfig& c, int width, int height, bool even)
+{
+    regions.clear();
+
+    for (int i = 0; i < c.num_regions; i++)
+    {
+        const float* r = c.regions + i * 4;
+
+        int x0 = (int)(r[0] * width);
+        int y0 = (int)(r[1] * height);
+        int x1 = (int)((r[0] + r[2]) * width + 0.5f);
+        int y1 = (int)((r[1] + r[3]) * height + 0.5f);
+
+        x0 = std::min(std::max(x0, 0), width);
+        y0 = std::min(std::max(y0, 0), height);
+        x1 = std::min(std::max(x1, 0), width);
+        y1 = std::min(std::max(y1, 0), height);
+
+        if (even)
+        {
+            x0 = x0 / 2 * 2;
+            y0 = y0 / 2 * 2;
+            x1 = x1 / 2 * 2;
+            y1 = y1 / 2 * 2;
+        }
+
+        // 过小的区域没有意义
+        if (x1 - x0 < min_region_size || y1 - y0 < min_region_size)
+            continue;
+
+        YoloRegion region;
+        region.x = x0;
+        region.y = y0;
+        region.w = x1 - x0;
+        region.h = y1 - y0;
+        region.inner_edges = 0;
+        regions.push_back(region);
+    }
+
+    if (regions.empty())
+    {
+        YoloRegion region;
+        region.x = 0;
+        region.y = 0;
+        region.w = width;
+        region.h = height;
+        region.inner_edges = 0;
+        regions.push_back(region);
+    }
+
+    const int cols = c.tile_cols;
+    const int rows = c.tile_rows;
+    if (cols * rows <= 1)
+        return;
+
+    const int num_base = (int)regions.size();
+    for (int b = 0; b < num_base; b++)
+    {
+        const YoloRegion base = regions[b];
+
+        for (int ty = 0; ty < rows; ty++)
+        {
+            for (int tx = 0; tx < cols; tx++)
+            {
+                YoloRegion tile;
+                tile_span(base.x, base.w, cols, c.tile_overlap, even, tx, tile.x, tile.w);
+                tile_span(base.y, base.h, rows, c.tile_overlap, even, ty, tile.y, tile.h);
+
+                if (tile.w < min_region_size || tile.h < min_region_size)
+                    continue;
+
+                tile.inner_edges = 0;
+                if (tx > 0)
+                    tile.inner_edges |= YoloRegion::EDGE_LEFT;
+                if (ty > 0)
+                    tile.inner_edges |= YoloRegion::EDGE_TOP;
+                if (tx < cols - 1)
+                    tile.inner_edges |= YoloRegion::EDGE_RIGHT;
+                if (ty < rows - 1)
+                    tile.inner_edges |= YoloRegion::EDGE_BOTTOM;
+
+                regions.push_back(tile);
+            }
+        }
+    }
+}
+
+int Yolo::detect(const cv::Mat& rgb, std::vector<Object>& objects)
+{
+    // 每帧只读取一次参数快照，本帧内的设置变化在下一帧生效
+    const YoloConfig c = config->load();
+
+    // 检查是否应该跳过本次推理
+    if (scheduler.should_skip(stats_now_us(), c)) {
+        return 1; // 被节流
+    }
+
+    apply_resource_limits(c);
+
+    alloc_check_begin();
+
+    YoloImage image;
+    image.data = rgb.data;
+    image.width = rgb.cols;
+    image.height = rgb.rows;
+    image.stride = (int)rgb.step;
+    image.pixel_type = ncnn::Mat::PIXEL_RGB2BGR;
+    image.nv21 = false;
+
+    run_regions(image, c);
+
+    finish_detections(image.width, image.height, objects, c);
+
+    finish_alloc_check();
+
+    return 0; // 正常推理
+}
+
+int Yolo::detect_nv21(const unsigned char* nv21, int width, int height, std::vector<Object>& objects)
+{
+    // 每帧只读取一次参数快照，本帧内的设置变化在下一帧生效
+    const YoloConfig c = config->load();
+
+    // 检查是否应该跳过本次推理
+    if (scheduler.should_skip(stats_now_us(), c)) {
+        return 1; // 被节流
+    }
+
+    apply_resource_limits(c);
+
+    alloc_check_begin();
+
+    YoloImage image;
+    image.data = nv21;
+    image.width = width;
+    image.height = height;
+    image.stride = width;
+    image.pixel_type = 0;
+    image.nv21 = true;
+
+    run_regions(image, c);
+
+    finish_detections(width, height, objects, c);
+
+    finish_alloc_check();
+
+    return 0; // 正常推理
+}
+
+// 预热帧之后 detect 不应再有堆分配，否则打印警告
+void Yolo::finish_alloc_check()
+{
+    detect_alloc_count = alloc_check_end();
+    detect_frame_count++;
+
+    if (detect_frame_count > 1 && detect_alloc_count > 0)
+    {
+        NCNN_LOGE("detect: %d heap allocations after warm-up", detect_alloc_count);
+    }
+}
+
+// 一次分块并行的共享状态，各工作者用原子计数领取区域
+struct YoloTileTask
+{
+    Yolo* yolo;
+    const YoloImage* image;
+    const YoloConfig* config;
+    int num_threads;
+    std::atomic<int> next;
+};
+
+void Yolo::tile_task(void* context, int worker)
+{
+    YoloTileTask* task = (YoloTileTask*)context;
+    Yolo* yolo = task->yolo;
+
+    while (1)
+    {
+        const int i = task->next.fetch_add(1);
+        if (i >= (int)yolo->regions.size())
+            break;
+
+        YoloWorkerContext* wc = worker > 0 ? yolo->tile_workers[worker - 1] : 0;
+        yolo->infer_region(*task->image, yolo->regions[i], *task->config, wc, task->num_threads, yolo->class_ids);
+    }
+}
+
+// 按后台工作者数创建线程池和提取器，数量变化时重建
+void Yolo::ensure_tile_workers(int num_workers)
+{
+    if ((int)tile_workers.size() == num_workers)
+        return;
+
+    release_tile_workers();
+
+    for (int i = 0; i < num_workers; i++)
+    {
+        tile_workers.push_back(create_worker_context());
+    }
+
+    tile_pool = new TaskPool(num_workers);
+}
+
+// 先停止线程，再释放上下文
+void Yolo::release_tile_workers()
+{
+    delete tile_pool;
+    tile_pool = 0;
+
+    for (size_t i = 0; i < tile_workers.size(); i++)
+    {
+        delete_worker_context(tile_workers[i]);
+    }
+
+    tile_workers.clear();
+}
+
+YoloWorkerContext* Yolo::create_worker_context()
+{
+    YoloWorkerContext* wc = new YoloWorkerContext;
+    wc->blob_allocator.set_size_compare_ratio(0.f);
+    wc->blob_alloc_check.set_allocator(&wc->blob_allocator);
+
+    // blob 各自分配，工作区共用加锁的内存池
+    wc->extractor_template = new ncnn::Extractor(yolo.create_extractor());
+    wc->extractor_template->set_blob_allocator(&wc->blob_alloc_check);
+    wc->extractor = new ncnn::Extractor(*wc->extractor_template);
+
+    wc->class_ids.reserve(NUM_CLASS);
+    wc->class_ids_version = 0;
+    wc->record_stats = true;
+
+    return wc;
+}
+
+// 先释放提取器，内存池随上下文最后析构
+void Yolo::delete_worker_context(YoloWorkerContext* wc)
+{
+    delete wc->extractor;
+    delete wc->extractor_template;
+    delete wc;
+}
+
+// 从上下文池取得空闲的上下文，没有时新建，池的大小等于并发调用数的峰值
+YoloWorkerContext* Yolo::acquire_still_context()
+{
+    ncnn::MutexLockGuard g(still_lock);
+
+    if (still_free.empty())
+    {
+        YoloWorkerContext* wc = create_worker_context();
+        wc->record_stats = false;
+        still_contexts.push_back(wc);
+        return wc;
+    }
+
+    YoloWorkerContext* wc = still_free.back();
+    still_free.pop_back();
+    return wc;
+}
+
+void Yolo::release_still_context(YoloWorkerContext* wc)
+{
+    ncnn::MutexLockGuard g(still_lock);
+
+    still_free.push_back(wc);
+}
+
+int Yolo::detect_pixels(const unsigned char* pixels, int pixel_type, int width, int height, int stride, std::vector<Object>& objects, int num_threads)
+{
+    YoloImage image;
+    image.data = pixels;
+    image.width = width;
+    image.height = height;
+    image.stride = stride;
+    image.pixel_type = pixel_type;
+    image.nv21 = false;
+
+    return detect_still(image, objects, num_threads);
+}
+
+int Yolo::detect_pixels_nv21(const unsigned char* nv21, int width, int height, std::vector<Object>& objects, int num_threads)
+{
+    YoloImage image;
+    image.data = nv21;
+    image.width = width;
+    image.height = height;
+    image.stride = width;
+    image.pixel_type = 0;
+    image.nv21 = true;
+
+    return detect_still(image, objects, num_threads);
+}
+
+int Yolo::detect_still(const YoloImage& image, std::vector<Object>& objects, int num_threads)
+{
+    if (!is_loaded())
+        return -1;
+
+    const YoloConfig c = config->load();
+
+    YoloWorkerContext* wc = acquire_still_context();
+
+    update_class_ids(c, wc->class_ids, wc->class_ids_version);
+
+    YoloRegion region;
+    region.x = 0;
+    region.y = 0;
+    region.w = image.width;
+    region.h = image.height;
+    region.inner_edges = 0;
+
+    wc->frame.proposals.clear();
+    infer_region(image, region, c, wc, num_threads, wc->class_ids);
+
+    nms_and_clip(wc->frame, image.width, image.height, objects, c);
+    sort_by_area(objects);
+
+    release_still_context(wc);
+
+    return 0;
+}
+
+int Yolo::extract_raw(const cv::Mat& rgb, ncnn::Mat& out, int& _target_size)
+{
+    if (!is_loaded())
+        return -1;
+
+    const YoloConfig c = config->load();
+
+    apply_resource_limits(c);
+
+    update_class_ids(c, class_ids, class_ids_version);
+
+    YoloImage image;
+    image.data = rgb.data;
+    image.width = rgb.cols;
+    image.height = rgb.rows;
+    image.stride = (int)rgb.step;
+    image.pixel_type = ncnn::Mat::PIXEL_RGB2BGR;
+    image.nv21 = false;
+
+    YoloRegion region;
+    region.x = 0;
+    region.y = 0;
+    region.w = rgb.cols;
+    region.h = rgb.rows;
+    region.inner_edges = 0;
+
+    frame.proposals.clear();
+    infer_region(image, region, c, 0, 0, class_ids);
+    frame.proposals.clear();
+
+    out = frame.out.clone();
+    _target_size = effective_target_size(c);
+
+    return 0;
+}
+
+void Yolo::postprocess(const ncnn::Mat& out, int width, int height, int _target_size, std::vector<Object>& objects, YoloPostprocessProfile* profile)
+{
+    const YoloConfig c = config->load();
+
+    update_class_ids(c, class_ids, class_ids_version);
+
+    if (profile)
+    {
+        *profile = YoloPostprocessProfile();
+        alloc_check_begin();
+    }
+
+    int w;
+    int h;
+    float scale;
+    int wpad;
+    int hpad;
+    resolve_letterbox(width, height, _target_size, w, h, scale, wpad, hpad);
+
+    YoloRegion region;
+    region.x = 0;
+    region.y = 0;
+    region.w = width;
+    region.h = height;
+    region.inner_edges = 0;
+
+    frame.proposals.clear();
+    decode_region(out, region, w + wpad, h + hpad, scale, wpad, hpad, c, frame, true, class_ids, profile);
+
+    nms_and_clip(frame, width, height, objects, c, profile);
+
+    const int64_t t0 = profile ? stats_now_ns() : 0;
+
+    sort_by_area(objects);
+
+    if (profile)
+    {
+        profile->area_sort_ns = stats_now_ns() - t0;
+        profile->allocations = alloc_check_end();
+    }
+}
+
+void Yolo::run_regions(const YoloImage& image, const YoloConfig& c)
+{
+    frame.proposals.clear();
+    grid_alloc_count = 0;
+
+    // 类别掩码在生成候选框时生效，并行前展开，工作者只读
+    update_class_ids(c, class_ids, class_ids_version);
+
+    resolve_regions(c, image.width, image.height, image.nv21);
+
+    int num_workers = std::min(c.tile_threads, (int)regions.size() - 1);
+#if NCNN_VULKAN
+    if (yolo.opt.use_vulkan_compute)
+        num_workers = 0;
+#endif
+
+    if (num_workers <= 0)
+    {
+        int64_t extract_us = 0;
+        for (size_t i = 0; i < regions.size(); i++)
+        {
+            extract_us += infer_region(image, regions[i], c, 0, 0, class_ids);
+        }
+
+        scheduler.on_extract(extract_us);
+        return;
+    }
+
+    ensure_tile_workers(num_workers);
+
+    // 大核在调用线程和后台线程之间平分
+    YoloTileTask task;
+    task.yolo = this;
+    task.image = &image;
+    task.config = &c;
+    task.num_threads = std::max(resolve_num_threads(c) / (num_workers + 1), 1);
+    task.next = 0;
+
+    const int64_t t0 = stats_now_us();
+
+    tile_pool->run(tile_task, &task);
+
+    // 并行时按整体耗时计入调度
+    scheduler.on_extract(stats_now_us() - t0);
+
+    for (int i = 0; i < num_workers; i++)
+    {
+        std::vector<Object>& proposals = tile_workers[i]->frame.proposals;
+        frame.proposals.insert(frame.proposals.end(), proposals.begin(), proposals.end());
+        proposals.clear();
+    }
+}
+
+// 推理一个区域，候选框换算到整个画面的坐标后追加到对应工作者的 proposals
+int64_t Yolo::infer_region(const YoloImage& image, const YoloRegion& region, const YoloConfig& c, YoloWorkerContext* wc, int num_threads, const std::vector<int>& ids)
+{
+    YoloFrameContext& ctx = wc ? wc->frame : frame;
+    ncnn::Extractor* ex = wc ? wc->extractor : extractor;
+    const ncnn::Extractor* ex_template = wc ? wc->extractor_template : extractor_template;
+    ncnn::Allocator* allocator = wc ? &wc->blob_alloc_check : &blob_alloc_check;
+
+    // 每个区域各自按长边缩放到模型尺寸，pad to multiple of 32
+    int w;
+    int h;
+    float scale;
+    int wpad;
+    int hpad;
+    resolve_letterbox(region.w, region.h, effective_target_size(c), w, h, scale, wpad, hpad);
+
+    // 静态图片检测不计入各阶段统计，避免干扰相机画面的耗时
+    const bool record_stats = !wc || wc->record_stats;
+
+    int64_t t0 = stats_now_us();
+
+    {
+
+        if (image.nv21)
+        {
+            // 尺寸不变时 create 直接复用已有内存
+            const void* in_pad_data = ctx.in_pad.data;
+            ctx.in_pad.create(w + wpad, h + hpad, 3);
+            alloc_check_buffer(in_pad_data, ctx.in_pad.data);
+            nv21_to_letterbox(image.data, image.width, image.height, region.x, region.y, region.w, region.h, ctx.in_pad, w, h, wpad / 2, hpad / 2, norm_vals);
+        }
+        else
+        {
+            if (image.pixel_type == ncnn::Mat::PIXEL_RGB2BGR)
+            {
+                // 缩放到复用的缓冲，转换和填充走内存池
+                const unsigned char* src = image.data + region.y * image.stride + region.x * 3;
+                const void* resized_data = ctx.resized.data;
+                ctx.resized.create(h, w, CV_8UC3);
+                alloc_check_buffer(resized_data, ctx.resized.data);
+                ncnn::resize_bilinear_c3(src, region.w, region.h, image.stride, ctx.resized.data, w, h, w * 3);
+
+                ctx.in = ncnn::Mat::from_pixels(ctx.resized.data, ncnn::Mat::PIXEL_RGB2BGR, w, h, allocator);
+            }
+            else
+            {
+                // 其他格式（如 Bitmap 的 RGBA）裁剪、缩放和转色一次完成
+                ctx.in = ncnn::Mat::from_pixels_roi_resize(image.data, image.pixel_type, image.width, image.height, image.stride, region.x, region.y, region.w, region.h, w, h, allocator);
+            }
+
+            // pad to target_size rectangle
+            ncnn::Option opt;
+            opt.blob_allocator = allocator;
+            ncnn::copy_make_border(ctx.in, ctx.in_pad, hpad / 2, hpad - hpad / 2, wpad / 2, wpad - wpad / 2, ncnn::BORDER_CONSTANT, 0.f, opt);
+
+            ctx.in_pad.substract_mean_normalize(0, norm_vals);
+        }
+    }
+
+    if (record_stats)
+        stats_record(STAT_PREPROCESS, stats_now_us() - t0);
+
+    // 复位上一帧的 blob
+    // 赋值会把 gpu 的 blob 和 staging 分配器置 0 而不归还，先 clear 归还给设备，否则 cpugpu=1 时每帧泄漏一个分配器
+    ex->clear();
+    *ex = *ex_template;
+    if (num_threads > 0)
+        ex->set_num_threads(num_threads);
+
+    ex->input("images", ctx.in_pad);
+
+    ncnn::Mat& out = ctx.out;
+    t0 = stats_now_us();
+
+    ex->extract("output", out);
+
+    const int64_t extract_us = stats_now_us() - t0;
+    if (record_stats)
+        stats_record(STAT_EXTRACT, extract_us);
+    t0 += extract_us;
+
+    decode_region(out, region, ctx.in_pad.w, ctx.in_pad.h, scale, wpad, hpad, c, ctx, !wc, ids);
+
+    if (record_stats)
+        stats_record(STAT_DECODE, stats_now_us() - t0);
+
+    return extract_us;
+}
+
+// 由网络输出生成候选框，换算到整个画面的坐标后追加到 ctx.proposals
+void Yolo::decode_region(const ncnn::Mat& out, const YoloRegion& region, int in_w, int in_h, float scale, int wpad, int hpad, const YoloConfig& c, YoloFrameContext& ctx, bool shared_grid, const std::vector<int>& ids, YoloPostprocessProfile* profile)
+{
+    std::vector<Object>& proposals = ctx.proposals;
+    const size_t start = proposals.size();
+
+    // 只启用部分类别时先检查这些类别的得分行，全部启用时逐个检查最高分类别即可
+    const int* filter_ids = (int)ids.size() < NUM_CLASS ? ids.data() : 0;
+    const int num_filter_ids = (int)ids.size();
+
+    int64_t t0 = profile ? stats_now_ns() : 0;
+
+    // 网格缓存不能并发重建，其他上下文由 anchor 序号直接推算
+    if (grid_table && shared_grid)
+    {
+        const std::vector<GridAndStride>& grid_strides = get_grid_strides(in_w, in_h);
+
+        if (profile)
+        {
+            const int64_t t1 = stats_now_ns();
+            profile->grid_ns += t1 - t0;
+            t0 = t1;
+        }
+
+        generate_proposals(grid_strides, out, c.prob_threshold, proposals, c.class_mask, filter_ids, num_filter_ids);
+    }
+    else
+    {
+        generate_proposals_by_index(strides, in_w, in_h, out, c.prob_threshold, proposals, c.class_mask, filter_ids, num_filter_ids);
+    }
+
+    if (profile)
+    {
+        const int64_t t1 = stats_now_ns();
+        profile->proposal_ns += t1 - t0;
+        t0 = t1;
+    }
+
+    // adjust offset to original unpadded, then to the region origin
+    for (size_t i = start; i < proposals.size(); i++)
+    {
+        cv::Rect_<float>& rect = proposals[i].rect;
+        rect.x = (rect.x - (wpad / 2)) / scale + region.x;
+        rect.y = (rect.y - (hpad / 2)) / scale + region.y;
+        rect.width = rect.width / scale;
+        rect.height = rect.height / scale;
+    }
+
+    if (profile)
+    {
+        profile->remap_ns += stats_now_ns() - t0;
+        profile->num_anchors += out.h;
+        profile->num_proposals += (int)(proposals.size() - start);
+    }
+}
+
+// 分块内部边界附近的框视为被截断，边距按分块边长的比例
+static const float truncated_margin = 0.02f;
+
+// 截断框有这么大比例落在更大的同类框内时视为重复
+static const float truncated_cover = 0.6f;
+
+// 分块边界把目标截成一部分，截断框与完整框的 IoU 不高，NMS 去不掉
+// 截断框贴着某个分块的内部边界，且大部分落在更大的同类框内时去除，objects 保持原有顺序
+void Yolo::suppress_truncated(std::vector<Object>& objects)
+{
+    const int count = (int)objects.size();
+    truncated.assign(count, 0);
+
+    bool any_truncated = false;
+    for (size_t r = 0; r < regions.size(); r++)
     {
-        // 仅保留人类（COCO数据集中人类的标签是0）
-        std::vector<Object> filtered_objects;
-        for (size_t i = 0; i < objects.size(); i++)
+        const YoloRegion& region = regions[r];
+        if (!region.inner_edges)
+            continue;
+
+        const float mx = std::max(region.w * truncated_margin, 2.f);
+        const float my = std::max(region.h * truncated_margin, 2.f);
+        const float rx1 = (float)(region.x + region.w);
+        const float ry1 = (float)(region.y + region.h);
+
+        for (int i = 0; i < count; i++)
         {
-            if (objects[i].label == 0) // 人类
+            const cv::Rect_<float>& rect = objects[i].rect;
+
+            // 只看落在该分块内的框
+            if (rect.x < region.x - mx || rect.y < region.y - my || rect.x + rect.width > rx1 + mx || rect.y + rect.height > ry1 + my)
+                continue;
+
+            if (((region.inner_edges & YoloRegion::EDGE_LEFT) && rect.x < region.x + mx)
+                    || ((region.inner_edges & YoloRegion::EDGE_TOP) && rect.y < region.y + my)
+                    || ((region.inner_edges & YoloRegion::EDGE_RIGHT) && rect.x + rect.width > rx1 - mx)
+                    || ((region.inner_edges & YoloRegion::EDGE_BOTTOM) && rect.y + rect.height > ry1 - my))
             {
-                filtered_objects.push_back(objects[i]);
+                truncated[i] = 1;
+                any_truncated = true;
             }
         }
-        objects = filtered_objects;
     }
-    else if (detect_mode == DETECT_MODE_HUMAN_AND_VEHICLE)
+
+    if (!any_truncated)
+        return;
+
+    // 先标记再压缩，被去除的框仍可作为其他截断框的覆盖框
+    for (int i = 0; i < count; i++)
     {
-        // 保留人类（标签0）和车辆（标签2, 3, 5, 7）
-        std::vector<Object> filtered_objects;
-        for (size_t i = 0; i < objects.size(); i++)
+        if (!truncated[i])
+            continue;
+
+        const cv::Rect_<float>& a = objects[i].rect;
+        const float area = a.area();
+
+        for (int j = 0; j < count; j++)
         {
-            if (objects[i].label == 0 || // 人类
-                objects[i].label == 2 || // 汽车
-                objects[i].label == 3 || // 摩托车
-                objects[i].label == 5 || // 公交车
-                objects[i].label == 7)   // 卡车
+            if (j == i || objects[j].label != objects[i].label)
+                continue;
+
+            const cv::Rect_<float>& b = objects[j].rect;
+            if (b.area() <= area)
+                continue;
+
+            if ((a & b).area() >= truncated_cover * area)
             {
-                filtered_objects.push_back(objects[i]);
+                truncated[i] = 2;
+                break;
             }
         }
-        objects = filtered_objects;
     }
 
-    return 0; // 正常推理
+    int k = 0;
+    for (int i = 0; i < count; i++)
+    {
+        if (truncated[i] != 2)
+            objects[k++] = objects[i];
+    }
+    objects.resize(k);
 }
 
-int Yolo::draw(cv::Mat& rgb, const std::vector<Object>& objects)
+// 合并所有区域的候选框做 NMS，区域重叠处的重复检测在这里去除
+void Yolo::finish_detections(int width, int height, std::vector<Object>& objects, const YoloConfig& c)
+{
+    int64_t t1 = stats_now_us();
+
+    nms_and_clip(frame, width, height, objects, c);
+
+    suppress_truncated(objects);
+
+    stats_record(STAT_NMS, stats_now_us() - t1);
+
+    sort_by_area(objects);
+
+    scheduler.on_result(objects);
+}
+
+// 对 ctx 中的候选框做 NMS，输出截断到画面内的检测框，顺序为置信度从高到低
+void Yolo::nms_and_clip(YoloFrameContext& ctx, int width, int height, std::vector<Object>& objects, const YoloConfig& c, YoloPostprocessProfile* profile)
+{
+    std::vector<Object>& proposals = ctx.proposals;
+
+    int64_t t0 = profile ? stats_now_ns() : 0;
+
+    // sort all proposals by score from highest to lowest
+    qsort_descent_inplace(proposals);
+
+    if (profile)
+    {
+        const int64_t t1 = stats_now_ns();
+        profile->sort_ns += t1 - t0;
+        t0 = t1;
+    }
+
+    // apply nms with nms_threshold
+    NmsEngine& nms = ctx.nms;
+    nms.reset(width, height);
+    for (int i = 0; i < (int)proposals.size(); i++)
+    {
+        const Object& obj = proposals[i];
+        nms.add(obj.rect.x, obj.rect.y, obj.rect.width, obj.rect.height, obj.label);
+    }
+
+    std::vector<int>& picked = ctx.picked;
+    nms.run(c.nms_mode, c.nms_threshold, picked);
+
+    if (profile)
+    {
+        const int64_t t1 = stats_now_ns();
+        profile->nms_ns += t1 - t0;
+        t0 = t1;
+    }
+
+    int count = picked.size();
+
+    objects.resize(count);
+    for (int i = 0; i < count; i++)
+    {
+        objects[i] = proposals[picked[i]];
+
+        float x0 = objects[i].rect.x;
+        float y0 = objects[i].rect.y;
+        float x1 = objects[i].rect.x + objects[i].rect.width;
+        float y1 = objects[i].rect.y + objects[i].rect.height;
+
+        // clip
+        x0 = std::max(std::min(x0, (float)(width - 1)), 0.f);
+        y0 = std::max(std::min(y0, (float)(height - 1)), 0.f);
+        x1 = std::max(std::min(x1, (float)(width - 1)), 0.f);
+        y1 = std::max(std::min(y1, (float)(height - 1)), 0.f);
+
+        objects[i].rect.x = x0;
+        objects[i].rect.y = y0;
+        objects[i].rect.width = x1 - x0;
+        objects[i].rect.height = y1 - y0;
+    }
+
+    if (profile)
+    {
+        profile->remap_ns += stats_now_ns() - t0;
+        profile->num_objects += count;
+    }
+}
+
+static void draw_object(cv::Mat& rgb, const Object& obj)
 {
     static const char* class_names[] = {
         "person", "bicycle", "car", "motorcycle", "airplane", "bus", "train", "truck", "boat", "traffic light",
@@ -478,58 +1678,45 @@ int Yolo::draw(cv::Mat& rgb, const std::vector<Object>& objects)
         {255,  36,  12}, {255,  16,  12}
     };
 
-    for (size_t i = 0; i < objects.size(); i++)
-    {
-        const Object& obj = objects[i];
-
-        // 根据检测模式决定是否绘制该对象
-        bool should_draw = false;
-        if (detect_mode == DETECT_MODE_HUMAN_ONLY)
-        {
-            // 在仅人类模式下，只绘制人类
-            should_draw = (obj.label == 0);
-        }
-        else if (detect_mode == DETECT_MODE_HUMAN_AND_VEHICLE)
-        {
-            // 在人类和车辆模式下，绘制人类和车辆
-            should_draw = (obj.label == 0 || // 人类
-                           obj.label == 2 || // 汽车
-                           obj.label == 3 || // 摩托车
-                           obj.label == 5 || // 公交车
-                           obj.label == 7);  // 卡车
-        }
+    const unsigned char* color = colors[obj.label];
 
-        if (!should_draw)
-        {
-            continue;
-        }
+    cv::Scalar cc(color[0], color[1], color[2]);
 
-        const unsigned char* color = colors[obj.label];
+    cv::rectangle(rgb, obj.rect, cc, 2);
 
-        cv::Scalar cc(color[0], color[1], color[2]);
+    char text[256];
+    if (obj.track_id >= 0)
+        sprintf(text, "#%d %s %.1f%%", obj.track_id, class_names[obj.label], obj.prob * 100);
+    else
+        sprintf(text, "%s %.1f%%", class_names[obj.label], obj.prob * 100);
 
-        cv::rectangle(rgb, obj.rect, cc, 2);
+    int baseLine = 0;
+    cv::Size label_size = cv::getTextSize(text, cv::FONT_HERSHEY_SIMPLEX, 0.5, 1, &baseLine);
 
-        char text[256];
-        sprintf(text, "%s %.1f%%", class_names[obj.label], obj.prob * 100);
+    int x = obj.rect.x;
+    int y = obj.rect.y - label_size.height - baseLine;
+    if (y < 0)
+        y = 0;
+    if (x + label_size.width > rgb.cols)
+        x = rgb.cols - label_size.width;
 
-        int baseLine = 0;
-        cv::Size label_size = cv::getTextSize(text, cv::FONT_HERSHEY_SIMPLEX, 0.5, 1, &baseLine);
+    cv::rectangle(rgb, cv::Rect(cv::Point(x, y), cv::Size(label_size.width, label_size.height + baseLine)),
+                  cc, -1);
 
-        int x = obj.rect.x;
-        int y = obj.rect.y - label_size.height - baseLine;
-        if (y < 0)
-            y = 0;
-        if (x + label_size.width > rgb.cols)
-            x = rgb.cols - label_size.width;
+    cv::Scalar textcc = (color[0] + color[1] + color[2] >= 381) ? cv::Scalar(0, 0, 0) : cv::Scalar(255, 255, 255);
 
-        cv::rectangle(rgb, cv::Rect(cv::Point(x, y), cv::Size(label_size.width, label_size.height + baseLine)),
-                      cc, -1);
+    cv::putText(rgb, text, cv::Point(x, y + label_size.height),
+                cv::FONT_HERSHEY_SIMPLEX, 0.5, textcc, 1);
+}
 
-        cv::Scalar textcc = (color[0] + color[1] + color[2] >= 381) ? cv::Scalar(0, 0, 0) : cv::Scalar(255, 255, 255);
+// 绘制全部对象，不依赖 Yolo 实例，同步和异步渲染路径共用
+int Yolo::draw(cv::Mat& rgb, const std::vector<Object>& objects)
+{
+    StatsScope scope(STAT_DRAW);
 
-        cv::putText(rgb, text, cv::Point(x, y + label_size.height),
-                    cv::FONT_HERSHEY_SIMPLEX, 0.5, textcc, 1);
+    for (size_t i = 0; i < objects.size(); i++)
+    {
+        draw_object(rgb, objects[i]);
     }
 
     return 0;
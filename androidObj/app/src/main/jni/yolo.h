@@ -19,12 +19,20 @@
 
 #include <net.h>
 #include <chrono>
+#include <stdint.h>
+
+#include "alloc_check.h"
+#include "config.h"
+#include "postprocess.h"
+#include "scheduler.h"
+#include "taskpool.h"
 
 struct Object
 {
     cv::Rect_<float> rect;
     int label;
     float prob;
+    int track_id; // 跟踪编号，-1 表示未跟踪
 };
 struct GridAndStride
 {
@@ -32,39 +40,262 @@ struct GridAndStride
     int grid1;
     int stride;
 };
+// 参与推理的画面区域，像素坐标
+struct YoloRegion
+{
+    int x;
+    int y;
+    int w;
+    int h;
+    int inner_edges; // 分块时位于父区域内部的边，EDGE_* 的组合
+
+    static const int EDGE_LEFT = 1;
+    static const int EDGE_TOP = 2;
+    static const int EDGE_RIGHT = 4;
+    static const int EDGE_BOTTOM = 8;
+};
+// detect 的输入画面
+struct YoloImage
+{
+    const unsigned char* data;
+    int width;
+    int height;
+    int stride;     // 行字节数，nv21 不使用
+    int pixel_type; // ncnn::Mat::PIXEL_*2BGR 等转换类型，nv21 不使用
+    bool nv21;
+};
+
+// 后处理各阶段的耗时（纳秒）和规模，由 Yolo::postprocess 按需填写，供后处理基准使用
+struct YoloPostprocessProfile
+{
+    int64_t grid_ns;      // generate_grids_and_stride，网格缓存命中时为查找耗时
+    int64_t proposal_ns;  // generate_proposals
+    int64_t remap_ns;     // 坐标换算回原图和截断
+    int64_t sort_ns;      // qsort_descent_inplace
+    int64_t nms_ns;       // NMS
+    int64_t area_sort_ns; // 输出按面积排序
+    int num_anchors;
+    int num_proposals;
+    int num_objects;
+    int allocations;      // 堆分配次数，未定义 YOLO_ALLOC_CHECK 时为 -1
+};
+
+// 每帧复用的中间结果，避免 detect 中的堆分配
+struct YoloFrameContext
+{
+    cv::Mat resized;
+    ncnn::Mat in;
+    ncnn::Mat in_pad;
+    ncnn::Mat out;
+    std::vector<Object> proposals;
+    std::vector<int> picked;
+    NmsEngine nms;
+};
+// 独立的推理上下文，供分块并行的后台线程和静态图片检测使用
+// 各自持有提取器和 blob 内存池，工作区内存池共享
+struct YoloWorkerContext
+{
+    ncnn::UnlockedPoolAllocator blob_allocator; // 最先声明，最后析构
+    AllocCheckAllocator blob_alloc_check;       // 包装 blob_allocator，统计内存池未命中
+    YoloFrameContext frame;
+    ncnn::Extractor* extractor_template;
+    ncnn::Extractor* extractor;
+
+    // 静态图片检测按快照版本缓存的类别序号
+    std::vector<int> class_ids;
+    unsigned int class_ids_version;
+
+    bool record_stats; // 是否计入各阶段耗时统计
+};
+
 class Yolo
 {
 public:
     // 定义检测模式常量
     static const int DETECT_MODE_HUMAN_ONLY = 0;
     static const int DETECT_MODE_HUMAN_AND_VEHICLE = 1;
+    static const int DETECT_MODE_CUSTOM = 2; // 由 setClassMask/setClasses 指定的类别集合
+
+    // COCO 80 类，类别掩码按 64 位分为 2 个字
+    static const int NUM_CLASS = 80;
+    static const int CLASS_MASK_WORDS = 2;
     
-    Yolo();
+    // shared_config 为空时使用实例自己的参数存储
+    Yolo(YoloConfigStore* shared_config = 0);
+    ~Yolo();
 
     int load(const char* modeltype, int target_size, const float* mean_vals, const float* norm_vals, bool use_gpu = false);
 
+#if __ANDROID_API__ >= 9
     int load(AAssetManager* mgr, const char* modeltype, int target_size, const float* mean_vals, const float* norm_vals, bool use_gpu = false);
+#endif // __ANDROID_API__ >= 9
+
+    bool is_loaded() const;
+
+    // 设置是否映射 apk 中未压缩的权重文件，下次 load 生效
+    void setMmapWeights(bool enable);
+
+    // 当前模型的权重是否为映射加载
+    bool isWeightsMapped() const;
+
+    // 预热，加载后在替换为当前模型之前调用
+    int warmup();
 
     // detect返回1表示被节流，0表示正常推理
-    int detect(const cv::Mat& rgb, std::vector<Object>& objects, float prob_threshold = 0.4f, float nms_threshold = 0.5f);
+    // 阈值、节流、检测模式等参数取自每帧开始时读取的参数快照
+    int detect(const cv::Mat& rgb, std::vector<Object>& objects);
+
+    // 直接由 nv21 检测，缩放、转色、填充和归一化一次完成，返回值含义同 detect
+    int detect_nv21(const unsigned char* nv21, int width, int height, std::vector<Object>& objects);
+
+    // 静态图片检测，可在任意线程并发调用，与 detect 互不影响
+    // 每次调用从上下文池取得独立的提取器，不经过推理调度，不使用感兴趣区域和分块，始终检测整张图片
+    // pixel_type 为 ncnn::Mat::PIXEL_RGBA2BGR 等转换类型，stride 为行字节数，num_threads 为 0 时使用模型默认线程数
+    // 返回 0 成功，-1 表示模型未加载
+    int detect_pixels(const unsigned char* pixels, int pixel_type, int width, int height, int stride, std::vector<Object>& objects, int num_threads = 0);
+
+    // 紧凑 nv21 的静态检测，预处理与相机路径相同，其余同 detect_pixels
+    int detect_pixels_nv21(const unsigned char* nv21, int width, int height, std::vector<Object>& objects, int num_threads = 0);
+
+    // 以下两个接口供后处理的回归测试和基准使用，只处理整张图片，不经过调度和分块，不可与 detect 并发调用
+    // 推理一张 rgb 图片，out 为网络原始输出的拷贝，target_size 为实际使用的模型尺寸，返回 -1 表示模型未加载
+    int extract_raw(const cv::Mat& rgb, ncnn::Mat& out, int& target_size);
 
-    int draw(cv::Mat& rgb, const std::vector<Object>& objects);
+    // 由网络原始输出重放后处理：候选框解码、坐标换算、NMS 和截断，不需要加载模型
+    // width height 为原图尺寸，target_size 为推理时的模型尺寸，阈值和类别取自当前设置，结果与整图 detect 一致
+    // profile 不为空时记录各阶段耗时和堆分配次数
+    void postprocess(const ncnn::Mat& out, int width, int height, int target_size, std::vector<Object>& objects, YoloPostprocessProfile* profile = 0);
+
+    // 绘制全部对象，detect 的输出已按类别掩码过滤，不依赖 Yolo 实例
+    static int draw(cv::Mat& rgb, const std::vector<Object>& objects);
     
+    // 以下参数设置均不加锁，可在任意线程调用，下一帧 detect 生效
+
+    // 获取当前参数快照
+    YoloConfig getConfig() const;
+
+    // 设置置信度阈值
+    void setProbThreshold(float threshold);
+
+    // 设置 NMS 阈值
+    void setNmsThreshold(float threshold);
+
     // 设置推理节流间隔（毫秒）
     void setThrottleInterval(int interval);
     
     // 获取当前节流间隔
     int getThrottleInterval();
     
-    // 判断是否应该跳过推理
+    // 判断是否应该跳过推理，由调度器按当前模式决定
     bool shouldSkipInference();
+
+    // 调度器最近选择的推理间隔（微秒，0 表示逐帧）和原因 InferenceScheduler::REASON_*
+    int64_t getScheduleInterval() const;
+    int getScheduleReason() const;
     
-    // 设置检测模式
+    // 设置检测模式，同时把类别掩码切换为该模式对应的类别集合
     void setDetectMode(int mode);
     
     // 获取当前检测模式
     int getDetectMode();
 
+    // 设置类别掩码，第 k 类对应 mask[k / 64] 的第 k % 64 位，检测模式变为 DETECT_MODE_CUSTOM
+    void setClassMask(const uint64_t* mask, int num_words);
+
+    // 按类别序号设置类别掩码，越界的序号被忽略
+    void setClasses(const int* class_ids, int num_class_ids);
+
+    // 获取当前类别掩码
+    void getClassMask(uint64_t* mask) const;
+
+    // 设置 NMS 模式，NmsEngine::NMS_CLASS_AGNOSTIC 或 NmsEngine::NMS_PER_CLASS
+    void setNmsMode(int mode);
+
+    // 获取当前 NMS 模式
+    int getNmsMode();
+
+    // 设置感兴趣区域，每个区域 4 个值（x，y，w，h），按画面宽高归一化，最多 YoloConfig::MAX_REGIONS 个
+    // 每个区域单独按模型尺寸缩放推理，结果换算回整个画面并跨区域 NMS，num_regions 为 0 时检测整个画面
+    void setRegionsOfInterest(const float* rects, int num_regions);
+
+    // 设置分块推理，每个区域切成 cols x rows 个相互重叠的分块分别推理，用于高分辨率画面中的小目标
+    // 原区域仍整体推理一次，分块边界处被截断的框在 NMS 后去除，1x1 表示不分块
+    void setTiling(int cols, int rows, int overlap_percent);
+
+    // 设置分块并行的后台线程数，大核在各线程之间平分，0 表示依次推理，gpu 推理时忽略
+    void setTileThreads(int num_threads);
+
+    // 设置是否使用缓存的网格查找表，关闭时由 anchor 序号直接推算网格中心
+    void setGridTable(bool enable);
+
+    // 获取上一帧网格相关的堆分配次数
+    int getGridAllocCount();
+
+    // 获取上一次 detect 中的堆分配次数，统计范围见 alloc_check.h，仅 Debug 构建统计，否则返回 -1
+    int getDetectAllocCount();
+
+private:
+    void resolve_regions(const YoloConfig& c, int width, int height, bool even);
+
+    // 推理所有区域，候选框合并到 frame.proposals
+    void run_regions(const YoloImage& image, const YoloConfig& c);
+
+    // 推理一个区域，候选框换算到整个画面的坐标，返回提取耗时（微秒）
+    // wc 为空时使用 frame 和 extractor，num_threads 为 0 时沿用模板的线程数，ids 为预筛选的类别序号
+    int64_t infer_region(const YoloImage& image, const YoloRegion& region, const YoloConfig& c, YoloWorkerContext* wc, int num_threads, const std::vector<int>& ids);
+
+    // 由网络输出生成候选框，换算到整个画面的坐标后追加到 ctx.proposals
+    // in_w in_h 为填充后的输入尺寸，shared_grid 为 true 时可使用网格缓存（只在推理线程上）
+    void decode_region(const ncnn::Mat& out, const YoloRegion& region, int in_w, int in_h, float scale, int wpad, int hpad, const YoloConfig& c, YoloFrameContext& ctx, bool shared_grid, const std::vector<int>& ids, YoloPostprocessProfile* profile = 0);
+
+    static void tile_task(void* context, int worker);
+
+    YoloWorkerContext* create_worker_context();
+
+    static void delete_worker_context(YoloWorkerContext* wc);
+
+    // detect_pixels 与 detect_pixels_nv21 的公共部分，只检测整张图片
+    int detect_still(const YoloImage& image, std::vector<Object>& objects, int num_threads);
+
+    YoloWorkerContext* acquire_still_context();
+
+    void release_still_context(YoloWorkerContext* wc);
+
+    void ensure_tile_workers(int num_workers);
+
+    void release_tile_workers();
+
+    void suppress_truncated(std::vector<Object>& objects);
+
+    void begin_load(bool use_gpu);
+
+    void finish_load(int target_size, const float* mean_vals, const float* norm_vals);
+
+    // 所有区域的候选框合并做 NMS 并输出
+    void finish_detections(int width, int height, std::vector<Object>& objects, const YoloConfig& c);
+
+    // 对 ctx 中的候选框做 NMS，输出截断到画面内的检测框
+    static void nms_and_clip(YoloFrameContext& ctx, int width, int height, std::vector<Object>& objects, const YoloConfig& c, YoloPostprocessProfile* profile = 0);
+
+    void finish_alloc_check();
+
+    const std::vector<GridAndStride>& get_grid_strides(int target_w, int target_h);
+
+    void invalidate_grid_cache();
+
+    void release_frame_context();
+
+#if __ANDROID_API__ >= 9
+    int map_weights(AAssetManager* mgr, const char* modelpath);
+#endif // __ANDROID_API__ >= 9
+
+    void unmap_weights();
+
+
+    int effective_target_size(const YoloConfig& c) const;
+
+    void apply_resource_limits(const YoloConfig& c);
+
 private:
     ncnn::Net yolo;
     int target_size;
@@ -72,13 +303,68 @@ private:
     float norm_vals[3];
     ncnn::UnlockedPoolAllocator blob_pool_allocator;
     ncnn::PoolAllocator workspace_pool_allocator;
+
+    // 包装两个内存池，网络和预处理都经由它们分配，Debug 构建中统计未命中
+    AllocCheckAllocator blob_alloc_check;
+    AllocCheckAllocator workspace_alloc_check;
     
-    // 节流控制
-    int throttle_interval; // 以毫秒为单位
-    std::chrono::steady_clock::time_point last_inference_time;
-    
-    // 检测模式
-    int detect_mode;
+    // 阈值、节流、检测模式、类别掩码、NMS 模式
+    YoloConfigStore own_config;
+    YoloConfigStore* config;
+
+    // 推理调度，只在 detect 线程访问
+    InferenceScheduler scheduler;
+
+    // 掩码中置位的类别，生成候选框时按检测模式过滤，按快照版本缓存
+    std::vector<int> class_ids;
+    unsigned int class_ids_version;
+
+    std::vector<int> strides;
+
+    // 网格缓存，按填充后的输入尺寸索引，stride 集合变化时整体失效
+    // ROI 区域的尺寸各不相同，保留最近使用的几种尺寸，区域之间交替时不反复重建
+    struct GridCacheEntry
+    {
+        int target_w;
+        int target_h;
+        unsigned int last_use;
+        std::vector<GridAndStride> grid_strides;
+    };
+    enum { GRID_CACHE_SIZE = 4 };
+    bool grid_table;
+    GridCacheEntry grid_cache[GRID_CACHE_SIZE];
+    unsigned int grid_cache_clock;
+    std::vector<int> grid_strides_key;
+    int grid_alloc_count;
+
+    // 帧上下文和复用的提取器
+    YoloFrameContext frame;
+    std::vector<YoloRegion> regions;
+    ncnn::Extractor* extractor;
+    ncnn::Extractor* extractor_template;
+
+    // 分块并行的线程池和后台工作者，只在 detect 线程创建和访问
+    TaskPool* tile_pool;
+    std::vector<YoloWorkerContext*> tile_workers;
+    std::vector<char> truncated;
+
+    // 静态图片检测的上下文池，still_lock 保护，模型释放时一并释放
+    ncnn::Mutex still_lock;
+    std::vector<YoloWorkerContext*> still_contexts;
+    std::vector<YoloWorkerContext*> still_free;
+
+    // 映射的权重文件，网络释放后才能解除映射
+    bool mmap_weights;
+    void* weights_map;
+    size_t weights_map_size;
+    size_t weights_map_offset;
+
+    int detect_alloc_count;
+    int detect_frame_count;
+
+    // 推理线程上已应用的线程数和省电模式，只在 detect 线程访问
+    int applied_num_threads;
+    int applied_powersave;
 };
 
 #endif // NANODET_H
@@ -13,6 +13,7 @@
 // specific language governing permissions and limitations under the License.
 
 #include <android/asset_manager_jni.h>
+#include <android/bitmap.h>
 #include <android/native_window_jni.h>
 #include <android/native_window.h>
 
@@ -20,15 +21,27 @@
 
 #include <jni.h>
 
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <atomic>
 #include <string>
 #include <vector>
 
 #include <platform.h>
 #include <benchmark.h>
+#include <cpu.h>
 
 #include "yolo.h"
+#include "batch.h"
+#include "governor.h"
+#include "resultring.h"
+#include "tracker.h"
+#include "videopipeline.h"
 
 #include "ndkcamera.h"
+#include "stats.h"
 
 #include <opencv2/core/core.hpp>
 #include <opencv2/imgproc/imgproc.hpp>
@@ -110,224 +123,1470 @@ static int draw_fps(cv::Mat& rgb)
     return 0;
 }
 
+// 参数设置直接写入共享的参数存储，不加锁，模型热切换时保留
+static YoloConfigStore g_config;
+
+// 每次推理的结果发布到这里，Java 层通过 DirectByteBuffer 直接读取
+// 只在持有 MyNdkCamera::result_lock 时发布，保证只有一个写者
+static ResultRing g_results;
+
+// 当前生效的模型，新模型在后台构建完成后才替换进来
+// lock 只用于模型替换与推理之间的互斥，被替换的模型在进行中的一帧结束后释放
 static Yolo* g_yolo = 0;
 static ncnn::Mutex lock;
 
-static float g_prob_threshold = 0.4f;
+// 获取 lock 时已被占用或有其他线程在等待的次数
+static std::atomic<int64_t> g_lock_contentions(0);
+static std::atomic<int> g_lock_holders(0);
 
-class MyNdkCamera : public NdkCameraWindow
+class ModelLockGuard
 {
 public:
-    MyNdkCamera() {
-        last_objects.clear();
+    ModelLockGuard()
+    {
+        if (g_lock_holders.fetch_add(1) > 0)
+            g_lock_contentions++;
+
+        lock.lock();
+    }
+
+    ~ModelLockGuard()
+    {
+        lock.unlock();
+
+        g_lock_holders.fetch_sub(1);
     }
-    virtual void on_image_render(cv::Mat& rgb) const;
+};
+
+// 温控和电量调度，在推理线程上每帧轮询，级别变化时更新资源限制，需要时请求重建模型
+static InferenceGovernor* g_governor = 0;
+
+static void poll_governor();
+
+class MyNdkCamera : public NdkCameraWindow
+{
+public:
+    MyNdkCamera();
+    virtual ~MyNdkCamera();
+    virtual void on_image_render(const unsigned char* nv21, int nv21_width, int nv21_height, cv::Mat& rgb) const;
+
+    // 流水线模式：推理在独立线程进行，渲染以相机帧率绘制最近一次完成的检测结果
+    void set_pipeline_mode(bool enable);
+    bool get_pipeline_mode() const;
+
+    // 跟踪：推理帧更新轨迹，跳过推理的帧绘制外推的轨迹，关闭时沿用上次结果
+    void set_tracking(bool enable);
+    bool get_tracking() const;
+
+    // 复制最近一帧绘制的对象
+    void copy_objects(std::vector<Object>& objects) const;
+
+public:
+    // 帧计数
+    mutable std::atomic<int64_t> rendered_frames;
+    mutable std::atomic<int64_t> inferred_frames;
+    mutable std::atomic<int64_t> dropped_frames;
+
+private:
+    void on_image_render_sync(const unsigned char* nv21, int nv21_width, int nv21_height, cv::Mat& rgb) const;
+    void on_image_render_pipeline(const unsigned char* nv21, int nv21_width, int nv21_height, cv::Mat& rgb) const;
+
+    static void* inference_worker(void* args);
+    void inference_loop();
+
 private:
     mutable std::vector<Object> last_objects;
+
+    // 同步模式每帧的检测输出，跨帧复用容量，只在相机回调线程上使用
+    mutable std::vector<Object> sync_objects;
+
+    // 切换流水线模式时持有，模式判断和线程启停作为一个整体
+    ncnn::Mutex mode_lock;
+    std::atomic<bool> pipeline_mode;
+    ncnn::Thread* worker;
+
+    // 单槽位邮箱，新帧覆盖未取走的旧帧，存放裁剪旋转后的 nv21
+    mutable ncnn::Mutex mailbox_lock;
+    mutable ncnn::ConditionVariable mailbox_cond;
+    mutable cv::Mat mailbox;
+    mutable int64_t mailbox_time; // 帧到达的时刻，作为推理结果的时间戳
+    mutable bool mailbox_full;
+    bool worker_exit;
+
+    // 最近一次完成的检测结果，result_lock 同时保护轨迹和 last_objects 的写入
+    mutable ncnn::Mutex result_lock;
+    mutable std::vector<Object> result_objects;
+    mutable bool result_fresh; // result_objects 有尚未复制到 last_objects 的新结果
+
+    std::atomic<bool> tracking;
+    mutable ObjectTracker tracker;
 };
 
-void MyNdkCamera::on_image_render(cv::Mat& rgb) const
+MyNdkCamera::MyNdkCamera()
 {
-    ncnn::MutexLockGuard g(lock);
-    if (g_yolo)
+    last_objects.clear();
+
+    rendered_frames = 0;
+    inferred_frames = 0;
+    dropped_frames = 0;
+
+    pipeline_mode = false;
+    worker = 0;
+    mailbox_time = 0;
+    mailbox_full = false;
+    worker_exit = false;
+    result_fresh = false;
+
+    tracking = true;
+}
+
+MyNdkCamera::~MyNdkCamera()
+{
+    set_pipeline_mode(false);
+}
+
+void MyNdkCamera::set_pipeline_mode(bool enable)
+{
+    ncnn::MutexLockGuard g0(mode_lock);
+
+    if (enable == pipeline_mode)
+        return;
+
+    if (enable)
     {
-        std::vector<Object> objects;
-        int detect_ret = g_yolo->detect(rgb, objects, g_prob_threshold);
-        if (detect_ret == 1) // 被节流，复用上次结果
         {
-            if (!last_objects.empty())
-                g_yolo->draw(rgb, last_objects);
+            ncnn::MutexLockGuard g(mailbox_lock);
+            mailbox_full = false;
+            worker_exit = false;
         }
-        else // 正常推理
         {
-            if (!objects.empty())
-                last_objects = objects;
-            else
-                last_objects.clear(); // 没有目标时清空
-            g_yolo->draw(rgb, objects);
+            ncnn::MutexLockGuard g(result_lock);
+            result_objects.clear();
+            result_fresh = true;
+            tracker.reset();
         }
+
+        worker = new ncnn::Thread(inference_worker, this);
+        pipeline_mode = true;
     }
     else
     {
-        draw_unsupported(rgb);
+        pipeline_mode = false;
+
+        {
+            ncnn::MutexLockGuard g(mailbox_lock);
+            worker_exit = true;
+            mailbox_cond.signal();
+        }
+
+        worker->join();
+        delete worker;
+        worker = 0;
     }
-    draw_fps(rgb);
 }
 
-static MyNdkCamera* g_camera = 0;
+bool MyNdkCamera::get_pipeline_mode() const
+{
+    return pipeline_mode;
+}
 
-extern "C" {
+void MyNdkCamera::set_tracking(bool enable)
+{
+    ncnn::MutexLockGuard g(result_lock);
 
-JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void* reserved)
+    tracking = enable;
+    tracker.reset();
+
+    // 关闭跟踪后下一帧重新取最近一次检测结果
+    result_fresh = true;
+}
+
+bool MyNdkCamera::get_tracking() const
 {
-    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "JNI_OnLoad");
+    return tracking;
+}
 
-    g_camera = new MyNdkCamera;
+void MyNdkCamera::copy_objects(std::vector<Object>& objects) const
+{
+    ncnn::MutexLockGuard g(result_lock);
 
-    return JNI_VERSION_1_4;
+    objects = last_objects;
 }
 
-JNIEXPORT void JNI_OnUnload(JavaVM* vm, void* reserved)
+void* MyNdkCamera::inference_worker(void* args)
 {
-    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "JNI_OnUnload");
+    ((MyNdkCamera*)args)->inference_loop();
+    return 0;
+}
+
+void MyNdkCamera::inference_loop()
+{
+    cv::Mat frame;
+    int64_t frame_time = 0;
+    std::vector<Object> objects;
 
+    while (1)
     {
-        ncnn::MutexLockGuard g(lock);
+        // 取走邮箱中最新的一帧，与空闲缓冲交换，避免逐帧分配
+        {
+            ncnn::MutexLockGuard g(mailbox_lock);
 
-        delete g_yolo;
-        g_yolo = 0;
-    }
+            while (!mailbox_full && !worker_exit)
+            {
+                mailbox_cond.wait(mailbox_lock);
+            }
 
-    delete g_camera;
-    g_camera = 0;
+            if (worker_exit)
+                break;
+
+            cv::swap(frame, mailbox);
+            frame_time = mailbox_time;
+            mailbox_full = false;
+        }
+
+        poll_governor();
+
+        // 尚未加载模型时不发布结果，也不计入推理帧
+        int detect_ret = 1;
+        {
+            ModelLockGuard g;
+            if (g_yolo)
+            {
+                detect_ret = g_yolo->detect_nv21(frame.data, frame.cols, frame.rows / 3 * 2, objects);
+            }
+        }
+
+        if (detect_ret == 1) // 被节流或没有模型，保留上次结果
+            continue;
+
+        {
+            ncnn::MutexLockGuard g(result_lock);
+            if (tracking)
+                tracker.update(objects, frame_time);
+            g_results.publish(objects, frame.cols, frame.rows / 3 * 2, frame_time);
+            std::swap(result_objects, objects);
+            result_fresh = true;
+        }
+
+        inferred_frames++;
+    }
 }
 
-// public native boolean loadModel(AssetManager mgr, int modelid, int cpugpu);
-JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_loadModel(JNIEnv* env, jobject thiz, jobject assetManager, jint modelid, jint cpugpu)
+void MyNdkCamera::on_image_render(const unsigned char* nv21, int nv21_width, int nv21_height, cv::Mat& rgb) const
 {
-    if (modelid < 0 || modelid > 6 || cpugpu < 0 || cpugpu > 1)
+    if (pipeline_mode)
     {
-        return JNI_FALSE;
+        on_image_render_pipeline(nv21, nv21_width, nv21_height, rgb);
+    }
+    else
+    {
+        on_image_render_sync(nv21, nv21_width, nv21_height, rgb);
     }
 
-    AAssetManager* mgr = AAssetManager_fromJava(env, assetManager);
+    rendered_frames++;
 
-    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "loadModel %p", mgr);
+    draw_fps(rgb);
+}
 
-    const char* modeltypes[] =
-    {
-        "n",
-        "s",
-    };
+void MyNdkCamera::on_image_render_sync(const unsigned char* nv21, int nv21_width, int nv21_height, cv::Mat& rgb) const
+{
+    poll_governor();
 
-    const int target_sizes[] =
+    ModelLockGuard g;
+    if (g_yolo)
     {
-        320,
-        320,
-    };
+        const int64_t frame_time = stats_now_us();
 
-    const float mean_vals[][3] =
+        // 运动门控判定静止时不推理，按被节流处理
+        std::vector<Object>& objects = sync_objects;
+        int detect_ret = frame_static() ? 1 : g_yolo->detect_nv21(nv21, nv21_width, nv21_height, objects);
+        if (detect_ret == 0) // 正常推理
+            inferred_frames++;
+
+        {
+            ncnn::MutexLockGuard g2(result_lock);
+
+            if (tracking)
+            {
+                // 被节流时外推轨迹
+                if (detect_ret == 0)
+                    tracker.update(objects, frame_time);
+                tracker.predict(frame_time, last_objects);
+            }
+            else if (detect_ret == 0)
+            {
+                last_objects.swap(objects); // 被节流时复用上次结果
+            }
+
+            // 只发布推理帧的检测结果，外推的轨迹不发布
+            if (detect_ret == 0)
+                g_results.publish(tracking ? objects : last_objects, nv21_width, nv21_height, frame_time);
+        }
+
+        Yolo::draw(rgb, last_objects);
+    }
+    else
     {
-        {103.53f, 116.28f, 123.675f},
-        {103.53f, 116.28f, 123.675f},
-    };
+        draw_unsupported(rgb);
+    }
+}
 
-    const float norm_vals[][3] =
+void MyNdkCamera::on_image_render_pipeline(const unsigned char* nv21, int nv21_width, int nv21_height, cv::Mat& rgb) const
+{
+    // 投递到邮箱，推理线程尚未取走的旧帧直接丢弃，运动门控判定静止的帧不投递
+    if (!frame_static())
     {
-        { 1 / 255.f, 1 / 255.f, 1 / 255.f },
-        { 1 / 255.f, 1 / 255.f, 1 / 255.f },
-    };
+        ncnn::MutexLockGuard g(mailbox_lock);
 
-    const char* modeltype = modeltypes[(int)modelid];
-    int target_size = target_sizes[(int)modelid];
-    bool use_gpu = (int)cpugpu == 1;
+        if (mailbox_full)
+            dropped_frames++;
 
-    // reload
-    {
-        ncnn::MutexLockGuard g(lock);
+        cv::Mat(nv21_height + nv21_height / 2, nv21_width, CV_8UC1, (void*)nv21).copyTo(mailbox);
+        mailbox_time = stats_now_us();
+        mailbox_full = true;
+        mailbox_cond.signal();
+    }
 
-        if (use_gpu && ncnn::get_gpu_count() == 0)
+    // 绘制最近一次完成的检测结果，不等待推理，跟踪时外推到当前帧
+    // 只在有新结果时复制一次，沿用 last_objects 的容量
+    {
+        ncnn::MutexLockGuard g(result_lock);
+        if (tracking)
         {
-            // no gpu
-            delete g_yolo;
-            g_yolo = 0;
+            tracker.predict(stats_now_us(), last_objects);
         }
-        else
+        else if (result_fresh)
         {
-            if (!g_yolo)
-                g_yolo = new Yolo;
-            g_yolo->load(mgr, modeltype, target_size, mean_vals[(int)modelid], norm_vals[(int)modelid], use_gpu);
+            last_objects = result_objects;
+            result_fresh = false;
         }
     }
 
-    return JNI_TRUE;
+    Yolo::draw(rgb, last_objects);
 }
 
-// public native boolean openCamera(int facing);
-JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_openCamera(JNIEnv* env, jobject thiz, jint facing)
+static MyNdkCamera* g_camera = 0;
+
+static JavaVM* g_vm = 0;
+
+// 是否映射 apk 中未压缩的权重，用于对比两种加载方式
+static std::atomic<bool> g_mmap_weights(true);
+
+// 读取 /proc/self/status 中的内存统计（kB），VmRSS 为当前常驻，VmHWM 为进程启动以来的峰值
+static long read_proc_status_kb(const char* key)
 {
-    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "openCamera %d", facing);
+    FILE* fp = fopen("/proc/self/status", "r");
+    if (!fp)
+        return -1;
 
-    int ret = g_camera->open((int)facing);
-    
-    return ret == 0 ? JNI_TRUE : JNI_FALSE;
+    const size_t keylen = strlen(key);
+
+    long value = -1;
+    char line[256];
+    while (fgets(line, sizeof(line), fp))
+    {
+        if (strncmp(line, key, keylen) == 0 && line[keylen] == ':')
+        {
+            value = atol(line + keylen + 1);
+            break;
+        }
+    }
+
+    fclose(fp);
+    return value;
 }
 
-// public native boolean closeCamera();
-JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_closeCamera(JNIEnv* env, jobject thiz)
+// 最近一次加载请求，governor 切换大小模型时据此重建
+static ncnn::Mutex g_request_lock;
+static jobject g_request_assets = 0; // global ref
+static int g_request_modelid = 0;
+static int g_request_cpugpu = 0;
+
+// 当前模型实际使用的 modelid，-1 表示没有模型
+static std::atomic<int> g_built_modelid(-1);
+
+static void remember_request(JNIEnv* env, jobject assetManager, int modelid, int cpugpu)
 {
-    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "closeCamera");
+    ncnn::MutexLockGuard g(g_request_lock);
 
-    g_camera->close();
+    if (g_request_assets)
+        env->DeleteGlobalRef(g_request_assets);
 
-    return JNI_TRUE;
+    g_request_assets = env->NewGlobalRef(assetManager);
+    g_request_modelid = modelid;
+    g_request_cpugpu = cpugpu;
 }
 
-// public native boolean setOutputWindow(Surface surface);
-JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setOutputWindow(JNIEnv* env, jobject thiz, jobject surface)
+// governor 要求小模型时以 yolov8n 代替 yolov8s
+static int governed_modelid(int modelid)
 {
-    ANativeWindow* win = ANativeWindow_fromSurface(env, surface);
+    if (modelid == 1 && g_governor && g_governor->small_model())
+        return 0;
 
-    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setOutputWindow %p", win);
+    return modelid;
+}
 
-    g_camera->set_window(win);
+// 可加载的模型，modelid 为下标
+static const char* const modeltypes[] =
+{
+    "n",
+    "s",
+};
 
-    return JNI_TRUE;
+static const int target_sizes[] =
+{
+    320,
+    320,
+};
+
+static const float mean_vals[][3] =
+{
+    {103.53f, 116.28f, 123.675f},
+    {103.53f, 116.28f, 123.675f},
+};
+
+static const float norm_vals[][3] =
+{
+    { 1 / 255.f, 1 / 255.f, 1 / 255.f },
+    { 1 / 255.f, 1 / 255.f, 1 / 255.f },
+};
+
+static const int num_models = sizeof(modeltypes) / sizeof(modeltypes[0]);
+
+// 构建并预热一个新模型，不持有 lock，预览和推理不受影响
+// 返回 0 成功，-1 表示加载失败，-2 表示请求 gpu 但设备不支持，失败时当前模型保持不变
+static int build_model(AAssetManager* mgr, int modelid, int cpugpu, Yolo** yolo, double* load_time, double* warmup_time)
+{
+    modelid = governed_modelid(modelid);
+
+    const char* modeltype = modeltypes[(int)modelid];
+    int target_size = target_sizes[(int)modelid];
+    bool use_gpu = (int)cpugpu == 1;
+
+    *yolo = 0;
+    *load_time = 0;
+    *warmup_time = 0;
+
+    if (use_gpu && ncnn::get_gpu_count() == 0)
+    {
+        // no gpu
+        return -2;
+    }
+
+    const long rss0 = read_proc_status_kb("VmRSS");
+
+    double t0 = ncnn::get_current_time();
+
+    Yolo* new_yolo = new Yolo(&g_config);
+    new_yolo->setMmapWeights(g_mmap_weights);
+    if (new_yolo->load(mgr, modeltype, target_size, mean_vals[(int)modelid], norm_vals[(int)modelid], use_gpu) != 0)
+    {
+        delete new_yolo;
+        return -1;
+    }
+
+    double t1 = ncnn::get_current_time();
+
+    // 首帧的内存池分配、gpu 管线编译都在这里完成
+    new_yolo->warmup();
+
+    double t2 = ncnn::get_current_time();
+
+    // 峰值对比需分别冷启动后首次加载，VmHWM 不会回落
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "build_model yolov8%s mmap=%d load %.2fms warmup %.2fms rss %ld -> %ld kB peak %ld kB",
+                        modeltype, (int)new_yolo->isWeightsMapped(), t1 - t0, t2 - t1, rss0, read_proc_status_kb("VmRSS"), read_proc_status_kb("VmHWM"));
+
+    g_built_modelid = modelid;
+
+    *yolo = new_yolo;
+    *load_time = t1 - t0;
+    *warmup_time = t2 - t1;
+
+    return 0;
 }
 
-JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setConfidenceThreshold(JNIEnv* env, jobject thiz, jfloat threshold)
+// 静态图片检测正在使用的模型实例和各自的使用次数
+// 被替换的实例标记为退役，由最后一个使用者释放，install_model 不等待
+struct StillModel
+{
+    Yolo* yolo;
+    int users;
+    bool retired;
+};
+
+static ncnn::Mutex g_still_lock;
+static std::vector<StillModel> g_still_models;
+
+static int find_still_model(const Yolo* yolo)
 {
-    g_prob_threshold = threshold;
+    for (size_t i = 0; i < g_still_models.size(); i++)
+    {
+        if (g_still_models[i].yolo == yolo)
+            return (int)i;
+    }
+
+    return -1;
 }
 
-// 设置节流间隔
-JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setThrottleInterval(JNIEnv* env, jobject thiz, jint milliseconds)
+// 取得当前模型用于静态图片检测并固定该实例，只在读取指针时短暂持有 lock，推理期间不阻塞相机
+static Yolo* acquire_still_model()
 {
-    ncnn::MutexLockGuard g(lock);
-    
-    if (g_yolo)
+    ModelLockGuard g;
+
+    if (!g_yolo)
+        return 0;
+
+    ncnn::MutexLockGuard g2(g_still_lock);
+
+    int i = find_still_model(g_yolo);
+    if (i < 0)
     {
-        g_yolo->setThrottleInterval(milliseconds);
-        __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setThrottleInterval %d ms", milliseconds);
+        StillModel m;
+        m.yolo = g_yolo;
+        m.users = 0;
+        m.retired = false;
+        g_still_models.push_back(m);
+        i = (int)g_still_models.size() - 1;
     }
+
+    g_still_models[i].users++;
+
+    return g_yolo;
 }
 
-// 获取当前节流间隔
-JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getThrottleInterval(JNIEnv* env, jobject thiz)
+// 释放 acquire_still_model 取得的实例，已被替换且没有其他使用者时在锁外释放
+static void release_still_model(Yolo* yolo)
 {
-    ncnn::MutexLockGuard g(lock);
-    
-    if (g_yolo)
+    Yolo* retired_yolo = 0;
     {
-        return g_yolo->getThrottleInterval();
+        ncnn::MutexLockGuard g(g_still_lock);
+
+        const int i = find_still_model(yolo);
+        if (i < 0)
+            return;
+
+        StillModel& m = g_still_models[i];
+        m.users--;
+        if (m.users > 0)
+            return;
+
+        if (m.retired)
+            retired_yolo = m.yolo;
+
+        g_still_models.erase(g_still_models.begin() + i);
     }
-    
-    return 0;
+
+    delete retired_yolo;
 }
 
-// 设置检测模式
-JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setDetectMode(JNIEnv* env, jobject thiz, jint mode)
+// 替换当前模型，只在两帧之间持有 lock，旧模型在锁外释放
+// 静态图片检测仍在使用旧模型时只标记退役，由最后一个使用者释放，加载不会被长时间的批量检测阻塞
+static void install_model(Yolo* yolo)
 {
-    ncnn::MutexLockGuard g(lock);
-    
-    if (g_yolo)
+    Yolo* old_yolo = 0;
+    {
+        ModelLockGuard g;
+
+        old_yolo = g_yolo;
+        g_yolo = yolo;
+    }
+
     {
-        g_yolo->setDetectMode(mode);
-        __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setDetectMode %d", mode);
+        ncnn::MutexLockGuard g(g_still_lock);
+
+        const int i = find_still_model(old_yolo);
+        if (i >= 0)
+        {
+            g_still_models[i].retired = true;
+            old_yolo = 0;
+        }
     }
+
+    delete old_yolo;
 }
 
-// 获取当前检测模式
-JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getDetectMode(JNIEnv* env, jobject thiz)
+// 检测结果写入 float 数组，每个对象 6 个值（x，y，w，h，置信度，类别），返回写出的对象数
+static int write_detections(JNIEnv* env, const std::vector<Object>& objects, jfloatArray out)
 {
-    ncnn::MutexLockGuard g(lock);
-    
-    if (g_yolo)
+    const int n = std::min((int)objects.size(), (int)env->GetArrayLength(out) / 6);
+    if (n == 0)
+        return 0;
+
+    jfloat* p = env->GetFloatArrayElements(out, 0);
+
+    for (int i = 0; i < n; i++)
     {
-        return g_yolo->getDetectMode();
+        const Object& obj = objects[i];
+
+        p[i * 6] = obj.rect.x;
+        p[i * 6 + 1] = obj.rect.y;
+        p[i * 6 + 2] = obj.rect.width;
+        p[i * 6 + 3] = obj.rect.height;
+        p[i * 6 + 4] = obj.prob;
+        p[i * 6 + 5] = (float)obj.label;
     }
-    
-    return 0;
+
+    env->ReleaseFloatArrayElements(out, p, 0);
+
+    return n;
+}
+
+// 批量检测的 Java 回调、整批固定使用的模型和每个推理线程的 ncnn 线程数
+struct BatchContext
+{
+    JNIEnv* env;
+    jobject callback;
+    jmethodID on_image;
+    Yolo* yolo;
+    int num_threads;
+};
+
+static int batch_detect(void* context, const cv::Mat& bgr, std::vector<Object>& objects)
+{
+    const BatchContext* bc = (const BatchContext*)context;
+
+    if (!bc->yolo)
+        return -1;
+
+    return bc->yolo->detect_pixels(bgr.data, ncnn::Mat::PIXEL_BGR, bgr.cols, bgr.rows, (int)bgr.step, objects, bc->num_threads);
+}
+
+// 在调用 detectBatch 的线程上回调，Java 层抛出异常后返回 false 取消剩余的图片
+static bool batch_result(void* context, int index, int status, const std::vector<Object>& objects)
+{
+    const BatchContext* bc = (const BatchContext*)context;
+    JNIEnv* env = bc->env;
+
+    if (!bc->callback)
+        return true;
+
+    jfloatArray out = env->NewFloatArray((jsize)objects.size() * 6);
+    write_detections(env, objects, out);
+
+    env->CallVoidMethod(bc->callback, bc->on_image, index, status, out);
+
+    env->DeleteLocalRef(out);
+
+    return !env->ExceptionCheck();
+}
+
+// 同步和异步加载之间串行，避免同时构建多个模型
+static ncnn::Mutex build_lock;
+
+// 异步加载请求
+struct ModelLoadRequest
+{
+    jobject asset_manager; // global ref，保证 mgr 在加载期间有效
+    AAssetManager* mgr;
+    int modelid;
+    int cpugpu;
+    jobject callback; // global ref，可为空
+};
+
+// 后台加载线程，单槽位请求，新请求覆盖尚未开始的旧请求
+class ModelLoader
+{
+public:
+    ModelLoader();
+    ~ModelLoader();
+
+    void post(JNIEnv* env, const ModelLoadRequest& request);
+
+    // 按最近一次请求重建模型，不需要 JNIEnv，可在推理线程调用
+    void post_rebuild();
+
+protected:
+    static void* load_worker(void* args);
+    void load_loop();
+    void run(JNIEnv* env, const ModelLoadRequest& request);
+
+private:
+    ncnn::Mutex request_lock;
+    ncnn::ConditionVariable request_cond;
+    ModelLoadRequest pending;
+    bool pending_full;
+    bool rebuild_pending;
+    bool worker_exit;
+    ncnn::Thread* worker;
+};
+
+static void release_request(JNIEnv* env, const ModelLoadRequest& request)
+{
+    env->DeleteGlobalRef(request.asset_manager);
+    if (request.callback)
+        env->DeleteGlobalRef(request.callback);
+}
+
+ModelLoader::ModelLoader()
+{
+    pending_full = false;
+    rebuild_pending = false;
+    worker_exit = false;
+    worker = new ncnn::Thread(load_worker, this);
+}
+
+ModelLoader::~ModelLoader()
+{
+    {
+        ncnn::MutexLockGuard g(request_lock);
+        worker_exit = true;
+        request_cond.signal();
+    }
+
+    worker->join();
+    delete worker;
+}
+
+void ModelLoader::post(JNIEnv* env, const ModelLoadRequest& request)
+{
+    ModelLoadRequest dropped;
+    bool has_dropped = false;
+    {
+        ncnn::MutexLockGuard g(request_lock);
+
+        if (pending_full)
+        {
+            dropped = pending;
+            has_dropped = true;
+        }
+
+        pending = request;
+        pending_full = true;
+        request_cond.signal();
+    }
+
+    // 被覆盖的请求不会回调
+    if (has_dropped)
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "loadModelAsync superseded %d %d", dropped.modelid, dropped.cpugpu);
+        release_request(env, dropped);
+    }
+}
+
+void ModelLoader::post_rebuild()
+{
+    ncnn::MutexLockGuard g(request_lock);
+
+    rebuild_pending = true;
+    request_cond.signal();
+}
+
+void* ModelLoader::load_worker(void* args)
+{
+    ((ModelLoader*)args)->load_loop();
+    return 0;
+}
+
+void ModelLoader::load_loop()
+{
+    JNIEnv* env = 0;
+    g_vm->AttachCurrentThread(&env, 0);
+
+    while (1)
+    {
+        ModelLoadRequest request;
+        {
+            ncnn::MutexLockGuard g(request_lock);
+
+            while (!pending_full && !rebuild_pending && !worker_exit)
+            {
+                request_cond.wait(request_lock);
+            }
+
+            if (worker_exit)
+            {
+                if (pending_full)
+                {
+                    release_request(env, pending);
+                    pending_full = false;
+                }
+                break;
+            }
+
+            // 新请求同样按 governor 选择模型，重建请求随之作废
+            if (pending_full)
+            {
+                request = pending;
+                pending_full = false;
+                rebuild_pending = false;
+            }
+            else
+            {
+                rebuild_pending = false;
+
+                ncnn::MutexLockGuard g2(g_request_lock);
+
+                if (!g_request_assets || governed_modelid(g_request_modelid) == g_built_modelid)
+                    continue;
+
+                request.asset_manager = env->NewGlobalRef(g_request_assets);
+                request.mgr = AAssetManager_fromJava(env, request.asset_manager);
+                request.modelid = g_request_modelid;
+                request.cpugpu = g_request_cpugpu;
+                request.callback = 0;
+            }
+        }
+
+        run(env, request);
+
+        release_request(env, request);
+    }
+
+    g_vm->DetachCurrentThread();
+}
+
+void ModelLoader::run(JNIEnv* env, const ModelLoadRequest& request)
+{
+    Yolo* yolo = 0;
+    double load_time = 0;
+    double warmup_time = 0;
+    int ret = 0;
+    {
+        ncnn::MutexLockGuard g(build_lock);
+
+        ret = build_model(request.mgr, request.modelid, request.cpugpu, &yolo, &load_time, &warmup_time);
+        if (ret == 0)
+            install_model(yolo);
+    }
+
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "loadModelAsync %d %d ret=%d load %.2fms warmup %.2fms", request.modelid, request.cpugpu, ret, load_time, warmup_time);
+
+    if (!request.callback)
+        return;
+
+    // void onModelLoaded(boolean success, long loadMillis, long warmupMillis)
+    jclass cls = env->GetObjectClass(request.callback);
+    jmethodID mid = env->GetMethodID(cls, "onModelLoaded", "(ZJJ)V");
+    if (mid)
+    {
+        env->CallVoidMethod(request.callback, mid, ret == 0 ? JNI_TRUE : JNI_FALSE, (jlong)load_time, (jlong)warmup_time);
+    }
+    if (env->ExceptionCheck())
+    {
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+    }
+    env->DeleteLocalRef(cls);
+}
+
+static ModelLoader* g_loader = 0;
+
+static void poll_governor()
+{
+    if (!g_governor || !g_governor->poll(stats_now_us()))
+        return;
+
+    g_governor->apply(&g_config);
+
+    // 跨越小模型级别时在后台切换模型，当前模型继续推理直到替换
+    int modelid = 0;
+    {
+        ncnn::MutexLockGuard g(g_request_lock);
+        modelid = g_request_modelid;
+    }
+
+    if (g_loader && governed_modelid(modelid) != g_built_modelid)
+        g_loader->post_rebuild();
+}
+
+extern "C" {
+
+JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void* reserved)
+{
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "JNI_OnLoad");
+
+    g_vm = vm;
+
+    g_camera = new MyNdkCamera;
+
+    g_loader = new ModelLoader;
+
+    g_governor = new InferenceGovernor;
+    g_governor->apply(&g_config);
+
+    return JNI_VERSION_1_4;
+}
+
+JNIEXPORT void JNI_OnUnload(JavaVM* vm, void* reserved)
+{
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "JNI_OnUnload");
+
+    delete g_loader;
+    g_loader = 0;
+
+    g_camera->set_pipeline_mode(false);
+
+    install_model(0);
+
+    delete g_camera;
+    g_camera = 0;
+
+    delete g_governor;
+    g_governor = 0;
+
+    JNIEnv* env = 0;
+    if (vm->GetEnv((void**)&env, JNI_VERSION_1_4) == JNI_OK && g_request_assets)
+    {
+        env->DeleteGlobalRef(g_request_assets);
+        g_request_assets = 0;
+    }
+}
+
+// public native boolean loadModel(AssetManager mgr, int modelid, int cpugpu);
+JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_loadModel(JNIEnv* env, jobject thiz, jobject assetManager, jint modelid, jint cpugpu)
+{
+    if (modelid < 0 || modelid >= num_models || cpugpu < 0 || cpugpu > 1)
+    {
+        return JNI_FALSE;
+    }
+
+    AAssetManager* mgr = AAssetManager_fromJava(env, assetManager);
+
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "loadModel %p", mgr);
+
+    remember_request(env, assetManager, modelid, cpugpu);
+
+    // reload，构建期间旧模型继续推理，只在替换时短暂持有 lock
+    // 构建失败（如没有 gpu 时请求 gpu）返回 false，旧模型保留
+    int ret = 0;
+    {
+        ncnn::MutexLockGuard g(build_lock);
+
+        Yolo* yolo = 0;
+        double load_time = 0;
+        double warmup_time = 0;
+        ret = build_model(mgr, modelid, cpugpu, &yolo, &load_time, &warmup_time);
+        if (ret == 0)
+        {
+            install_model(yolo);
+        }
+
+        __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "loadModel ret %d load %.2fms warmup %.2fms", ret, load_time, warmup_time);
+    }
+
+    return ret == 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+// public native boolean loadModelAsync(AssetManager mgr, int modelid, int cpugpu, ModelLoadCallback callback);
+JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_loadModelAsync(JNIEnv* env, jobject thiz, jobject assetManager, jint modelid, jint cpugpu, jobject callback)
+{
+    if (modelid < 0 || modelid >= num_models || cpugpu < 0 || cpugpu > 1)
+    {
+        return JNI_FALSE;
+    }
+
+    ModelLoadRequest request;
+    request.asset_manager = env->NewGlobalRef(assetManager);
+    request.mgr = AAssetManager_fromJava(env, assetManager);
+    request.modelid = modelid;
+    request.cpugpu = cpugpu;
+    request.callback = callback ? env->NewGlobalRef(callback) : 0;
+
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "loadModelAsync %p %d %d", request.mgr, modelid, cpugpu);
+
+    remember_request(env, assetManager, modelid, cpugpu);
+
+    g_loader->post(env, request);
+
+    return JNI_TRUE;
+}
+
+// public native boolean openCamera(int facing);
+JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_openCamera(JNIEnv* env, jobject thiz, jint facing)
+{
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "openCamera %d", facing);
+
+    int ret = g_camera->open((int)facing);
+    
+    return ret == 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+// public native boolean closeCamera();
+JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_closeCamera(JNIEnv* env, jobject thiz)
+{
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "closeCamera");
+
+    g_camera->close();
+
+    return JNI_TRUE;
+}
+
+// public native boolean setOutputWindow(Surface surface);
+JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setOutputWindow(JNIEnv* env, jobject thiz, jobject surface)
+{
+    ANativeWindow* win = ANativeWindow_fromSurface(env, surface);
+
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setOutputWindow %p", win);
+
+    g_camera->set_window(win);
+
+    return JNI_TRUE;
+}
+
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setConfidenceThreshold(JNIEnv* env, jobject thiz, jfloat threshold)
+{
+    g_config.setProbThreshold(threshold);
+}
+
+// 设置 NMS 阈值
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setNmsThreshold(JNIEnv* env, jobject thiz, jfloat threshold)
+{
+    g_config.setNmsThreshold(threshold);
+}
+
+// 设置是否映射权重，下次加载模型生效
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setMmapWeights(JNIEnv* env, jobject thiz, jboolean enable)
+{
+    g_mmap_weights = enable == JNI_TRUE;
+}
+
+// 设置节流间隔
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setThrottleInterval(JNIEnv* env, jobject thiz, jint milliseconds)
+{
+    g_config.setThrottleInterval(milliseconds);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setThrottleInterval %d ms", milliseconds);
+}
+
+// 获取当前节流间隔
+JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getThrottleInterval(JNIEnv* env, jobject thiz)
+{
+    return g_config.getThrottleInterval();
+}
+
+// 设置检测模式
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setDetectMode(JNIEnv* env, jobject thiz, jint mode)
+{
+    g_config.setDetectMode(mode);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setDetectMode %d", mode);
+}
+
+// 获取当前检测模式
+JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getDetectMode(JNIEnv* env, jobject thiz)
+{
+    return g_config.getDetectMode();
+}
+
+// 设置类别掩码，mask[0] 为第 0~63 类，mask[1] 为第 64~79 类
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setClassMask(JNIEnv* env, jobject thiz, jlongArray mask)
+{
+    if (!mask)
+        return;
+
+    uint64_t words[Yolo::CLASS_MASK_WORDS] = {0};
+    int num_words = std::min((int)env->GetArrayLength(mask), (int)Yolo::CLASS_MASK_WORDS);
+    env->GetLongArrayRegion(mask, 0, num_words, (jlong*)words);
+
+    g_config.setClassMask(words, num_words);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setClassMask %016llx %016llx", (unsigned long long)words[1], (unsigned long long)words[0]);
+}
+
+// 按类别序号设置类别掩码
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setClasses(JNIEnv* env, jobject thiz, jintArray classes)
+{
+    if (!classes)
+        return;
+
+    int num_classes = env->GetArrayLength(classes);
+    jint* ids = env->GetIntArrayElements(classes, 0);
+
+    g_config.setClasses((const int*)ids, num_classes);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setClasses %d", num_classes);
+
+    env->ReleaseIntArrayElements(classes, ids, JNI_ABORT);
+}
+
+// 设置 NMS 模式
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setNmsMode(JNIEnv* env, jobject thiz, jint mode)
+{
+    g_config.setNmsMode(mode);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setNmsMode %d", mode);
+}
+
+// 获取当前 NMS 模式
+JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getNmsMode(JNIEnv* env, jobject thiz)
+{
+    return g_config.getNmsMode();
+}
+
+// 设置感兴趣区域，rects 为空时检测整个画面
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setRegionsOfInterest(JNIEnv* env, jobject thiz, jfloatArray rects)
+{
+    if (!rects)
+    {
+        g_config.setRegions(0, 0);
+        __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setRegionsOfInterest 0");
+        return;
+    }
+
+    const int num_regions = env->GetArrayLength(rects) / 4;
+
+    jfloat* data = env->GetFloatArrayElements(rects, 0);
+
+    g_config.setRegions((const float*)data, num_regions);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setRegionsOfInterest %d", num_regions);
+
+    env->ReleaseFloatArrayElements(rects, data, JNI_ABORT);
+}
+
+// 设置分块推理的网格和重叠百分比
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setTiling(JNIEnv* env, jobject thiz, jint cols, jint rows, jint overlap)
+{
+    g_config.setTiling(cols, rows, overlap);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setTiling %dx%d overlap %d%%", cols, rows, overlap);
+}
+
+// 设置分块并行的后台线程数
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setTileThreads(JNIEnv* env, jobject thiz, jint threads)
+{
+    g_config.setTileThreads(threads);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setTileThreads %d", threads);
+}
+
+// 设置相机采集分辨率，下次 openCamera 生效
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setCaptureSize(JNIEnv* env, jobject thiz, jint width, jint height)
+{
+    g_camera->set_capture_size(width, height);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setCaptureSize %dx%d", width, height);
+}
+
+// 设置调度模式
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setScheduleMode(JNIEnv* env, jobject thiz, jint mode)
+{
+    g_config.setScheduleMode(mode);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setScheduleMode %d", mode);
+}
+
+// 获取当前调度模式
+JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getScheduleMode(JNIEnv* env, jobject thiz)
+{
+    return g_config.getScheduleMode();
+}
+
+// 设置自适应调度的占空比预算
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setDutyBudget(JNIEnv* env, jobject thiz, jint percent)
+{
+    g_config.setDutyBudget(percent);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setDutyBudget %d", percent);
+}
+
+// 开关温控和电量调度
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setGovernorEnabled(JNIEnv* env, jobject thiz, jboolean enable)
+{
+    g_governor->set_enabled(enable == JNI_TRUE);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setGovernorEnabled %d", (int)enable);
+}
+
+// 由 Java 层转发电池广播
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setBatteryState(JNIEnv* env, jobject thiz, jint level, jboolean charging)
+{
+    g_governor->set_battery(level, charging == JNI_TRUE);
+}
+
+// 获取当前降级级别
+JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getGovernorLevel(JNIEnv* env, jobject thiz)
+{
+    return g_governor->level();
+}
+
+// 获取最近一次读取的温控状态
+JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getThermalStatus(JNIEnv* env, jobject thiz)
+{
+    return g_governor->thermal_status();
+}
+
+// 开关跟踪
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setTracking(JNIEnv* env, jobject thiz, jboolean enable)
+{
+    g_camera->set_tracking(enable == JNI_TRUE);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setTracking %d", (int)enable);
+}
+
+// 获取当前是否跟踪
+JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getTracking(JNIEnv* env, jobject thiz)
+{
+    return g_camera->get_tracking() ? JNI_TRUE : JNI_FALSE;
+}
+
+// 写出最近一帧绘制的对象，info 每个对象 2 个值（跟踪编号，类别），boxes 每个对象 5 个值（x，y，w，h，置信度）
+// 返回写出的对象数，不超过两个数组的容量
+JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getTrackedObjects(JNIEnv* env, jobject thiz, jintArray info, jfloatArray boxes)
+{
+    if (!info || !boxes)
+        return 0;
+
+    std::vector<Object> objects;
+    g_camera->copy_objects(objects);
+
+    const int n = std::min((int)objects.size(), std::min((int)env->GetArrayLength(info) / 2, (int)env->GetArrayLength(boxes) / 5));
+    if (n == 0)
+        return 0;
+
+    jint* pinfo = env->GetIntArrayElements(info, 0);
+    jfloat* pboxes = env->GetFloatArrayElements(boxes, 0);
+
+    for (int i = 0; i < n; i++)
+    {
+        const Object& obj = objects[i];
+
+        pinfo[i * 2] = obj.track_id;
+        pinfo[i * 2 + 1] = obj.label;
+
+        pboxes[i * 5] = obj.rect.x;
+        pboxes[i * 5 + 1] = obj.rect.y;
+        pboxes[i * 5 + 2] = obj.rect.width;
+        pboxes[i * 5 + 3] = obj.rect.height;
+        pboxes[i * 5 + 4] = obj.prob;
+    }
+
+    env->ReleaseIntArrayElements(info, pinfo, 0);
+    env->ReleaseFloatArrayElements(boxes, pboxes, 0);
+
+    return n;
+}
+
+// 检测结果环的内存，Java 层按 Yolov8Ncnn.RESULT_* 的布局读取
+JNIEXPORT jobject JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getResultBuffer(JNIEnv* env, jobject thiz)
+{
+    return env->NewDirectByteBuffer(g_results.data(), (jlong)g_results.size());
+}
+
+// 取得最新结果所在的槽位，没有新结果时返回 -1
+JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_acquireResultSlot(JNIEnv* env, jobject thiz)
+{
+    return g_results.acquire();
+}
+
+// 设置运动门控
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setMotionGate(JNIEnv* env, jobject thiz, jboolean enable, jfloat threshold)
+{
+    g_camera->set_motion_gate(enable == JNI_TRUE, threshold);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setMotionGate %d %f", (int)enable, threshold);
+}
+
+// 获取当前是否开启运动门控
+JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getMotionGate(JNIEnv* env, jobject thiz)
+{
+    return g_camera->get_motion_gate() ? JNI_TRUE : JNI_FALSE;
+}
+
+// 设置流水线模式
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_setPipelineMode(JNIEnv* env, jobject thiz, jboolean enable)
+{
+    g_camera->set_pipeline_mode(enable == JNI_TRUE);
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "setPipelineMode %d", (int)enable);
+}
+
+// 获取当前是否为流水线模式
+JNIEXPORT jboolean JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getPipelineMode(JNIEnv* env, jobject thiz)
+{
+    return g_camera->get_pipeline_mode() ? JNI_TRUE : JNI_FALSE;
+}
+
+// 获取已渲染帧数
+JNIEXPORT jlong JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getRenderedFrames(JNIEnv* env, jobject thiz)
+{
+    return g_camera->rendered_frames;
+}
+
+// 获取已完成推理的帧数
+JNIEXPORT jlong JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getInferredFrames(JNIEnv* env, jobject thiz)
+{
+    return g_camera->inferred_frames;
+}
+
+// 获取被新帧覆盖而丢弃的帧数
+JNIEXPORT jlong JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getDroppedFrames(JNIEnv* env, jobject thiz)
+{
+    return g_camera->dropped_frames;
+}
+
+// 获取模型锁的争用次数
+JNIEXPORT jlong JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getLockContentions(JNIEnv* env, jobject thiz)
+{
+    return g_lock_contentions;
+}
+
+// 写出各阶段耗时统计和调度器计量，out 由调用方预先分配并复用，长度至少 STAT_COUNT * STAT_NUM_FIELDS + STAT_NUM_GAUGES
+JNIEXPORT jlongArray JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getStats(JNIEnv* env, jobject thiz, jlongArray out)
+{
+    if (!out)
+        return out;
+
+    int64_t stats[STAT_COUNT * STAT_NUM_FIELDS + STAT_NUM_GAUGES];
+    int n = stats_snapshot(stats, std::min((int)env->GetArrayLength(out), (int)(STAT_COUNT * STAT_NUM_FIELDS + STAT_NUM_GAUGES)));
+
+    env->SetLongArrayRegion(out, 0, n, (const jlong*)stats);
+
+    return out;
+}
+
+// 清空耗时统计和累计计数，状态量保留
+JNIEXPORT void JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_resetStats(JNIEnv* env, jobject thiz)
+{
+    stats_reset();
+}
+
+// 检测 RGBA_8888 的 Bitmap，直接锁定像素缓冲，Java 层不拷贝，与相机推理互不影响
+JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_detectBitmap(JNIEnv* env, jobject thiz, jobject bitmap, jfloatArray out)
+{
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS || info.format != ANDROID_BITMAP_FORMAT_RGBA_8888)
+    {
+        __android_log_print(ANDROID_LOG_ERROR, "ncnn", "detectBitmap requires an ARGB_8888 bitmap");
+        return -1;
+    }
+
+    Yolo* yolo = acquire_still_model();
+    if (!yolo)
+        return -1;
+
+    void* pixels = 0;
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS)
+    {
+        release_still_model(yolo);
+        return -1;
+    }
+
+    std::vector<Object> objects;
+    int ret = yolo->detect_pixels((const unsigned char*)pixels, ncnn::Mat::PIXEL_RGBA2BGR, info.width, info.height, info.stride, objects);
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+
+    release_still_model(yolo);
+
+    if (ret != 0)
+        return -1;
+
+    return out ? write_detections(env, objects, out) : 0;
+}
+
+// 批量检测图片文件，解码和推理在工作线程上流水进行，阻塞直到全部完成，返回每秒处理的图片数
+// 整批使用开始时的模型，没有模型时每张图片以 -1 回调
+JNIEXPORT jfloat JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_detectBatch(JNIEnv* env, jobject thiz, jobjectArray paths, jint threads, jobject callback)
+{
+    if (!paths)
+        return 0.f;
+
+    std::vector<std::string> files(env->GetArrayLength(paths));
+    for (size_t i = 0; i < files.size(); i++)
+    {
+        jstring path = (jstring)env->GetObjectArrayElement(paths, (jsize)i);
+        if (path)
+        {
+            const char* chars = env->GetStringUTFChars(path, 0);
+            files[i] = chars;
+            env->ReleaseStringUTFChars(path, chars);
+            env->DeleteLocalRef(path);
+        }
+    }
+
+    threads = std::max((int)threads, 1);
+
+    BatchContext bc;
+    bc.env = env;
+    bc.callback = callback;
+    bc.on_image = 0;
+    bc.yolo = acquire_still_model();
+    if (callback)
+    {
+        jclass cls = env->GetObjectClass(callback);
+        bc.on_image = env->GetMethodID(cls, "onImageDetected", "(II[F)V");
+        env->DeleteLocalRef(cls);
+    }
+
+    // 大核在各推理线程之间平分
+    bc.num_threads = std::max(ncnn::get_big_cpu_count() / (int)threads, 1);
+
+    BatchPipeline pipeline(batch_detect, batch_result, &bc);
+    float images_per_second = pipeline.run(files, threads);
+
+    if (bc.yolo)
+        release_still_model(bc.yolo);
+
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "detectBatch %d images %d threads %.2f images/s", (int)files.size(), (int)threads, images_per_second);
+
+    return images_per_second;
+}
+
+// 视频的 Java 回调、整段视频固定使用的模型和每个推理线程的 ncnn 线程数
+struct VideoContext
+{
+    JNIEnv* env;
+    jobject callback;
+    jmethodID on_progress;
+    Yolo* yolo;
+    int num_threads;
+};
+
+static int video_detect(void* context, const unsigned char* nv21, int width, int height, std::vector<Object>& objects)
+{
+    const VideoContext* vc = (const VideoContext*)context;
+
+    return vc->yolo->detect_pixels_nv21(nv21, width, height, objects, vc->num_threads);
+}
+
+// Java 层抛出异常后返回 false 取消检测
+static bool video_progress(void* context, int frames, int64_t position_us, int64_t duration_us, float fps)
+{
+    const VideoContext* vc = (const VideoContext*)context;
+    JNIEnv* env = vc->env;
+
+    if (!vc->callback)
+        return true;
+
+    env->CallVoidMethod(vc->callback, vc->on_progress, frames, (jlong)position_us, (jlong)duration_us, fps);
+
+    return !env->ExceptionCheck();
+}
+
+// 在调用 detectVideo 的线程上回调进度，Java 层抛出异常后停止检测
+// 整段视频使用开始时的模型，期间加载的新模型不影响输出，被替换的模型在结束后释放
+JNIEXPORT jfloat JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_detectVideo(JNIEnv* env, jobject thiz, jstring path, jstring out_path, jint threads, jint stride, jobject callback)
+{
+    if (!path || !out_path)
+        return -1.f;
+
+    Yolo* yolo = acquire_still_model();
+    if (!yolo)
+        return -1.f;
+
+    const char* path_chars = env->GetStringUTFChars(path, 0);
+    const char* out_chars = env->GetStringUTFChars(out_path, 0);
+
+    threads = std::max((int)threads, 1);
+
+    VideoContext vc;
+    vc.env = env;
+    vc.callback = callback;
+    vc.on_progress = 0;
+    vc.yolo = yolo;
+    if (callback)
+    {
+        jclass cls = env->GetObjectClass(callback);
+        vc.on_progress = env->GetMethodID(cls, "onProgress", "(IJJF)V");
+        env->DeleteLocalRef(cls);
+    }
+
+    // 大核在各推理线程之间平分
+    vc.num_threads = std::max(ncnn::get_big_cpu_count() / (int)threads, 1);
+
+    VideoPipeline pipeline(video_detect, video_progress, &vc);
+    float fps = pipeline.run(path_chars, out_chars, threads, stride);
+
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "detectVideo %s %d threads stride %d %.2f fps", path_chars, (int)threads, (int)stride, fps);
+
+    env->ReleaseStringUTFChars(out_path, out_chars);
+    env->ReleaseStringUTFChars(path, path_chars);
+
+    release_still_model(yolo);
+
+    return fps;
+}
+
+// 获取上一帧构造 nv21 拷贝的字节数，0 表示零拷贝
+JNIEXPORT jint JNICALL Java_com_tencent_yolov8ncnn_Yolov8Ncnn_getCameraCopyBytes(JNIEnv* env, jobject thiz)
+{
+    return g_camera->frame_copy_bytes;
 }
 
 }